@@ -0,0 +1,92 @@
+/*
+ * (C) Copyright 2016 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.aws.elastictranscoder.notification;
+
+import java.util.concurrent.TimeUnit;
+
+import org.nuxeo.aws.elastictranscoder.notification.JobStatusNotification.JobState;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Job state handling: Decoding/testing a state, and the full life of a job on
+ * a queue worker (register, PROGRESSING, COMPLETED and unregister from the
+ * handler, as <code>AWSElasticTranscoder</code> does).
+ *
+ * @since 8.3
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JobStateBenchmark {
+
+    protected static final String[] STATE_NAMES = { "PROGRESSING",
+            "COMPLETED", "ERROR" };
+
+    protected SqsQueueNotificationWorker worker;
+
+    protected JobStatusNotification progressing;
+
+    protected JobStatusNotification completed;
+
+    protected int next = 0;
+
+    @Setup
+    public void setup() throws Exception {
+
+        worker = new SqsQueueNotificationWorker(null, "bench");
+        String jobId = NotificationSamples.jobId(0);
+        progressing = JobStatusNotification.valueOf(NotificationSamples.notificationJson(
+                jobId, JobState.PROGRESSING, 1));
+        completed = JobStatusNotification.valueOf(NotificationSamples.notificationJson(
+                jobId, JobState.COMPLETED, 1));
+    }
+
+    @Benchmark
+    public boolean decodeState() {
+
+        String name = STATE_NAMES[next++ % STATE_NAMES.length];
+        return JobState.valueOf(name).isTerminalState();
+    }
+
+    @Benchmark
+    public void jobLifecycle(Blackhole inBlackhole) {
+
+        String jobId = progressing.getJobId();
+        worker.addJobHandler(jobId, notification -> {
+            inBlackhole.consume(notification.getState());
+            if (notification.getState().isTerminalState()) {
+                worker.removeJobHandler(notification.getJobId());
+            }
+        });
+        inBlackhole.consume(worker.dispatch(progressing));
+        inBlackhole.consume(worker.dispatch(completed));
+    }
+
+}
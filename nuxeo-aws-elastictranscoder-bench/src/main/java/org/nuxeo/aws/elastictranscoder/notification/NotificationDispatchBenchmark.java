@@ -0,0 +1,123 @@
+/*
+ * (C) Copyright 2016 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.aws.elastictranscoder.notification;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.nuxeo.aws.elastictranscoder.notification.JobStatusNotification.JobState;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Cost of routing a parsed notification to the handler of its job, depending
+ * on the number of jobs waiting on the queue. The "contended" group adds a
+ * thread registering and removing handlers at the same time, as the
+ * transcoding threads do.
+ *
+ * @since 8.3
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class NotificationDispatchBenchmark {
+
+    @Param({ "1", "100", "10000" })
+    public int jobs;
+
+    // Handlers receiving all the notifications, whatever the job
+    @Param({ "0", "10" })
+    public int listeners;
+
+    protected SqsQueueNotificationWorker worker;
+
+    protected JobStatusNotification[] notifications;
+
+    protected JobStatusNotification unknownJobNotification;
+
+    protected int next = 0;
+
+    @Setup
+    public void setup() throws Exception {
+
+        worker = new SqsQueueNotificationWorker(null, "bench");
+        for (int i = 0; i < listeners; i++) {
+            worker.addHandler(notification -> Blackhole.consumeCPU(1));
+        }
+        notifications = new JobStatusNotification[jobs];
+        for (int i = 0; i < jobs; i++) {
+            String jobId = NotificationSamples.jobId(i);
+            worker.addJobHandler(jobId, notification -> Blackhole.consumeCPU(1));
+            notifications[i] = JobStatusNotification.valueOf(NotificationSamples.notificationJson(
+                    jobId, JobState.PROGRESSING, 1));
+        }
+        unknownJobNotification = JobStatusNotification.valueOf(NotificationSamples.notificationJson(
+                NotificationSamples.jobId(jobs + 1), JobState.COMPLETED, 1));
+    }
+
+    @Benchmark
+    public boolean dispatchToRegisteredJob() {
+
+        // Not thread safe, but only run by one thread at a time
+        int index = next++ % jobs;
+        return worker.dispatch(notifications[index]);
+    }
+
+    @Benchmark
+    public boolean dispatchToUnknownJob() {
+        return worker.dispatch(unknownJobNotification);
+    }
+
+    /*
+     * 3 threads dispatching while 1 thread registers and removes handlers
+     */
+    @Benchmark
+    @Group("contended")
+    @GroupThreads(3)
+    public boolean dispatchWhileRegistering() {
+
+        int index = ThreadLocalRandom.current().nextInt(jobs);
+        return worker.dispatch(notifications[index]);
+    }
+
+    @Benchmark
+    @Group("contended")
+    @GroupThreads(1)
+    public void registerWhileDispatching() {
+
+        String jobId = NotificationSamples.jobId(jobs + 2);
+        worker.addJobHandler(jobId, notification -> {
+        });
+        worker.removeJobHandler(jobId);
+    }
+
+}
@@ -0,0 +1,109 @@
+/*
+ * (C) Copyright 2016 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.aws.elastictranscoder.notification;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.nuxeo.aws.elastictranscoder.notification.JobStatusNotification.JobState;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.amazonaws.services.sqs.model.Message;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Cost of turning an SQS message into a {@link JobStatusNotification}, as done
+ * by the {@link SqsQueueNotificationWorker} for every message received.
+ * <p>
+ * Run with <code>-prof gc</code> to also get the allocation rate.
+ *
+ * @since 8.3
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class NotificationParsingBenchmark {
+
+    @Param({ "PROGRESSING", "COMPLETED" })
+    public JobState state;
+
+    @Param({ "1", "4" })
+    public int outputs;
+
+    protected SqsQueueNotificationWorker worker;
+
+    protected Message message;
+
+    protected String notificationJson;
+
+    @Setup
+    public void setup() {
+
+        // Not started, no SQS calls
+        worker = new SqsQueueNotificationWorker(null, "bench");
+        notificationJson = NotificationSamples.notificationJson(
+                NotificationSamples.jobId(1), state, outputs);
+        message = NotificationSamples.message(NotificationSamples.jobId(1),
+                state, outputs);
+    }
+
+    protected static final ObjectMapper mapper = new ObjectMapper();
+
+    /*
+     * SNS envelope + nested notification, what the worker does
+     */
+    @Benchmark
+    public JobStatusNotification parseEnvelope() throws IOException {
+        return worker.parseNotification(message);
+    }
+
+    /*
+     * Same, with the full databind conversion the worker used before the
+     * streaming decoder
+     */
+    @Benchmark
+    public JobStatusNotification parseEnvelopeDatabind() throws IOException {
+        SNSNotification<JobStatusNotification> notification = mapper.readValue(
+                message.getBody(),
+                new TypeReference<SNSNotification<JobStatusNotification>>() {
+                });
+        return notification.getMessage();
+    }
+
+    /*
+     * Nested notification only
+     */
+    @Benchmark
+    public JobStatusNotification parseNotificationValueOf() throws IOException {
+        return JobStatusNotification.valueOf(notificationJson);
+    }
+
+}
@@ -0,0 +1,126 @@
+/*
+ * (C) Copyright 2016 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.aws.elastictranscoder.notification;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.nuxeo.aws.elastictranscoder.notification.JobStatusNotification.JobState;
+
+import com.amazonaws.services.sqs.model.Message;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Builds SQS messages as sent by Elastic Transcoder through SNS: The job
+ * status notification is a JSON string in the "Message" field of the SNS
+ * envelope, along with the signature and URLs SNS always adds.
+ *
+ * @since 8.3
+ */
+public class NotificationSamples {
+
+    protected static final ObjectMapper mapper = new ObjectMapper();
+
+    public static String jobId(int inIndex) {
+        return String.format("1469000000000-%06d", inIndex);
+    }
+
+    public static String notificationJson(String inJobId, JobState inState,
+            int inOutputsCount) {
+
+        Map<String, Object> notification = new LinkedHashMap<String, Object>();
+        notification.put("state", inState.name());
+        notification.put("version", "2012-09-25");
+        notification.put("jobId", inJobId);
+        notification.put("pipelineId", "1469000000000-pipeln");
+        Map<String, Object> input = new LinkedHashMap<String, Object>();
+        input.put("key", "a1b2c3d4-e5f6-7890-abcd-ef1234567890-video");
+        input.put("frameRate", "auto");
+        input.put("resolution", "auto");
+        input.put("aspectRatio", "auto");
+        input.put("interlaced", "auto");
+        input.put("container", "auto");
+        notification.put("input", input);
+        if (inState == JobState.ERROR) {
+            notification.put("errorCode", 3002);
+        }
+        List<Map<String, Object>> outputs = new ArrayList<Map<String, Object>>();
+        for (int i = 1; i <= inOutputsCount; i++) {
+            Map<String, Object> output = new LinkedHashMap<String, Object>();
+            output.put("id", String.valueOf(i));
+            output.put("presetId", "1351620000001-1000" + i + "0");
+            output.put("key", "a1b2c3d4-e5f6-7890-abcd-ef1234567890-video-" + i
+                    + ".mp4");
+            output.put("status", inState == JobState.COMPLETED ? "Complete"
+                    : inState == JobState.ERROR ? "Error" : "Progressing");
+            if (inState == JobState.COMPLETED) {
+                output.put("duration", 27);
+                output.put("width", 640);
+                output.put("height", 360);
+            }
+            outputs.add(output);
+        }
+        notification.put("outputs", outputs);
+
+        return toJson(notification);
+    }
+
+    public static String snsEnvelope(String inNotificationJson) {
+
+        Map<String, Object> envelope = new LinkedHashMap<String, Object>();
+        envelope.put("Type", "Notification");
+        envelope.put("MessageId", "0c6a8f0e-8a4b-5b3a-9d6d-1f2e3d4c5b6a");
+        envelope.put("TopicArn",
+                "arn:aws:sns:us-east-1:123456789012:transcoder-notifications");
+        envelope.put("Subject",
+                "Amazon Elastic Transcoder has changed the status of a job");
+        envelope.put("Message", inNotificationJson);
+        envelope.put("Timestamp", "2016-07-20T12:00:00.000Z");
+        envelope.put("SignatureVersion", "1");
+        StringBuilder signature = new StringBuilder();
+        for (int i = 0; i < 43; i++) {
+            signature.append("AbCdEfGh");
+        }
+        envelope.put("Signature", signature.toString() + "==");
+        envelope.put("SigningCertURL",
+                "https://sns.us-east-1.amazonaws.com/SimpleNotificationService-bb750dd426d95ee9390147a5624348ee.pem");
+        envelope.put("UnsubscribeURL",
+                "https://sns.us-east-1.amazonaws.com/?Action=Unsubscribe&SubscriptionArn=arn:aws:sns:us-east-1:123456789012:transcoder-notifications:0c6a8f0e-8a4b-5b3a-9d6d-1f2e3d4c5b6a");
+
+        return toJson(envelope);
+    }
+
+    public static Message message(String inJobId, JobState inState,
+            int inOutputsCount) {
+
+        return new Message().withMessageId("0c6a8f0e").withReceiptHandle(
+                "receipt").withBody(
+                snsEnvelope(notificationJson(inJobId, inState, inOutputsCount)));
+    }
+
+    protected static String toJson(Object inValue) {
+        try {
+            return mapper.writeValueAsString(inValue);
+        } catch (JsonProcessingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+}
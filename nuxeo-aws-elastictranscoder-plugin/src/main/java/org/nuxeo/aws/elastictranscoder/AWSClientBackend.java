@@ -0,0 +1,65 @@
+/*
+ * (C) Copyright 2016 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.aws.elastictranscoder;
+
+import com.amazonaws.ClientConfiguration;
+import com.amazonaws.auth.AWSCredentialsProvider;
+import com.amazonaws.services.elastictranscoder.AmazonElasticTranscoder;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.sqs.AmazonSQS;
+
+/**
+ * Creates the clients handed out by the {@link AWSClientRegistry}.
+ * <p>
+ * The default backend ({@link DefaultAWSClientBackend}) creates the AWS SDK
+ * clients. Another one can be used by setting its class name in the
+ * <code>aws.transcoder.backend</code> configuration parameter, for example the
+ * in-memory {@link org.nuxeo.aws.elastictranscoder.local.LocalAWSClientBackend}
+ * (<code>aws.transcoder.backend=local</code>), which needs no network and no
+ * AWS account.
+ * <p>
+ * Implementations must have a public no-argument constructor.
+ *
+ * @since 8.3
+ */
+public interface AWSClientBackend {
+
+    public AmazonS3 createS3Client(AWSCredentialsProvider inCredentials,
+            ClientConfiguration inConfiguration, String inRegion);
+
+    public AmazonSQS createSQSClient(AWSCredentialsProvider inCredentials,
+            ClientConfiguration inConfiguration, String inRegion);
+
+    public AmazonElasticTranscoder createElasticTranscoder(
+            AWSCredentialsProvider inCredentials,
+            ClientConfiguration inConfiguration, String inRegion);
+
+    /**
+     * @return false if the clients can be used without AWS keys
+     */
+    public default boolean requiresCredentials() {
+        return true;
+    }
+
+    /**
+     * Called when the registry is shut down, after the clients are shut down
+     */
+    public default void shutdown() {
+        // Nothing by default
+    }
+
+}
@@ -0,0 +1,58 @@
+/*
+ * (C) Copyright 2016 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.aws.elastictranscoder;
+
+import com.amazonaws.auth.AWSCredentialsProvider;
+import com.amazonaws.services.elastictranscoder.AmazonElasticTranscoder;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.sqs.AmazonSQS;
+
+/**
+ * Hands out the AWS clients shared by all the transcoders.
+ * <p>
+ * The AWS clients are thread safe. Each one has its own HTTP connection pool,
+ * so creating one per transcoding would mean new connections (and TLS
+ * handshakes) for every video. The registry creates only one client per
+ * service, region and credentials, configured from nuxeo.conf (max.
+ * connections, timeouts, TCP keep-alive, see
+ * {@link AWSElasticTranscoderConstants}).
+ *
+ * @since 8.3
+ */
+public interface AWSClientRegistry {
+
+    /**
+     * @param inCredentials
+     * @param inRegion the AWS region name (us-east-1, eu-west-1, ...). If
+     *            blank, the default region of the SDK is used
+     * @return the shared client
+     */
+    public AmazonS3 getS3Client(AWSCredentialsProvider inCredentials,
+            String inRegion);
+
+    public AmazonSQS getSQSClient(AWSCredentialsProvider inCredentials,
+            String inRegion);
+
+    public AmazonElasticTranscoder getElasticTranscoder(
+            AWSCredentialsProvider inCredentials, String inRegion);
+
+    /**
+     * @return the backend creating the clients
+     */
+    public AWSClientBackend getBackend();
+
+}
@@ -0,0 +1,146 @@
+/*
+ * (C) Copyright 2016 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.aws.elastictranscoder;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Function;
+
+import org.apache.commons.lang.StringUtils;
+import org.nuxeo.aws.elastictranscoder.local.LocalAWSClientBackend;
+import org.nuxeo.ecm.core.api.NuxeoException;
+import org.nuxeo.runtime.model.ComponentContext;
+import org.nuxeo.runtime.model.DefaultComponent;
+
+import com.amazonaws.AmazonWebServiceClient;
+import com.amazonaws.ClientConfiguration;
+import com.amazonaws.auth.AWSCredentialsProvider;
+import com.amazonaws.services.elastictranscoder.AmazonElasticTranscoder;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.sqs.AmazonSQS;
+
+/**
+ * Default implementation of the {@link AWSClientRegistry} service. The clients
+ * are created by the {@link AWSClientBackend} set in the configuration, and
+ * are shut down (their connection pools are closed) when the component is
+ * deactivated.
+ *
+ * @since 8.3
+ */
+public class AWSClientRegistryComponent extends DefaultComponent implements
+        AWSClientRegistry {
+
+    protected ConcurrentMap<String, Object> clients;
+
+    protected ClientConfiguration clientConfiguration;
+
+    protected AWSClientBackend backend;
+
+    @Override
+    public void activate(ComponentContext context) {
+        clients = new ConcurrentHashMap<String, Object>();
+    }
+
+    @Override
+    public void deactivate(ComponentContext context) {
+
+        for (Object client : clients.values()) {
+            if (client instanceof AmazonWebServiceClient) {
+                ((AmazonWebServiceClient) client).shutdown();
+            }
+        }
+        clients.clear();
+        if (backend != null) {
+            backend.shutdown();
+            backend = null;
+        }
+    }
+
+    @Override
+    public synchronized AWSClientBackend getBackend() {
+
+        if (backend == null) {
+            String name = AWSElasticTranscoderConstants.getBackend();
+            if (StringUtils.isBlank(name)
+                    || AWSElasticTranscoderConstants.BACKEND_AWS.equals(name)) {
+                backend = new DefaultAWSClientBackend();
+            } else if (AWSElasticTranscoderConstants.BACKEND_LOCAL.equals(name)) {
+                backend = new LocalAWSClientBackend();
+            } else {
+                try {
+                    backend = (AWSClientBackend) Class.forName(name).newInstance();
+                } catch (ReflectiveOperationException | ClassCastException e) {
+                    throw new NuxeoException("Invalid AWS client backend: "
+                            + name, e);
+                }
+            }
+        }
+        return backend;
+    }
+
+    @Override
+    public AmazonS3 getS3Client(AWSCredentialsProvider inCredentials,
+            String inRegion) {
+
+        return (AmazonS3) getClient("s3", inCredentials, inRegion,
+                config -> getBackend().createS3Client(inCredentials, config,
+                        inRegion));
+    }
+
+    @Override
+    public AmazonSQS getSQSClient(AWSCredentialsProvider inCredentials,
+            String inRegion) {
+
+        return (AmazonSQS) getClient("sqs", inCredentials, inRegion,
+                config -> getBackend().createSQSClient(inCredentials, config,
+                        inRegion));
+    }
+
+    @Override
+    public AmazonElasticTranscoder getElasticTranscoder(
+            AWSCredentialsProvider inCredentials, String inRegion) {
+
+        return (AmazonElasticTranscoder) getClient("elastictranscoder",
+                inCredentials, inRegion,
+                config -> getBackend().createElasticTranscoder(inCredentials,
+                        config, inRegion));
+    }
+
+    protected Object getClient(String inService,
+            AWSCredentialsProvider inCredentials, String inRegion,
+            Function<ClientConfiguration, Object> inFactory) {
+
+        String key = inService + "|" + StringUtils.defaultString(inRegion)
+                + "|" + inCredentials.getCredentials().getAWSAccessKeyId();
+
+        return clients.computeIfAbsent(key,
+                k -> inFactory.apply(getClientConfiguration()));
+    }
+
+    protected synchronized ClientConfiguration getClientConfiguration() {
+
+        if (clientConfiguration == null) {
+            clientConfiguration = new ClientConfiguration().withMaxConnections(
+                    AWSElasticTranscoderConstants.getClientMaxConnections()).withConnectionTimeout(
+                    AWSElasticTranscoderConstants.getClientConnectionTimeout()).withSocketTimeout(
+                    AWSElasticTranscoderConstants.getClientSocketTimeout()).withTcpKeepAlive(
+                    AWSElasticTranscoderConstants.getClientTcpKeepAlive());
+        }
+        return clientConfiguration;
+    }
+
+}
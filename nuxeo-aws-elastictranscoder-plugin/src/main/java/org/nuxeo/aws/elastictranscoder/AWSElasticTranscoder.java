@@ -19,25 +19,50 @@ package org.nuxeo.aws.elastictranscoder;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.apache.commons.lang.StringUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.nuxeo.aws.elastictranscoder.jobs.TranscodedVideoUpdater;
+import org.nuxeo.aws.elastictranscoder.jobs.TranscodingJob;
+import org.nuxeo.aws.elastictranscoder.jobs.TranscodingJobRegistry;
 import org.nuxeo.aws.elastictranscoder.notification.JobStatusNotification;
 import org.nuxeo.aws.elastictranscoder.notification.JobStatusNotification.JobState;
-import org.nuxeo.aws.elastictranscoder.notification.JobStatusNotificationHandler;
-import org.nuxeo.aws.elastictranscoder.notification.SqsQueueNotificationWorker;
+import org.nuxeo.aws.elastictranscoder.notification.NotificationDispatcher;
+import org.nuxeo.aws.elastictranscoder.pool.PipelinePool;
+import org.nuxeo.aws.elastictranscoder.pool.PipelinePoolService;
+import org.nuxeo.aws.elastictranscoder.pool.PooledPipeline;
+import org.nuxeo.aws.elastictranscoder.tracing.TranscodingSpan;
+import org.nuxeo.aws.elastictranscoder.tracing.TranscodingTrace;
+import org.nuxeo.aws.elastictranscoder.tracing.TranscodingTracing;
 import org.nuxeo.ecm.core.api.Blob;
-import org.nuxeo.ecm.core.api.Blobs;
+import org.nuxeo.ecm.core.blob.ManagedBlob;
+import org.nuxeo.runtime.api.Framework;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.elastictranscoder.AmazonElasticTranscoder;
 import com.amazonaws.services.elastictranscoder.model.CreateJobOutput;
 import com.amazonaws.services.elastictranscoder.model.CreateJobRequest;
 import com.amazonaws.services.elastictranscoder.model.CreateJobResult;
 import com.amazonaws.services.elastictranscoder.model.JobInput;
-import com.google.common.io.Files;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 /**
- * <i>[Please, see the README file to understand implementation, and actually
- * the limitation of this first implementation (mainly: It does not scale)]</i>
+ * <i>[Please, see the README file to understand implementation]</i>
  * <p>
  * This class handles the following:
  * <ul>
@@ -45,8 +70,10 @@ import com.google.common.io.Files;
  * <li>Uploads the file to the input S3 bucket</li>
  * <li>Use Elastic Transcoder to transcode the file</li>
  * <li>Waits until the transcoding is done<br>
- * Important: This is done using Amazon SNS and SQS, which must be configured
- * and used with the transcoder pipeline</li>
+ * This is done using Amazon SNS and SQS when they are configured with the
+ * transcoder pipeline, else by polling the status of the job. Use
+ * <code>transcodeAsync()</code> to
+ * not block the calling thread while the job is running</li>
  * <li>Download the file</li>
  * <li>Cleanup and delete the files created in S3<br>
  * <b>IMPORTANT</b>: This is the default behavior: the class deletes the files
@@ -63,8 +90,8 @@ import com.google.common.io.Files;
  * <ul>
  * <li>A valid S3 input bucket</li>
  * <li>A valid S3 output bucket (can be the same as the input)</li>
- * <li>An existing SNS topic for the notification</li>
- * <li>An existing SQS which has subscribed to the SNS topic</li>
+ * <li>An existing SNS topic for the notification (recommended)</li>
+ * <li>An existing SQS which has subscribed to the SNS topic (recommended)</li>
  * <li>A pipeline already created, referencing the bucket(s) and the the
  * notification</li>
  * </ul>
@@ -80,16 +107,15 @@ import com.google.common.io.Files;
  * [output] bucket already contains a file that has the specified name, the
  * output fails"<br/>
  * The class adds a UUID prefix to the file names.</li>
- * <li>The code expect SNS and SQS to be configured, so we can get the AWS
- * Elastic Transcoder notifications</li>
- * <li></li>
- * <li>The code is inspired from the JobStatusNotificationsSample.java example
- * from AWS SDK, which states (2014-12):<br>
- * <i>Note that this implementation will not scale to multiple machines because
- * the provided JobStatusNotificationHandler is looking for a specific job ID.
- * If there are multiple machines polling SQS for notifications, there is no
- * guarantee that a particular machine will receive a particular notification.
- * </i></li>
+ * <li>The code expects SNS and SQS to be configured, so we can get the AWS
+ * Elastic Transcoder notifications. If no SQS queue is given, the end of the
+ * job is detected by polling Elastic Transcoder (slower, and more API
+ * calls)</li>
+ * <li>The notifications are received by the {@link NotificationDispatcher}
+ * service, which polls each queue only once per node, whatever the number of
+ * jobs in flight. A terminal notification received by a node which does not
+ * wait for this job is left in the queue, so the node waiting for it gets it
+ * after the visibility timeout.</li>
  * </ul>
  *
  * @since 7.1
@@ -98,16 +124,24 @@ public class AWSElasticTranscoder {
 
     private static final Log log = LogFactory.getLog(AWSElasticTranscoder.class);
 
-    protected Blob blob;
+    private static volatile ExecutorService transcodingExecutor;
 
-    protected Blob tempBlob;
+    protected static final String DEFAULT_SOURCE_FILE_NAME = "video";
+
+    protected Blob blob;
 
     protected File fileOfBlob;
 
+    protected String sourceFileName;
+
     protected Blob transcodedBlob;
 
+    protected List<Blob> transcodedBlobs;
+
     protected String presetId;
 
+    protected List<String> presetIds;
+
     protected String inputS3Bucket;
 
     protected String outputS3Bucket;
@@ -122,7 +156,7 @@ public class AWSElasticTranscoder {
 
     protected String awsJobId;
 
-    protected JobState jobEndState;
+    protected volatile JobState jobEndState;
 
     protected String uniqueFilePrefix;
 
@@ -130,12 +164,60 @@ public class AWSElasticTranscoder {
 
     protected String outputKey;
 
+    protected List<String> outputKeys;
+
     protected String outputFileSuffix;
 
+    protected List<String> outputFileSuffixes;
+
+    protected String binaryStoreBucket = AWSElasticTranscoderConstants.getBinaryStoreBucket();
+
+    protected String binaryStorePrefix = AWSElasticTranscoderConstants.getBinaryStorePrefix();
+
+    protected String binaryStoreProvider = AWSElasticTranscoderConstants.getBinaryStoreProvider();
+
+    protected boolean inputIsInBinaryStore = false;
+
     protected GenericAWSClient genericAwsClient;
 
     protected AWSS3Handler s3Handler;
 
+    // The document waiting for the result, if any
+    protected String repositoryName;
+
+    protected String documentId;
+
+    protected String conversionName;
+
+    // Timing of the steps (System.nanoTime()), see TranscodingMetrics. 0 when
+    // the step was not run by this instance (resumed job for example).
+    protected long startedAt;
+
+    protected long jobCreatedAt;
+
+    // Epoch ms, saved with the job: The poller looks for it among the jobs
+    // ended since then
+    protected long jobSubmittedAt;
+
+    protected volatile long jobProgressingAt;
+
+    protected volatile int jobErrorCode;
+
+    // The input was copied on S3 side, not sent from this server
+    protected boolean inputCopiedOnS3;
+
+    // One span per step, see TranscodingTracing
+    protected TranscodingTrace trace;
+
+    protected volatile TranscodingSpan jobSpan;
+
+    // When set, the pipeline is chosen in the pool when the transcoding starts
+    protected PipelinePool pipelinePool;
+
+    protected PooledPipeline pooledPipeline;
+
+    protected TranscodingPriority priority = TranscodingPriority.AUTOMATIC;
+
     /*
      * Handling the progression so at cleanup time we know what can be cleaned
      * up (avoid trying to delete a file on S3 if we know we never could not
@@ -168,7 +250,7 @@ public class AWSElasticTranscoder {
         }
     }
 
-    protected STEP step;
+    protected volatile STEP step;
 
     /**
      * Constructor is strict and throws an error if a parameter looks invalid
@@ -184,28 +266,67 @@ public class AWSElasticTranscoder {
             String inInputBucket, String inOutputBucket, String inPipelineId,
             String inSQSQueueURL, String inOutputFileSuffix) throws IOException {
 
+        this(inBlob, Collections.singletonList(inPresetId), inInputBucket,
+                inOutputBucket, inPipelineId, inSQSQueueURL,
+                Collections.singletonList(inOutputFileSuffix));
+    }
+
+    /**
+     * Transcodes the blob with several presets in a single job: The blob is
+     * uploaded once, and there is one output (one transcoded blob) per preset.
+     * <p>
+     * Constructor is strict and throws an error if a parameter looks invalid.
+     * There must be one suffix per preset, and the suffixes must be different
+     * (the output files must have different names)
+     *
+     * @param inBlob
+     * @param inPresetIds
+     * @param inInputBucket
+     * @param inOutputBucket
+     * @param inPipelineId
+     * @param inSQSQueueURL can be null: the status of the job is then polled
+     * @param inOutputFileSuffixes
+     * @throws IOException
+     * @since 8.3
+     */
+    public AWSElasticTranscoder(Blob inBlob, List<String> inPresetIds,
+            String inInputBucket, String inOutputBucket, String inPipelineId,
+            String inSQSQueueURL, List<String> inOutputFileSuffixes)
+            throws IOException {
+
         genericAwsClient = new GenericAWSClient();
         s3Handler = new AWSS3Handler(genericAwsClient.getS3Client());
 
         blob = inBlob;
-        fileOfBlob = blob.getFile();
-        // If the blob is a stream => we want a File
-        if (fileOfBlob == null) {
-            // Create a temp file
-            if(tempBlob != null) {
-                File f = tempBlob.getFile();
-                if(f != null) {
-                    f.delete();
-                }
-                tempBlob = null;
+        // A blob managed by a binary manager may download its content when
+        // calling getFile(): Wait until we know it is not already in S3 (see
+        // sendFileToInputBucket())
+        if (!(blob instanceof ManagedBlob)) {
+            fileOfBlob = blob.getFile();
+        }
+        // If the blob is a stream, we don't copy it to a local file: It is
+        // streamed to S3 (see sendFileToInputBucket())
+        sourceFileName = fileOfBlob != null ? fileOfBlob.getName()
+                : StringUtils.defaultIfBlank(blob.getFilename(),
+                        DEFAULT_SOURCE_FILE_NAME);
+
+        if (inPresetIds == null || inPresetIds.isEmpty()) {
+            throw new RuntimeException("No PresetId");
+        }
+        for (String id : inPresetIds) {
+            if (StringUtils.isBlank(id)) {
+                throw new RuntimeException("PresetId is blank");
             }
-            tempBlob = Blobs.createBlobWithExtension("." + Files.getFileExtension(blob.getFilename()));
-            fileOfBlob = tempBlob.getFile();
-            blob.transferTo(fileOfBlob);
         }
-
-        if (StringUtils.isBlank(inPresetId)) {
-            throw new RuntimeException("PresetId is blank");
+        if (inOutputFileSuffixes == null
+                || inOutputFileSuffixes.size() != inPresetIds.size()) {
+            throw new RuntimeException(
+                    "Expecting one output file suffix per PresetId");
+        }
+        if (inPresetIds.size() > 1
+                && new HashSet<String>(inOutputFileSuffixes).size() != inOutputFileSuffixes.size()) {
+            throw new RuntimeException(
+                    "Output file suffixes must be different for each PresetId");
         }
         if (StringUtils.isBlank(inInputBucket)) {
             throw new RuntimeException("InputBucket is blank");
@@ -216,17 +337,18 @@ public class AWSElasticTranscoder {
         if (StringUtils.isBlank(inPipelineId)) {
             throw new RuntimeException("PipelineId is blank");
         }
-        if (StringUtils.isBlank(inSQSQueueURL)) {
-            throw new RuntimeException("QSQueueURL is blank");
-        }
 
-        presetId = inPresetId;
+        presetIds = new ArrayList<String>(inPresetIds);
+        presetId = presetIds.get(0);
         inputS3Bucket = inInputBucket;
         outputS3Bucket = inOutputBucket;
         pipelineId = inPipelineId;
         sqsQueueURL = inSQSQueueURL;
-        outputFileSuffix = StringUtils.isBlank(inOutputFileSuffix) ? ""
-                : inOutputFileSuffix;
+        outputFileSuffixes = new ArrayList<String>();
+        for (String suffix : inOutputFileSuffixes) {
+            outputFileSuffixes.add(StringUtils.isBlank(suffix) ? "" : suffix);
+        }
+        outputFileSuffix = outputFileSuffixes.get(0);
 
         uniqueFilePrefix = java.util.UUID.randomUUID().toString().replace("-",
                 "")
@@ -234,45 +356,376 @@ public class AWSElasticTranscoder {
         buildInputKeyName();
         buildOutputKeyName();
         transcodedBlob = null;
+        transcodedBlobs = new ArrayList<Blob>();
         step = STEP.INIT;
 
+        trace = TranscodingTracing.get().newTrace("transcoding");
+        trace.getRoot().tag("pipelineId", pipelineId).tag("presetIds",
+                StringUtils.join(presetIds, ",")).tag("inputBytes",
+                blob.getLength());
+
+    }
+
+    /*
+     * Rebuilds the transcoder of a job submitted before a restart
+     */
+    protected AWSElasticTranscoder(TranscodingJob inJob) {
+
+        genericAwsClient = new GenericAWSClient();
+        s3Handler = new AWSS3Handler(genericAwsClient.getS3Client());
+
+        awsJobId = inJob.getAwsJobId();
+        pipelineId = inJob.getPipelineId();
+        sqsQueueURL = inJob.getSqsQueueUrl();
+        inputS3Bucket = inJob.getInputBucket();
+        inputKey = inJob.getInputKey();
+        deleteInputFileOnCleanup = inJob.isDeleteInput();
+        outputS3Bucket = inJob.getOutputBucket();
+        outputKeys = new ArrayList<String>(inJob.getOutputKeys());
+        outputKey = outputKeys.get(0);
+        outputFileSuffixes = new ArrayList<String>(
+                inJob.getOutputFileSuffixes());
+        outputFileSuffix = outputFileSuffixes.get(0);
+        deleteOutputFileOnCleanup = inJob.isDeleteOutput();
+        uniqueFilePrefix = inJob.getUniqueFilePrefix();
+        repositoryName = inJob.getRepositoryName();
+        documentId = inJob.getDocumentId();
+        conversionName = inJob.getConversionName();
+        jobSubmittedAt = inJob.getSubmitted();
+
+        transcodedBlobs = new ArrayList<Blob>();
+        step = STEP.INPUT_FILE_SENT;
+
+        trace = TranscodingTracing.get().newTrace("transcoding");
+        trace.getRoot().tag("pipelineId", pipelineId).tag("jobId", awsJobId).tag(
+                "resumed", true);
     }
 
+    /**
+     * Transcodes the blob and blocks until the transcoded blob is downloaded
+     *
+     * @throws RuntimeException
+     */
     public void transcode() throws RuntimeException {
 
         try {
-            // Send the file to the s3 inputS3Bucket
-            sendFileToInputBucket();
-            step = STEP.INPUT_FILE_SENT;
-
-            // Setup our notification worker.
-            SqsQueueNotificationWorker sqsQueueNotificationWorker = new SqsQueueNotificationWorker(
-                    genericAwsClient.getSQSClient(), sqsQueueURL);
-            Thread notificationThread = new Thread(sqsQueueNotificationWorker);
-            notificationThread.start();
-
-            // Create the job
-            createElasticTranscoderJob();
-
-            // Wait for the job we created to complete.
-            // System.out.println("Waiting for job to complete: " + awsJobId);
-            waitForCompletion(sqsQueueNotificationWorker);
+            transcodeAsync().join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new RuntimeException(e.getCause());
+        }
+
+    }
+
+    /**
+     * Same as {@link #transcodeAsync(Executor)}, using the executor shared by
+     * all the transcoders
+     *
+     * @since 8.3
+     */
+    public CompletableFuture<Blob> transcodeAsync() {
+
+        return transcodeAsync(getTranscodingExecutor());
+    }
+
+    /**
+     * Starts the transcoding and returns immediately.
+     * <p>
+     * The upload and the creation of the job, then the download of the result
+     * are run by <code>inExecutor</code>. No thread is blocked while the job is
+     * running on AWS: the future is completed from the notification of the
+     * end of the job. The S3 files are cleaned up before the future completes.
+     * <p>
+     * If the max. number of transcodings in progress is reached, globally or
+     * for the priority lane of the transcoding (see
+     * {@link TranscodingAdmission}), the transcoding waits in a queue until
+     * another one ends, without blocking the calling thread. If this queue is
+     * full, the future is completed with a
+     * {@link java.util.concurrent.RejectedExecutionException}.
+     *
+     * @param inExecutor
+     * @return a future completed with the transcoded blob
+     * @since 8.3
+     */
+    public CompletableFuture<Blob> transcodeAsync(Executor inExecutor) {
+
+        return transcodeAsync(inExecutor, false);
+    }
+
+    /**
+     * Starts the transcoding, and saves the result in the document set with
+     * {@link #setDocument(String, String, String)} when the job is done, in a
+     * transaction of its own. Returns immediately: Nothing waits for the end
+     * of the job, neither the calling thread nor its transaction.
+     *
+     * @return a future completed once the transcoded blob(s) are saved in the
+     *         document
+     * @throws RuntimeException if no document was set
+     * @since 8.3
+     */
+    public CompletableFuture<Blob> transcodeToDocumentAsync()
+            throws RuntimeException {
+
+        if (StringUtils.isBlank(documentId)) {
+            throw new RuntimeException("No document to save the result in");
+        }
+        return transcodeAsync(getTranscodingExecutor(), true);
+    }
+
+    protected CompletableFuture<Blob> transcodeAsync(Executor inExecutor,
+            boolean inSaveInDocument) {
+
+        useLanePipelinePool();
+        TranscodingAdmission admission = TranscodingAdmission.get();
+        TranscodingSpan span = trace.startSpan("admission").tag("priority",
+                priority.getName());
+        trace.getRoot().tag("priority", priority.getName());
+        CompletableFuture<Blob> result = new CompletableFuture<Blob>();
+        try {
+            admission.submit(priority, () -> {
+                span.end();
+                startTranscoding(inExecutor, inSaveInDocument, admission).whenComplete(
+                        (blob, e) -> {
+                            if (e == null) {
+                                result.complete(blob);
+                            } else {
+                                result.completeExceptionally(e);
+                            }
+                        });
+            });
+        } catch (RejectedExecutionException e) {
+            // Too many transcodings waiting to start
+            span.end(e);
+            trace.end(e);
+            result.completeExceptionally(e);
+        }
+        return result;
+    }
+
+    /*
+     * Run once admitted: Uploads the input and creates the job, then waits
+     * for the end of the job. Never throws, the submission is released when
+     * the returned future completes.
+     */
+    protected CompletableFuture<Blob> startTranscoding(Executor inExecutor,
+            boolean inSaveInDocument, TranscodingAdmission inAdmission) {
+
+        TranscodingMetrics metrics = TranscodingMetrics.get();
+        startedAt = System.nanoTime();
+
+        try {
+            routeToPipeline();
+            return CompletableFuture.runAsync(() -> {
+                // Send the file to the s3 inputS3Bucket
+                TranscodingSpan uploadSpan = trace.startSpan("upload");
+                long start = System.nanoTime();
+                sendFileToInputBucket();
+                step = STEP.INPUT_FILE_SENT;
+                long bytes = inputCopiedOnS3 ? 0 : blob.getLength();
+                metrics.uploaded(bytes, System.nanoTime() - start);
+                uploadSpan.tag("bucket", inputS3Bucket).tag("key", inputKey).tag(
+                        "bytes", bytes).tag("copiedOnS3", inputCopiedOnS3);
+                uploadSpan.end();
+
+                // Create the job
+                TranscodingSpan createJobSpan = trace.startSpan("createjob");
+                start = System.nanoTime();
+                jobSubmittedAt = System.currentTimeMillis();
+                createElasticTranscoderJob();
+                jobCreatedAt = System.nanoTime();
+                metrics.jobCreated(jobCreatedAt - start);
+                createJobSpan.tag("jobId", awsJobId).tag("pipelineId",
+                        pipelineId);
+                createJobSpan.end();
+                trace.getRoot().tag("jobId", awsJobId);
+                jobSpan = trace.startSpan("job").tag("jobId", awsJobId).tag(
+                        "pipelineId", pipelineId);
+                saveJob();
+            }, inExecutor).thenCompose(
+                    v -> completeAsync(inExecutor, true, inSaveInDocument)).whenCompleteAsync(
+                    (blob, e) -> {
+                        try {
+                            if (e == null) {
+                                metrics.succeeded(System.nanoTime()
+                                        - startedAt);
+                            } else {
+                                metrics.failed(jobEndState == JobState.ERROR ? "job."
+                                        + jobErrorCode
+                                        : TranscodingMetrics.getErrorCode(e));
+                            }
+                            cleanup();
+                        } finally {
+                            releasePipeline(e);
+                            inAdmission.releaseSubmission(priority);
+                            trace.end(e);
+                        }
+                    }, inExecutor);
+        } catch (RuntimeException e) {
+            // No pipeline, or rejected by the executor: Nothing was sent to
+            // the pipeline, so this is neither a success nor a failure of it
+            releasePipeline(e, false);
+            inAdmission.releaseSubmission(priority);
+            trace.end(e);
+            CompletableFuture<Blob> failed = new CompletableFuture<Blob>();
+            failed.completeExceptionally(e);
+            return failed;
+        }
+
+    }
+
+    /*
+     * The pool of pipelines of the priority lane, if any, replaces the
+     * pipeline (or pool) of the converter
+     */
+    protected void useLanePipelinePool() throws RuntimeException {
+
+        String name = AWSElasticTranscoderConstants.getPriorityPipelinePool(priority);
+        if (name == null) {
+            return;
+        }
+        PipelinePoolService service = Framework.getService(PipelinePoolService.class);
+        PipelinePool pool = service == null ? null : service.getPool(name);
+        if (pool == null) {
+            throw new RuntimeException("Unknown pipeline pool " + name
+                    + " for the " + priority.getName() + " transcodings");
+        }
+        pipelinePool = pool;
+    }
+
+    /*
+     * Uses the pipeline chosen in the pool, if any, with its buckets and queue
+     */
+    protected void routeToPipeline() {
+
+        if (pipelinePool == null) {
+            return;
+        }
+        pooledPipeline = pipelinePool.acquire();
+        pipelineId = pooledPipeline.getId();
+        inputS3Bucket = pooledPipeline.getInputBucket();
+        outputS3Bucket = pooledPipeline.getOutputBucket();
+        sqsQueueURL = pooledPipeline.getSqsQueueUrl();
+        trace.getRoot().tag("pipelineId", pipelineId).tag("pipelinePool",
+                pipelinePool.getName());
+    }
+
+    /*
+     * Gives the pipeline back to the pool, with the outcome of the job for its
+     * health: The errors of the input (job error codes 4000-4999) and the
+     * local errors are not the pipeline's fault. inError is null if the job
+     * succeeded.
+     */
+    protected void releasePipeline(Throwable inError) {
+
+        releasePipeline(inError, true);
+    }
+
+    /*
+     * inRecordOutcome is false when the transcoding failed before any call
+     * for the pipeline: Only its outstanding jobs count is updated
+     */
+    protected void releasePipeline(Throwable inError, boolean inRecordOutcome) {
+
+        if (pooledPipeline == null) {
+            return;
+        }
+        PooledPipeline pipeline = pooledPipeline;
+        pooledPipeline = null;
+        pipelinePool.release(pipeline);
+        if (!inRecordOutcome) {
+            return;
+        }
+        if (inError == null) {
+            pipelinePool.recordSuccess(pipeline);
+        } else if (jobEndState == JobState.ERROR) {
+            if (jobErrorCode < 4000 || jobErrorCode >= 5000) {
+                pipelinePool.recordFailure(pipeline);
+            }
+        } else {
+            for (Throwable t = inError; t != null; t = t.getCause()) {
+                if (t instanceof AmazonClientException) {
+                    if (AWSThrottling.isThrottling((AmazonClientException) t)) {
+                        pipelinePool.recordThrottled(pipeline);
+                    } else {
+                        pipelinePool.recordFailure(pipeline);
+                    }
+                    break;
+                }
+            }
+        }
+    }
+
+    /*
+     * Waits for the end of the job, then downloads the result (if
+     * inDownload) and saves it in the document (if inSaveInDocument).
+     * Everything but the wait runs on inExecutor.
+     */
+    protected CompletableFuture<Blob> completeAsync(Executor inExecutor,
+            boolean inDownload, boolean inSaveInDocument) {
+
+        return waitForCompletionAsync().thenApplyAsync(state -> {
             step = STEP.TRANSCODING_DONE;
 
             // Get the transcoded video
-            if (jobEndState == JobState.ERROR) {
+            if (state == JobState.ERROR) {
                 throw new RuntimeException(
                         "An error occured while transcoding file " + inputKey);
-            } else {
-                getFileFromOutputBucket();
-                step = STEP.OUTPUT_FILE_DOWNLOADED;
             }
-        } catch (Exception e) {
-            throw new RuntimeException(e);
-        } finally {
-            cleanup();
-        }
+            if (inDownload) {
+                long start = System.nanoTime();
+                try {
+                    getFileFromOutputBucket();
+                } catch (IOException e) {
+                    throw new CompletionException(e);
+                }
+                long length = 0;
+                for (Blob blob : transcodedBlobs) {
+                    length += Math.max(0, blob.getLength());
+                }
+                TranscodingMetrics.get().downloaded(length,
+                        System.nanoTime() - start);
+            }
+            step = STEP.OUTPUT_FILE_DOWNLOADED;
+            if (inDownload && inSaveInDocument) {
+                TranscodingSpan span = trace.startSpan("save").tag(
+                        "documentId", documentId);
+                TranscodedVideoUpdater.save(repositoryName, documentId,
+                        conversionName, transcodedBlobs, outputFileSuffixes);
+                span.end();
+            }
+            return transcodedBlob;
+        }, inExecutor);
+    }
 
+    /**
+     * Resumes a job submitted before a restart of the server (see
+     * {@link TranscodingJobRegistry}): Waits for its completion, saves the
+     * result in the document if the job was started for a document, and
+     * cleans up the S3 files.
+     *
+     * @param inJob
+     * @return a future completed with the transcoded blob (null if there was
+     *         no document to save it in, since nobody waits for it)
+     * @since 8.3
+     */
+    public static CompletableFuture<Blob> resume(TranscodingJob inJob) {
+
+        AWSElasticTranscoder transcoder = new AWSElasticTranscoder(inJob);
+        boolean hasDocument = StringUtils.isNotBlank(inJob.getDocumentId());
+        Executor executor = getTranscodingExecutor();
+        transcoder.jobSpan = transcoder.trace.startSpan("job").tag("jobId",
+                inJob.getAwsJobId()).tag("pipelineId", inJob.getPipelineId());
+
+        return transcoder.completeAsync(executor, hasDocument, hasDocument).whenCompleteAsync(
+                (blob, e) -> {
+                    if (e != null) {
+                        log.error("Error while resuming the job " + inJob, e);
+                    }
+                    transcoder.cleanup();
+                    transcoder.trace.end(e);
+                }, executor);
     }
 
     public boolean done() {
@@ -280,13 +733,27 @@ public class AWSElasticTranscoder {
         return !step.isRunning();
     }
 
+    /**
+     * @return the first transcoded blob (the only one if there is only one
+     *         preset)
+     */
     public Blob getTranscodedBlob() {
 
         return transcodedBlob;
     }
 
+    /**
+     * @return the transcoded blobs, in the same order as the presets
+     * @since 8.3
+     */
+    public List<Blob> getTranscodedBlobs() {
+
+        return transcodedBlobs;
+    }
+
     protected void cleanup() {
 
+        TranscodingSpan span = trace.startSpan("cleanup");
         if (deleteInputFileOnCleanup) {
             deleteInputFileOnS3IfNeeded(true);
         }
@@ -295,7 +762,58 @@ public class AWSElasticTranscoder {
             deleteOutputFileOnS3IfNeeded(true);
         }
 
+        // The job is done (or failed): Nothing to resume after a restart
+        if (awsJobId != null) {
+            TranscodingJobRegistry registry = Framework.getService(TranscodingJobRegistry.class);
+            if (registry != null) {
+                registry.remove(awsJobId);
+            }
+        }
+
         step = STEP.INIT;
+        span.end();
+    }
+
+    /**
+     * @return the trace of the transcoding, exported when it ends
+     * @since 8.3
+     */
+    public TranscodingTrace getTrace() {
+        return trace;
+    }
+
+    /*
+     * Records the job, so it is resumed if the server restarts before the end
+     */
+    protected void saveJob() {
+
+        TranscodingJobRegistry registry = Framework.getService(TranscodingJobRegistry.class);
+        if (registry != null) {
+            registry.save(toJob());
+        }
+    }
+
+    protected TranscodingJob toJob() {
+
+        TranscodingJob job = new TranscodingJob();
+        job.setAwsJobId(awsJobId);
+        job.setPipelineId(pipelineId);
+        job.setSqsQueueUrl(sqsQueueURL);
+        job.setInputBucket(inputS3Bucket);
+        job.setInputKey(inputKey);
+        // Never delete the binary of the blob
+        job.setDeleteInput(deleteInputFileOnCleanup && !inputIsInBinaryStore);
+        job.setOutputBucket(outputS3Bucket);
+        job.setOutputKeys(outputKeys);
+        job.setOutputFileSuffixes(outputFileSuffixes);
+        job.setDeleteOutput(deleteOutputFileOnCleanup);
+        job.setUniqueFilePrefix(uniqueFilePrefix);
+        job.setRepositoryName(repositoryName);
+        job.setDocumentId(documentId);
+        job.setConversionName(conversionName);
+        job.setSubmitted(jobSubmittedAt > 0 ? jobSubmittedAt
+                : System.currentTimeMillis());
+        return job;
     }
 
     /*
@@ -308,7 +826,7 @@ public class AWSElasticTranscoder {
      */
     protected void buildInputKeyName() {
 
-        inputKey = uniqueFilePrefix + fileOfBlob.getName();
+        inputKey = uniqueFilePrefix + sourceFileName;
     }
 
     /*
@@ -322,34 +840,143 @@ public class AWSElasticTranscoder {
      */
     protected void buildOutputKeyName() {
 
-        String key = uniqueFilePrefix + fileOfBlob.getName() + outputFileSuffix;
+        outputKeys = new ArrayList<String>();
+        for (String suffix : outputFileSuffixes) {
+            outputKeys.add(uniqueFilePrefix + sourceFileName + suffix);
+        }
 
-        outputKey = key;
+        outputKey = outputKeys.get(0);
     }
 
     protected String getOutputFileName() {
-        String fileName = outputKey.replace(uniqueFilePrefix, "");
+
+        return getOutputFileName(outputKey);
+    }
+
+    protected String getOutputFileName(String inOutputKey) {
+        String fileName = inOutputKey.replace(uniqueFilePrefix, "");
 
         return fileName;
     }
 
     protected void sendFileToInputBucket() throws RuntimeException {
 
+        if (sendFromBinaryStore()) {
+            inputCopiedOnS3 = true;
+            return;
+        }
+
         s3Handler.setBucket(inputS3Bucket);
-        s3Handler.sendFile(inputKey, fileOfBlob);
+        if (fileOfBlob == null && blob instanceof ManagedBlob) {
+            fileOfBlob = blob.getFile();
+        }
+        if (fileOfBlob != null) {
+            s3Handler.sendFile(inputKey, fileOfBlob);
+        } else {
+            try (InputStream in = blob.getStream()) {
+                s3Handler.sendStream(inputKey, in, blob.getMimeType());
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
 
     }
 
+    /*
+     * When the blob is stored in the S3 binary store, either use it as is (the
+     * binary store is also the input bucket of the pipeline) or copy it to the
+     * input bucket on S3 side. Returns false if the blob must be sent from
+     * this server.
+     */
+    protected boolean sendFromBinaryStore() throws RuntimeException {
+
+        String key = getKeyInBinaryStore();
+        if (key == null) {
+            return false;
+        }
+
+        s3Handler.setBucket(binaryStoreBucket);
+        ObjectMetadata metadata = s3Handler.getMetadataIfExists(key);
+        if (metadata == null) {
+            return false;
+        }
+        // Not the same binary: the bucket is not the one of the blob provider
+        if (blob.getLength() >= 0
+                && metadata.getContentLength() != blob.getLength()) {
+            log.warn("Object " + key + " of bucket " + binaryStoreBucket
+                    + " does not match the blob (" + metadata.getContentLength()
+                    + " bytes instead of " + blob.getLength()
+                    + "), sending the blob instead");
+            return false;
+        }
+
+        if (binaryStoreBucket.equals(inputS3Bucket)) {
+            inputKey = key;
+            inputIsInBinaryStore = true;
+        } else {
+            s3Handler.setBucket(inputS3Bucket);
+            s3Handler.copyFrom(binaryStoreBucket, key, inputKey,
+                    metadata.getContentLength());
+        }
+        return true;
+    }
+
+    /*
+     * Returns the key of the blob in the S3 binary store, null if it cannot
+     * be stored there. The S3 binary manager stores a binary at prefix +
+     * digest, and a managed blob key is its digest, prefixed with the
+     * provider id for non default providers. Only the blobs of the provider
+     * using binaryStoreBucket are there: the others may be stored in another
+     * bucket, or not in S3 at all.
+     */
+    protected String getKeyInBinaryStore() {
+
+        if (StringUtils.isBlank(binaryStoreBucket)
+                || !(blob instanceof ManagedBlob)
+                || AWSElasticTranscoderConstants.isBinaryStoreEncrypted()) {
+            return null;
+        }
+
+        ManagedBlob managedBlob = (ManagedBlob) blob;
+        String key = managedBlob.getKey();
+        if (StringUtils.isBlank(key)
+                || !StringUtils.equals(managedBlob.getProviderId(),
+                        binaryStoreProvider)) {
+            return null;
+        }
+        int colon = key.indexOf(':');
+        if (colon >= 0) {
+            if (!key.substring(0, colon).equals(binaryStoreProvider)) {
+                return null;
+            }
+            key = key.substring(colon + 1);
+        }
+        return StringUtils.defaultString(binaryStorePrefix) + key;
+    }
+
     protected void getFileFromOutputBucket() throws IOException,
             RuntimeException {
 
         s3Handler.setBucket(outputS3Bucket);
-        transcodedBlob = s3Handler.downloadFile(outputKey, getOutputFileName());
+        transcodedBlobs.clear();
+        for (int i = 0; i < outputKeys.size(); i++) {
+            String key = outputKeys.get(i);
+            // The presets are not known for a resumed job
+            TranscodingSpan span = trace.startSpan("download").tag("presetId",
+                    presetIds == null ? null : presetIds.get(i)).tag("key",
+                    key);
+            Blob result = s3Handler.downloadFile(key, getOutputFileName(key));
+            span.tag("bytes", result.getLength());
+            span.end();
+            transcodedBlobs.add(result);
+        }
+        transcodedBlob = transcodedBlobs.get(0);
     }
 
     protected void deleteInputFileOnS3IfNeeded(boolean inIgnoreError) {
 
-        if (step.canDeleteInputFileOnS3()) {
+        // Never delete the binary of the blob
+        if (step.canDeleteInputFileOnS3() && !inputIsInBinaryStore) {
             try {
                 s3Handler.setBucket(inputS3Bucket);
                 s3Handler.deleteFile(inputKey);
@@ -368,15 +995,17 @@ public class AWSElasticTranscoder {
     protected void deleteOutputFileOnS3IfNeeded(boolean inIgnoreError) {
 
         if (step.canDeleteOutputFileOnS3()) {
-            try {
-                s3Handler.setBucket(outputS3Bucket);
-                s3Handler.deleteFile(outputKey);
-            } catch (Exception e) {
-                if (inIgnoreError) {
-                    log.error("Error when deleting file " + outputKey
-                            + " in the S3 output bucket", e);
-                } else {
-                    throw new RuntimeException(e);
+            for (String key : outputKeys) {
+                try {
+                    s3Handler.setBucket(outputS3Bucket);
+                    s3Handler.deleteFile(key);
+                } catch (Exception e) {
+                    if (inIgnoreError) {
+                        log.error("Error when deleting file " + key
+                                + " in the S3 output bucket", e);
+                    } else {
+                        throw new RuntimeException(e);
+                    }
                 }
             }
         }
@@ -390,70 +1019,281 @@ public class AWSElasticTranscoder {
         // Setup the job input
         JobInput jobInput = new JobInput().withKey(inputKey);
 
-        // We create just one job here. Look at the code sample in
-        // JobStatusNotificationsSample.java to see how to create several jobs
-        // in one call.
-        CreateJobOutput output = new CreateJobOutput().withKey(outputKey);
-        output.withPresetId(presetId);
+        // We create just one job here, with one output per preset (the
+        // input is read only once by Elastic Transcoder)
+        List<CreateJobOutput> outputs = new ArrayList<CreateJobOutput>();
+        for (int i = 0; i < presetIds.size(); i++) {
+            outputs.add(new CreateJobOutput().withKey(outputKeys.get(i)).withPresetId(
+                    presetIds.get(i)));
+        }
         // Create a job on the specified pipeline and get the job ID
         CreateJobRequest createJobRequest = new CreateJobRequest();
         createJobRequest.withPipelineId(pipelineId);
         createJobRequest.withInput(jobInput);
-        createJobRequest.withOutput(output);
-
-        CreateJobResult cjr = genericAwsClient.getElasticTranscoder().createJob(
-                createJobRequest);
+        createJobRequest.withOutputs(outputs);
+
+        // Spread the jobs created on the pipeline, and wait if Elastic
+        // Transcoder throttles them anyway (other nodes, other applications)
+        TranscodingSpan span = trace.startSpan("createjob.ratelimit").tag(
+                "pipelineId", pipelineId);
+        TranscodingAdmission.get().acquireCreateJob(pipelineId);
+        span.end();
+        AmazonElasticTranscoder et = genericAwsClient.getElasticTranscoder();
+        CreateJobResult cjr = AWSThrottling.callWithBackoff("CreateJob", () -> {
+            try {
+                return et.createJob(createJobRequest);
+            } catch (AmazonClientException e) {
+                // Route the next jobs to the other pipelines for a while
+                if (pooledPipeline != null && AWSThrottling.isThrottling(e)) {
+                    pipelinePool.recordThrottled(pooledPipeline);
+                }
+                throw e;
+            }
+        });
         awsJobId = cjr.getJob().getId();
 
     }
 
     /**
-     * Waits for the specified job to complete by adding a handler to the SQS
-     * notification worker that is polling for status updates. This method will
-     * block until the specified job completes.
+     * Waits for the specified job to complete. This method will block until
+     * the specified job completes.
      *
-     * @param sqsQueueNotificationWorker
      * @throws InterruptedException
      */
-    protected void waitForCompletion(SqsQueueNotificationWorker inWorker)
-            throws InterruptedException {
+    protected void waitForCompletion() throws InterruptedException {
+
+        try {
+            waitForCompletionAsync().get();
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    /**
+     * Registers a handler to the {@link NotificationDispatcher}, which routes
+     * the status updates of the job, and returns immediately
+     *
+     * @return a future completed with the final state of the job
+     * @since 8.3
+     */
+    protected CompletableFuture<JobState> waitForCompletionAsync() {
+
+        CompletableFuture<JobState> future = new CompletableFuture<JobState>();
+        NotificationDispatcher dispatcher = Framework.getService(NotificationDispatcher.class);
+        // The SQS worker and the poller (watchdog, reconciliation) call the
+        // handler on their own: Only the first terminal state counts
+        AtomicBoolean ended = new AtomicBoolean();
 
         // Create a handler that will wait for this specific job to complete.
-        JobStatusNotificationHandler handler = new JobStatusNotificationHandler() {
-
-            @Override
-            public void handle(JobStatusNotification jobStatusNotification) {
-                if (jobStatusNotification.getJobId().equals(awsJobId)) {
-
-                    /*
-                     * System.out.println("========== <jobStatusNotification>");
-                     * System.out.println(jobStatusNotification);
-                     * System.out.println
-                     * ("========== </jobStatusNotification>");
-                     */
-
-                    if (jobStatusNotification.getState().isTerminalState()) {
-                        jobEndState = jobStatusNotification.getState();
-                        if (jobEndState == JobState.ERROR) {
-                            log.error(jobStatusNotification);
-                        }
-                        synchronized (this) {
-                            notifyAll();
-                        }
-                    }
+        // Without SQS queue, the dispatcher polls Elastic Transcoder
+        dispatcher.register(sqsQueueURL, pipelineId, awsJobId, jobSubmittedAt, jobStatusNotification -> {
+            JobState state = jobStatusNotification.getState();
+            if (state == null) {
+                // Unknown or missing state: Nothing to do with it
+                return;
+            }
+            if (state.isTerminalState() && !ended.compareAndSet(false, true)) {
+                return;
+            }
+            traceNotification(jobStatusNotification);
+            if (state == JobState.PROGRESSING && jobProgressingAt == 0) {
+                jobProgressingAt = System.nanoTime();
+            }
+            if (state.isTerminalState()) {
+                if (state == JobState.ERROR) {
+                    log.error(jobStatusNotification);
+                    jobErrorCode = jobStatusNotification.getErrorCode();
                 }
+                dispatcher.unregister(sqsQueueURL, awsJobId);
+                recordJobEnd();
+                jobEndState = state;
+                future.complete(jobEndState);
+            }
+        });
+
+        return future;
+    }
+
+    /*
+     * A notification received from SQS has its own span, from when SNS sent
+     * it to the queue to now, and the job span ends when the terminal one was
+     * sent: the delivery delay is not counted as transcoding time. A polled
+     * job ends when the poller sees it.
+     */
+    protected void traceNotification(JobStatusNotification inNotification) {
+
+        JobState state = inNotification.getState();
+        long sent = inNotification.getSentTimestamp();
+        if (sent > 0) {
+            long received = inNotification.getReceivedTimestamp();
+            TranscodingSpan span = trace.startSpan("notification", sent).tag(
+                    "jobId", awsJobId).tag("state", state).tag("sentAt", sent);
+            if (received > 0) {
+                span.tag("receivedAt", received).tag("sqsDelayMs",
+                        received - sent);
             }
-        };
-        inWorker.addHandler(handler);
+            span.end();
+        }
+
+        TranscodingSpan span = jobSpan;
+        if (span == null) {
+            return;
+        }
+        long at = sent > 0 ? sent : System.currentTimeMillis();
+        if (state == JobState.PROGRESSING && span.getTag("queuedMs") == null) {
+            span.tag("queuedMs", at - span.getStartTime());
+        } else if (state != null && state.isTerminalState()) {
+            span.tag("state", state).tag("detectedBy",
+                    sent > 0 ? "notification" : "polling");
+            if (state == JobState.ERROR) {
+                span.tag("errorCode", inNotification.getErrorCode());
+            }
+            span.endAt(at);
+        }
+    }
+
+    protected void recordJobEnd() {
 
-        // Wait for job to complete.
-        synchronized (handler) {
-            handler.wait();
+        // Not known for a resumed job
+        if (jobCreatedAt == 0) {
+            return;
         }
+        long now = System.nanoTime();
+        long progressingAt = jobProgressingAt;
+        TranscodingMetrics.get().jobEnded(
+                progressingAt > 0 ? progressingAt - jobCreatedAt : -1,
+                progressingAt > 0 ? now - progressingAt : -1,
+                now - jobCreatedAt);
+    }
+
+    /**
+     * The executor shared by all the transcoders, sized with the
+     * <code>aws.transcoder.threads</code> configuration parameter. These
+     * threads only upload/download files and create jobs, they never wait for
+     * the end of a job.
+     *
+     * @since 8.3
+     */
+    public static Executor getTranscodingExecutor() {
+
+        if (transcodingExecutor == null) {
+            synchronized (AWSElasticTranscoder.class) {
+                if (transcodingExecutor == null) {
+                    transcodingExecutor = Executors.newFixedThreadPool(
+                            AWSElasticTranscoderConstants.getTranscodingThreads(),
+                            new ThreadFactoryBuilder().setNameFormat(
+                                    "NxAWSET-transcoding-%d").setDaemon(true).build());
+                }
+            }
+        }
+        return transcodingExecutor;
+    }
 
-        // When job completes, shutdown the sqs notification worker.
-        inWorker.shutdown();
+    /**
+     * Input files of this size (in bytes) or bigger are sent with a multipart
+     * upload. 0 or less disables the multipart upload.
+     *
+     * @since 8.3
+     */
+    public void setMultipartThreshold(long inBytes) {
+        s3Handler.setMultipartThreshold(inBytes);
+    }
 
+    /**
+     * @since 8.3
+     */
+    public void setMultipartPartSize(long inBytes) {
+        s3Handler.setMultipartPartSize(inBytes);
+    }
+
+    /**
+     * @since 8.3
+     */
+    public void setMultipartParallelism(int inValue) {
+        s3Handler.setMultipartParallelism(inValue);
+    }
+
+    /**
+     * Outputs of this size (in bytes) or bigger are downloaded by ranges, in
+     * parallel. 0 or less disables the ranged download.
+     *
+     * @since 8.3
+     */
+    public void setRangedDownloadThreshold(long inBytes) {
+        s3Handler.setRangedDownloadThreshold(inBytes);
+    }
+
+    /**
+     * The S3 bucket (and prefix) used by the Nuxeo S3 binary manager. Default
+     * values are read from nuxeo.conf (the binary manager configuration). When
+     * the blob is stored there, it is not sent from this server: it is copied
+     * on S3 side to the input bucket, or used as is if the binary store is the
+     * input bucket of the pipeline.
+     * <p>
+     * A blank bucket disables this.
+     *
+     * @since 8.3
+     */
+    public void setBinaryStore(String inBucket, String inPrefix) {
+        binaryStoreBucket = inBucket;
+        binaryStorePrefix = inPrefix;
+    }
+
+    /**
+     * Same as {@link #setBinaryStore(String, String)}, for the blobs of the
+     * given blob provider only: The blobs of other providers are sent from
+     * this server. Default: <code>default</code>
+     *
+     * @since 8.3
+     */
+    public void setBinaryStore(String inBucket, String inPrefix,
+            String inProviderId) {
+        setBinaryStore(inBucket, inPrefix);
+        binaryStoreProvider = inProviderId;
+    }
+
+    /**
+     * The pipeline, and its buckets and queue, are chosen in the pool when the
+     * transcoding starts: They replace the ones given to the constructor.
+     *
+     * @since 8.3
+     */
+    public void setPipelinePool(PipelinePool inPool) {
+        pipelinePool = inPool;
+    }
+
+    /**
+     * Sets the lane of the transcoding (default: <code>AUTOMATIC</code>). It
+     * has its own quota of transcodings in progress, and may use its own
+     * pipelines (<code>aws.transcoder.priority.&lt;lane&gt;.pipelinepool</code>).
+     *
+     * @since 8.3
+     */
+    public void setPriority(TranscodingPriority inPriority) {
+        priority = inPriority == null ? TranscodingPriority.AUTOMATIC
+                : inPriority;
+    }
+
+    /**
+     * @since 8.3
+     */
+    public TranscodingPriority getPriority() {
+        return priority;
+    }
+
+    /**
+     * Sets the document waiting for the transcoded blob(s). If the server
+     * restarts while the job is running, the job is resumed at startup and the
+     * result is saved in the <code>vid:transcodedVideos</code> field of this
+     * document, under <code>inConversionName</code>.
+     *
+     * @since 8.3
+     */
+    public void setDocument(String inRepositoryName, String inDocumentId,
+            String inConversionName) {
+        repositoryName = inRepositoryName;
+        documentId = inDocumentId;
+        conversionName = inConversionName;
     }
 
     public boolean getDeleteInputFileOnCleanup() {
@@ -40,6 +40,39 @@ public class AWSElasticTranscoderConstants {
 
     public static final String AWS_ENV_VAR_SECRET_KEY = "AWS_SECRET_ACCESS_KEY";
 
+    // ================================================== AWS CLIENTS
+    // Region of the S3, SQS and Elastic Transcoder clients (us-east-1,
+    // eu-west-1, ...). SDK default if not set
+    public static final String CONF_KEY_REGION = "aws.transcoder.region";
+
+    // Max. connections of each client's pool (shared by all the transcoders)
+    public static final String CONF_KEY_CLIENT_MAX_CONNECTIONS = "aws.transcoder.client.maxconnections";
+
+    public static final String CONF_KEY_CLIENT_CONNECTION_TIMEOUT = "aws.transcoder.client.connectiontimeout.ms";
+
+    public static final String CONF_KEY_CLIENT_SOCKET_TIMEOUT = "aws.transcoder.client.sockettimeout.ms";
+
+    public static final String CONF_KEY_CLIENT_TCP_KEEP_ALIVE = "aws.transcoder.client.tcpkeepalive";
+
+    // Class name of the AWSClientBackend, or one of the shortcuts below
+    public static final String CONF_KEY_BACKEND = "aws.transcoder.backend";
+
+    public static final String BACKEND_AWS = "aws";
+
+    public static final String BACKEND_LOCAL = "local";
+
+    // Time taken by a job with the local backend
+    public static final String CONF_KEY_LOCAL_JOB_DURATION_MS = "aws.transcoder.local.jobduration.ms";
+
+    public static final int DEFAULT_LOCAL_JOB_DURATION_MS = 1000;
+
+    public static final int DEFAULT_CLIENT_MAX_CONNECTIONS = 100;
+
+    public static final int DEFAULT_CLIENT_CONNECTION_TIMEOUT = 10000;
+
+    // Must be longer than the SQS long polling wait
+    public static final int DEFAULT_CLIENT_SOCKET_TIMEOUT = 50000;
+
     // ================================================== OTHER KEYS
     public static final String CONF_KEY_INPUT_BUCKET = "aws.transcoder.default.bucket.input";
 
@@ -55,6 +88,181 @@ public class AWSElasticTranscoderConstants {
 
     public static final String CONF_KEY_DELETE_OUTPUT_FILE_WHEN_DONE = "aws.transcoder.default.deleteoutputfilewhendone";
 
+    // ================================================== TUNING
+    // Threads running the upload/job creation/download stages of the
+    // asynchronous transcodes
+    public static final String CONF_KEY_TRANSCODING_THREADS = "aws.transcoder.threads";
+
+    public static final int DEFAULT_TRANSCODING_THREADS = 10;
+
+    // Consumers of the SQS notification queues (per queue): Threads calling
+    // ReceiveMessage, messages per call (max. 10), visibility timeout and long
+    // polling wait (seconds), threads calling the handlers, and max. number of
+    // messages received and not handled yet
+    public static final String CONF_KEY_SQS_RECEIVERS = "aws.transcoder.sqs.receivers";
+
+    public static final String CONF_KEY_SQS_BATCH_SIZE = "aws.transcoder.sqs.batchsize";
+
+    public static final String CONF_KEY_SQS_VISIBILITY_TIMEOUT = "aws.transcoder.sqs.visibilitytimeout";
+
+    public static final String CONF_KEY_SQS_WAIT_TIME = "aws.transcoder.sqs.waittime";
+
+    public static final String CONF_KEY_SQS_HANDLER_THREADS = "aws.transcoder.sqs.handlers";
+
+    public static final String CONF_KEY_SQS_HANDOFF_CAPACITY = "aws.transcoder.sqs.handoff.capacity";
+
+    // A terminal notification received this many times (all nodes included)
+    // without any node waiting for its job is deleted
+    public static final String CONF_KEY_SQS_MAX_UNHANDLED_RECEIVES = "aws.transcoder.sqs.unhandled.maxreceives";
+
+    public static final int DEFAULT_SQS_RECEIVERS = 1;
+
+    public static final int MAX_SQS_BATCH_SIZE = 10;
+
+    public static final int DEFAULT_SQS_BATCH_SIZE = 10;
+
+    public static final int DEFAULT_SQS_VISIBILITY_TIMEOUT = 15;
+
+    public static final int MAX_SQS_WAIT_TIME = 20;
+
+    public static final int DEFAULT_SQS_WAIT_TIME = 15;
+
+    public static final int DEFAULT_SQS_HANDLER_THREADS = 2;
+
+    public static final int DEFAULT_SQS_HANDOFF_CAPACITY = 100;
+
+    public static final int DEFAULT_SQS_MAX_UNHANDLED_RECEIVES = 10;
+
+    // Completion detection by polling Elastic Transcoder (ReadJob and
+    // ListJobsByPipeline): used when a job has no SQS queue, and as a watchdog
+    // for the jobs waiting for SQS notifications. Delays are in ms, a
+    // watchdog delay <= 0 disables the watchdog.
+    public static final String CONF_KEY_POLLING_INITIAL_DELAY_MS = "aws.transcoder.polling.initialdelay.ms";
+
+    public static final String CONF_KEY_POLLING_MAX_INTERVAL_MS = "aws.transcoder.polling.maxinterval.ms";
+
+    public static final String CONF_KEY_POLLING_WATCHDOG_DELAY_MS = "aws.transcoder.polling.watchdog.ms";
+
+    // Max. time to wait for the end of a job. <= 0 means no limit.
+    public static final String CONF_KEY_JOB_MAX_WAIT_MINUTES = "aws.transcoder.job.maxwait.minutes";
+
+    public static final int DEFAULT_POLLING_INITIAL_DELAY_MS = 5000;
+
+    public static final int DEFAULT_POLLING_MAX_INTERVAL_MS = 60000;
+
+    public static final int DEFAULT_POLLING_WATCHDOG_DELAY_MS = 300000;
+
+    public static final int DEFAULT_JOB_MAX_WAIT_MINUTES = 720;
+
+    // Interval between two reconciliations of all the pending jobs with
+    // ListJobsByStatus. <= 0 disables it.
+    public static final String CONF_KEY_RECONCILE_INTERVAL_MS = "aws.transcoder.reconcile.interval.ms";
+
+    public static final int DEFAULT_RECONCILE_INTERVAL_MS = 60000;
+
+    // Admission control. Max. number of CreateJob calls per second and per
+    // pipeline (<= 0: no limit), max. number of transcodings in progress on
+    // this node (from the upload of the input to the cleanup; <= 0: no limit)
+    // and max. number of transcodings waiting to start (the next ones are
+    // rejected)
+    public static final String CONF_KEY_CREATE_JOB_RATE = "aws.transcoder.pipeline.createjob.rate";
+
+    public static final String CONF_KEY_MAX_SUBMISSIONS = "aws.transcoder.max.submissions";
+
+    public static final String CONF_KEY_MAX_PENDING_SUBMISSIONS = "aws.transcoder.max.pending.submissions";
+
+    // Retries of the calls throttled by AWS (CreateJob, PutObject, GetObject),
+    // with an exponential backoff starting at the base delay (in ms)
+    public static final String CONF_KEY_THROTTLING_MAX_RETRIES = "aws.transcoder.throttling.maxretries";
+
+    public static final String CONF_KEY_THROTTLING_BASE_DELAY_MS = "aws.transcoder.throttling.basedelay.ms";
+
+    public static final int DEFAULT_CREATE_JOB_RATE = 4;
+
+    public static final int DEFAULT_MAX_SUBMISSIONS = 100;
+
+    public static final int DEFAULT_MAX_PENDING_SUBMISSIONS = 1000;
+
+    public static final int DEFAULT_THROTTLING_MAX_RETRIES = 8;
+
+    public static final int DEFAULT_THROTTLING_BASE_DELAY_MS = 200;
+
+    public static final int MAX_THROTTLING_DELAY_MS = 30000;
+
+    // Priority lanes: aws.transcoder.priority.<lane>.max.submissions is the
+    // quota of transcodings in progress of the lane (<= 0, the default: no
+    // quota, only the global limit applies), and
+    // aws.transcoder.priority.<lane>.pipelinepool the pool of pipelines it
+    // uses instead of the one of the converter (see TranscodingPriority)
+    public static final String CONF_KEY_PRIORITY_PREFIX = "aws.transcoder.priority.";
+
+    public static final String CONF_KEY_PRIORITY_MAX_SUBMISSIONS_SUFFIX = ".max.submissions";
+
+    public static final String CONF_KEY_PRIORITY_PIPELINE_POOL_SUFFIX = ".pipelinepool";
+
+    public static final int DEFAULT_PRIORITY_MAX_SUBMISSIONS = 0;
+
+    // Cache of the transcoded blobs, by digest of the video and preset. A max.
+    // size <= 0 disables the cache, a max. age <= 0 means no age limit.
+    public static final String CONF_KEY_CACHE_MAX_SIZE_MB = "aws.transcoder.cache.maxsize.mb";
+
+    public static final String CONF_KEY_CACHE_MAX_AGE_DAYS = "aws.transcoder.cache.maxage.days";
+
+    public static final int DEFAULT_CACHE_MAX_SIZE_MB = 10240;
+
+    public static final int DEFAULT_CACHE_MAX_AGE_DAYS = 30;
+
+    // Traces of the transcodings (one span per step). The exporter is "log"
+    // (default), "none", or the class name of a TraceExporter
+    public static final String CONF_KEY_TRACING_EXPORTER = "aws.transcoder.tracing.exporter";
+
+    public static final String TRACING_EXPORTER_LOG = "log";
+
+    public static final String TRACING_EXPORTER_NONE = "none";
+
+    // Multipart upload to S3. Sizes are in MB. A threshold <= 0 disables it.
+    public static final String CONF_KEY_MULTIPART_THRESHOLD_MB = "aws.transcoder.default.multipart.threshold.mb";
+
+    public static final String CONF_KEY_MULTIPART_PART_SIZE_MB = "aws.transcoder.default.multipart.partsize.mb";
+
+    public static final String CONF_KEY_MULTIPART_PARALLELISM = "aws.transcoder.default.multipart.parallelism";
+
+    // Outputs of this size or bigger are downloaded by ranges, in parallel
+    // (using the multipart part size and parallelism). <= 0 disables it.
+    public static final String CONF_KEY_RANGED_DOWNLOAD_THRESHOLD_MB = "aws.transcoder.default.download.ranged.threshold.mb";
+
+    // Retries for each part of a multipart transfer
+    public static final String CONF_KEY_S3_PART_MAX_RETRIES = "aws.transcoder.default.s3.part.maxretries";
+
+    public static final int DEFAULT_MULTIPART_THRESHOLD_MB = 100;
+
+    // S3 minimum is 5MB (except for the last part)
+    public static final int MIN_MULTIPART_PART_SIZE_MB = 5;
+
+    public static final int DEFAULT_MULTIPART_PART_SIZE_MB = 16;
+
+    public static final int DEFAULT_MULTIPART_PARALLELISM = 4;
+
+    public static final int DEFAULT_S3_PART_MAX_RETRIES = 3;
+
+    public static final int DEFAULT_RANGED_DOWNLOAD_THRESHOLD_MB = 100;
+
+    // ================================================== S3 BINARY STORE
+    // Same keys as the Nuxeo S3 binary manager: If the blob to transcode is
+    // stored there, it is not sent from the server
+    public static final String CONF_KEY_BINARY_STORE_BUCKET = "nuxeo.s3storage.bucket";
+
+    public static final String CONF_KEY_BINARY_STORE_PREFIX = "nuxeo.s3storage.bucket_prefix";
+
+    // Elastic Transcoder cannot read binaries encrypted client-side
+    public static final String CONF_KEY_BINARY_STORE_KEYSTORE = "nuxeo.s3storage.crypt.keystore.file";
+
+    // The blob provider using this bucket: The blobs of the other providers
+    // are stored elsewhere, and are sent from the server
+    public static final String CONF_KEY_BINARY_STORE_PROVIDER = "aws.transcoder.binarystore.provider";
+
+    public static final String DEFAULT_BINARY_STORE_PROVIDER = "default";
+
     // ================================================== Loaded values
     private static String inputBucket;
 
@@ -138,4 +346,223 @@ public class AWSElasticTranscoderConstants {
         return deleteOutputFileWhenDone;
     }
 
+    public static int getTranscodingThreads() {
+        return getIntProperty(CONF_KEY_TRANSCODING_THREADS,
+                DEFAULT_TRANSCODING_THREADS);
+    }
+
+    public static int getSqsReceivers() {
+        return Math.max(1, getIntProperty(CONF_KEY_SQS_RECEIVERS,
+                DEFAULT_SQS_RECEIVERS));
+    }
+
+    public static int getSqsBatchSize() {
+        int value = getIntProperty(CONF_KEY_SQS_BATCH_SIZE,
+                DEFAULT_SQS_BATCH_SIZE);
+        return Math.max(1, Math.min(value, MAX_SQS_BATCH_SIZE));
+    }
+
+    public static int getSqsVisibilityTimeout() {
+        return Math.max(1, getIntProperty(CONF_KEY_SQS_VISIBILITY_TIMEOUT,
+                DEFAULT_SQS_VISIBILITY_TIMEOUT));
+    }
+
+    public static int getSqsWaitTime() {
+        int value = getIntProperty(CONF_KEY_SQS_WAIT_TIME,
+                DEFAULT_SQS_WAIT_TIME);
+        return Math.max(0, Math.min(value, MAX_SQS_WAIT_TIME));
+    }
+
+    public static int getSqsHandlerThreads() {
+        return Math.max(1, getIntProperty(CONF_KEY_SQS_HANDLER_THREADS,
+                DEFAULT_SQS_HANDLER_THREADS));
+    }
+
+    public static int getSqsHandoffCapacity() {
+        return Math.max(1, getIntProperty(CONF_KEY_SQS_HANDOFF_CAPACITY,
+                DEFAULT_SQS_HANDOFF_CAPACITY));
+    }
+
+    public static int getSqsMaxUnhandledReceives() {
+        return Math.max(1, getIntProperty(CONF_KEY_SQS_MAX_UNHANDLED_RECEIVES,
+                DEFAULT_SQS_MAX_UNHANDLED_RECEIVES));
+    }
+
+    public static int getPollingInitialDelayMs() {
+        return Math.max(100, getIntProperty(CONF_KEY_POLLING_INITIAL_DELAY_MS,
+                DEFAULT_POLLING_INITIAL_DELAY_MS));
+    }
+
+    public static int getPollingMaxIntervalMs() {
+        return Math.max(getPollingInitialDelayMs(), getIntProperty(
+                CONF_KEY_POLLING_MAX_INTERVAL_MS,
+                DEFAULT_POLLING_MAX_INTERVAL_MS));
+    }
+
+    public static int getPollingWatchdogDelayMs() {
+        return getIntProperty(CONF_KEY_POLLING_WATCHDOG_DELAY_MS,
+                DEFAULT_POLLING_WATCHDOG_DELAY_MS);
+    }
+
+    public static int getJobMaxWaitMinutes() {
+        return getIntProperty(CONF_KEY_JOB_MAX_WAIT_MINUTES,
+                DEFAULT_JOB_MAX_WAIT_MINUTES);
+    }
+
+    public static int getReconcileIntervalMs() {
+        return getIntProperty(CONF_KEY_RECONCILE_INTERVAL_MS,
+                DEFAULT_RECONCILE_INTERVAL_MS);
+    }
+
+    public static int getCreateJobRate() {
+        return getIntProperty(CONF_KEY_CREATE_JOB_RATE,
+                DEFAULT_CREATE_JOB_RATE);
+    }
+
+    public static int getMaxSubmissions() {
+        return getIntProperty(CONF_KEY_MAX_SUBMISSIONS,
+                DEFAULT_MAX_SUBMISSIONS);
+    }
+
+    public static int getMaxPendingSubmissions() {
+        return getIntProperty(CONF_KEY_MAX_PENDING_SUBMISSIONS,
+                DEFAULT_MAX_PENDING_SUBMISSIONS);
+    }
+
+    public static int getPriorityMaxSubmissions(TranscodingPriority inPriority) {
+        return getIntProperty(CONF_KEY_PRIORITY_PREFIX + inPriority.getName()
+                + CONF_KEY_PRIORITY_MAX_SUBMISSIONS_SUFFIX,
+                DEFAULT_PRIORITY_MAX_SUBMISSIONS);
+    }
+
+    public static String getPriorityPipelinePool(TranscodingPriority inPriority) {
+        return StringUtils.trimToNull(Framework.getProperty(CONF_KEY_PRIORITY_PREFIX
+                + inPriority.getName() + CONF_KEY_PRIORITY_PIPELINE_POOL_SUFFIX));
+    }
+
+    public static int getThrottlingMaxRetries() {
+        return Math.max(0, getIntProperty(CONF_KEY_THROTTLING_MAX_RETRIES,
+                DEFAULT_THROTTLING_MAX_RETRIES));
+    }
+
+    public static int getThrottlingBaseDelayMs() {
+        return Math.max(1, getIntProperty(CONF_KEY_THROTTLING_BASE_DELAY_MS,
+                DEFAULT_THROTTLING_BASE_DELAY_MS));
+    }
+
+    public static int getCacheMaxSizeMB() {
+        return getIntProperty(CONF_KEY_CACHE_MAX_SIZE_MB,
+                DEFAULT_CACHE_MAX_SIZE_MB);
+    }
+
+    public static int getCacheMaxAgeDays() {
+        return getIntProperty(CONF_KEY_CACHE_MAX_AGE_DAYS,
+                DEFAULT_CACHE_MAX_AGE_DAYS);
+    }
+
+    /**
+     * Reads an integer in the configuration, returns the default value if it
+     * is not set or invalid
+     *
+     * @since 8.3
+     */
+    public static int getIntProperty(String inKey, int inDefault) {
+
+        String str = Framework.getProperty(inKey);
+        if (StringUtils.isNotBlank(str)) {
+            try {
+                return Integer.parseInt(str.trim());
+            } catch (NumberFormatException e) {
+                // Use the default
+            }
+        }
+        return inDefault;
+    }
+
+    public static int getDefaultMultipartThresholdMB() {
+        return getIntProperty(CONF_KEY_MULTIPART_THRESHOLD_MB,
+                DEFAULT_MULTIPART_THRESHOLD_MB);
+    }
+
+    public static int getDefaultMultipartPartSizeMB() {
+        return Math.max(
+                MIN_MULTIPART_PART_SIZE_MB,
+                getIntProperty(CONF_KEY_MULTIPART_PART_SIZE_MB,
+                        DEFAULT_MULTIPART_PART_SIZE_MB));
+    }
+
+    public static int getDefaultMultipartParallelism() {
+        return Math.max(
+                1,
+                getIntProperty(CONF_KEY_MULTIPART_PARALLELISM,
+                        DEFAULT_MULTIPART_PARALLELISM));
+    }
+
+    public static int getDefaultS3PartMaxRetries() {
+        return Math.max(
+                0,
+                getIntProperty(CONF_KEY_S3_PART_MAX_RETRIES,
+                        DEFAULT_S3_PART_MAX_RETRIES));
+    }
+
+    public static int getDefaultRangedDownloadThresholdMB() {
+        return getIntProperty(CONF_KEY_RANGED_DOWNLOAD_THRESHOLD_MB,
+                DEFAULT_RANGED_DOWNLOAD_THRESHOLD_MB);
+    }
+
+    public static String getBinaryStoreBucket() {
+        return Framework.getProperty(CONF_KEY_BINARY_STORE_BUCKET);
+    }
+
+    public static String getBinaryStorePrefix() {
+        return Framework.getProperty(CONF_KEY_BINARY_STORE_PREFIX, "");
+    }
+
+    public static String getBinaryStoreProvider() {
+        return Framework.getProperty(CONF_KEY_BINARY_STORE_PROVIDER,
+                DEFAULT_BINARY_STORE_PROVIDER);
+    }
+
+    public static boolean isBinaryStoreEncrypted() {
+        return StringUtils.isNotBlank(Framework.getProperty(CONF_KEY_BINARY_STORE_KEYSTORE));
+    }
+
+    public static String getRegion() {
+        return Framework.getProperty(CONF_KEY_REGION);
+    }
+
+    public static int getClientMaxConnections() {
+        return getIntProperty(CONF_KEY_CLIENT_MAX_CONNECTIONS,
+                DEFAULT_CLIENT_MAX_CONNECTIONS);
+    }
+
+    public static int getClientConnectionTimeout() {
+        return getIntProperty(CONF_KEY_CLIENT_CONNECTION_TIMEOUT,
+                DEFAULT_CLIENT_CONNECTION_TIMEOUT);
+    }
+
+    public static int getClientSocketTimeout() {
+        return getIntProperty(CONF_KEY_CLIENT_SOCKET_TIMEOUT,
+                DEFAULT_CLIENT_SOCKET_TIMEOUT);
+    }
+
+    public static boolean getClientTcpKeepAlive() {
+        String str = Framework.getProperty(CONF_KEY_CLIENT_TCP_KEEP_ALIVE);
+        return StringUtils.isBlank(str) || str.toLowerCase().equals("true");
+    }
+
+    public static String getTracingExporter() {
+        return Framework.getProperty(CONF_KEY_TRACING_EXPORTER,
+                TRACING_EXPORTER_LOG);
+    }
+
+    public static String getBackend() {
+        return Framework.getProperty(CONF_KEY_BACKEND, BACKEND_AWS);
+    }
+
+    public static int getLocalJobDurationMs() {
+        return getIntProperty(CONF_KEY_LOCAL_JOB_DURATION_MS,
+                DEFAULT_LOCAL_JOB_DURATION_MS);
+    }
+
 }
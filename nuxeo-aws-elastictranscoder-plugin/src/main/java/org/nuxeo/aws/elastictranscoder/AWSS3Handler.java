@@ -16,10 +16,29 @@
  */
 package org.nuxeo.aws.elastictranscoder;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.apache.commons.lang.StringUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
 import org.nuxeo.ecm.core.api.Blob;
 import org.nuxeo.ecm.core.api.Blobs;
 import org.nuxeo.ecm.core.api.impl.blob.FileBlob;
@@ -28,10 +47,19 @@ import org.nuxeo.runtime.api.Framework;
 import com.amazonaws.AmazonClientException;
 import com.amazonaws.AmazonServiceException;
 import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CopyObjectRequest;
+import com.amazonaws.services.s3.model.CopyPartRequest;
 import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
 import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PartETag;
 import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.UploadPartRequest;
 import com.google.common.io.Files;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 /**
  * Generic code, encapsulates send/get/delete file in a S3 bucket
@@ -43,10 +71,51 @@ import com.google.common.io.Files;
  */
 public class AWSS3Handler {
 
+    private static final Log log = LogFactory.getLog(AWSS3Handler.class);
+
+    protected static final long MB = 1024L * 1024L;
+
+    protected static final long PART_RETRY_BASE_DELAY_MS = 500;
+
+    protected static final int BUFFER_SIZE = 64 * 1024;
+
+    protected static final long MAX_SINGLE_COPY_SIZE = 5L * 1024L * MB;
+
+    protected static final long COPY_PART_SIZE = 512L * MB;
+
+    // Max. number of parts of a multipart upload (S3 limit)
+    protected static final int MAX_PARTS = 10000;
+
+    private static volatile ExecutorService partsExecutor;
+
     protected String bucket;
 
     protected AmazonS3 amazonS3;
 
+    protected long multipartThreshold = AWSElasticTranscoderConstants.getDefaultMultipartThresholdMB()
+            * MB;
+
+    protected long multipartPartSize = AWSElasticTranscoderConstants.getDefaultMultipartPartSizeMB()
+            * MB;
+
+    protected int multipartParallelism = AWSElasticTranscoderConstants.getDefaultMultipartParallelism();
+
+    protected int partMaxRetries = AWSElasticTranscoderConstants.getDefaultS3PartMaxRetries();
+
+    protected long rangedDownloadThreshold = AWSElasticTranscoderConstants.getDefaultRangedDownloadThresholdMB()
+            * MB;
+
+    /**
+     * Transfers one part of a multipart upload or download
+     *
+     * @since 8.3
+     */
+    @FunctionalInterface
+    protected interface PartTransfer {
+        void transfer(int inPartNumber) throws AmazonClientException,
+                UncheckedIOException;
+    }
+
     public AWSS3Handler(AmazonS3 inS3, String inBucket) {
 
         amazonS3 = inS3;
@@ -62,18 +131,403 @@ public class AWSS3Handler {
         bucket = inBucket;
     }
 
+    /**
+     * @param inBytes files of this size or bigger are sent with a multipart
+     *            upload. 0 or less disables the multipart upload
+     * @since 8.3
+     */
+    public void setMultipartThreshold(long inBytes) {
+        multipartThreshold = inBytes;
+    }
+
+    /**
+     * @param inBytes size of each part. S3 requires at least 5MB
+     * @since 8.3
+     */
+    public void setMultipartPartSize(long inBytes) {
+        multipartPartSize = Math.max(inBytes,
+                AWSElasticTranscoderConstants.MIN_MULTIPART_PART_SIZE_MB * MB);
+    }
+
+    /**
+     * @param inValue max. number of parts transferred at the same time
+     * @since 8.3
+     */
+    public void setMultipartParallelism(int inValue) {
+        multipartParallelism = Math.max(1, inValue);
+    }
+
+    /**
+     * @param inBytes files of this size or bigger are downloaded by ranges, in
+     *            parallel. 0 or less disables the ranged download
+     * @since 8.3
+     */
+    public void setRangedDownloadThreshold(long inBytes) {
+        rangedDownloadThreshold = inBytes;
+    }
+
+    /**
+     * @param inValue number of retries of a part before failing the transfer
+     * @since 8.3
+     */
+    public void setPartMaxRetries(int inValue) {
+        partMaxRetries = Math.max(0, inValue);
+    }
+
+    /**
+     * @param inLength size of the object
+     * @param inPartSize part size wanted
+     * @return <code>inPartSize</code>, or the size sending the object in
+     *         10,000 parts (the max. for S3) if it would need more
+     * @since 8.3
+     */
+    public static long getPartSize(long inLength, long inPartSize) {
+        return Math.max(inPartSize, (inLength + MAX_PARTS - 1) / MAX_PARTS);
+    }
+
+    /*
+     * Shared by all the handlers. The number of threads used by one transfer
+     * is bounded by multipartParallelism.
+     */
+    protected static ExecutorService getPartsExecutor() {
+
+        if (partsExecutor == null) {
+            synchronized (AWSS3Handler.class) {
+                if (partsExecutor == null) {
+                    partsExecutor = Executors.newCachedThreadPool(new ThreadFactoryBuilder().setNameFormat(
+                            "NxAWSET-s3-part-%d").setDaemon(true).build());
+                }
+            }
+        }
+        return partsExecutor;
+    }
+
+    /**
+     * Sends the file to the bucket. Uses a multipart upload if the file is
+     * bigger than the multipart threshold.
+     *
+     * @param inKey
+     * @param inFile
+     * @throws RuntimeException
+     */
     public void sendFile(String inKey, File inFile) throws RuntimeException {
 
+        if (multipartThreshold > 0 && inFile.length() >= multipartThreshold) {
+            sendFileMultipart(inKey, inFile);
+            return;
+        }
+
         try {
-            amazonS3.putObject(new PutObjectRequest(bucket, inKey, inFile));
+            AWSThrottling.callWithBackoff("PutObject",
+                    () -> amazonS3.putObject(new PutObjectRequest(bucket,
+                            inKey, inFile)));
 
         } catch (AmazonServiceException ase) {
             String message = GenericAWSClient.buildDetailedMessageFromAWSException(ase);
-            throw new RuntimeException(message);
+            throw new RuntimeException(message, ase);
 
         } catch (AmazonClientException ace) {
             String message = GenericAWSClient.buildDetailedMessageFromAWSException(ace);
-            throw new RuntimeException(message);
+            throw new RuntimeException(message, ace);
+        }
+    }
+
+    /**
+     * Sends the file in parts of <code>multipartPartSize</code> bytes (bigger
+     * if the file would need more than 10,000 parts), using up to
+     * <code>multipartParallelism</code> connections. Each part is retried
+     * <code>partMaxRetries</code> times. If a part still fails, the upload is
+     * aborted, so no orphan parts are left (and billed) on S3.
+     *
+     * @param inKey
+     * @param inFile
+     * @throws RuntimeException
+     * @since 8.3
+     */
+    public void sendFileMultipart(String inKey, File inFile)
+            throws RuntimeException {
+
+        String uploadId;
+        try {
+            uploadId = amazonS3.initiateMultipartUpload(
+                    new InitiateMultipartUploadRequest(bucket, inKey)).getUploadId();
+        } catch (AmazonClientException e) {
+            throw new RuntimeException(
+                    GenericAWSClient.buildDetailedMessageFromAWSException(e), e);
+        }
+
+        long fileLength = inFile.length();
+        long partSize = getPartSize(fileLength, multipartPartSize);
+        int partCount = (int) Math.max(1, (fileLength + partSize - 1)
+                / partSize);
+        PartETag[] eTags = new PartETag[partCount];
+
+        try {
+            runParts(partCount, partNumber -> {
+                long offset = (partNumber - 1) * partSize;
+                UploadPartRequest upr = new UploadPartRequest().withBucketName(
+                        bucket).withKey(inKey).withUploadId(uploadId).withPartNumber(
+                        partNumber).withFile(inFile).withFileOffset(offset).withPartSize(
+                        Math.min(partSize, fileLength - offset));
+                eTags[partNumber - 1] = amazonS3.uploadPart(upr).getPartETag();
+            });
+
+            amazonS3.completeMultipartUpload(new CompleteMultipartUploadRequest(
+                    bucket, inKey, uploadId, Arrays.asList(eTags)));
+
+        } catch (RuntimeException e) {
+            abortMultipartUpload(inKey, uploadId);
+            if (e instanceof AmazonClientException) {
+                throw new RuntimeException(
+                        GenericAWSClient.buildDetailedMessageFromAWSException(e), e);
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Sends the content of the stream without copying it to a local file.
+     * <p>
+     * The stream is read in parts of <code>multipartPartSize</code> bytes,
+     * uploaded with a multipart upload. At most
+     * <code>multipartParallelism</code> part buffers are allocated at the same
+     * time, the one being filled included: reading the stream waits for a part
+     * to be sent when this limit is reached. A stream smaller than one part is
+     * sent with a single request. As the length is not known, the stream must
+     * fit in 10,000 parts.
+     *
+     * @param inKey
+     * @param inStream
+     * @param inMimeType can be null
+     * @throws IOException
+     * @throws RuntimeException
+     * @since 8.3
+     */
+    public void sendStream(String inKey, InputStream inStream, String inMimeType)
+            throws IOException, RuntimeException {
+
+        int partSize = (int) Math.min(multipartPartSize, Integer.MAX_VALUE);
+        byte[] part = new byte[partSize];
+        int length = readFully(inStream, part);
+
+        ObjectMetadata metadata = new ObjectMetadata();
+        if (StringUtils.isNotBlank(inMimeType)) {
+            metadata.setContentType(inMimeType);
+        }
+
+        if (length < partSize) {
+            byte[] content = part;
+            int contentLength = length;
+            metadata.setContentLength(contentLength);
+            try {
+                // A new stream for each attempt
+                AWSThrottling.callWithBackoff("PutObject",
+                        () -> amazonS3.putObject(new PutObjectRequest(bucket,
+                                inKey, new ByteArrayInputStream(content, 0,
+                                        contentLength), metadata)));
+            } catch (AmazonClientException e) {
+                throw new RuntimeException(
+                        GenericAWSClient.buildDetailedMessageFromAWSException(e), e);
+            }
+            return;
+        }
+
+        String uploadId;
+        try {
+            uploadId = amazonS3.initiateMultipartUpload(
+                    new InitiateMultipartUploadRequest(bucket, inKey, metadata)).getUploadId();
+        } catch (AmazonClientException e) {
+            throw new RuntimeException(
+                    GenericAWSClient.buildDetailedMessageFromAWSException(e), e);
+        }
+
+        // One permit per buffer which can still be allocated: The first part
+        // already holds one
+        Semaphore buffers = new Semaphore(multipartParallelism - 1);
+        AtomicReference<RuntimeException> error = new AtomicReference<RuntimeException>();
+        List<PartETag> eTags = Collections.synchronizedList(new ArrayList<PartETag>());
+        List<Future<?>> futures = new ArrayList<Future<?>>();
+
+        try {
+            int partNumber = 1;
+            while (length > 0 && error.get() == null) {
+                if (partNumber > MAX_PARTS) {
+                    throw new RuntimeException("Cannot send " + inKey
+                            + ": more than " + MAX_PARTS + " parts of "
+                            + partSize + " bytes");
+                }
+                futures.add(submitPart(inKey, uploadId, partNumber, part,
+                        length, buffers, error, eTags));
+
+                // Wait for a buffer to be released before allocating the next
+                // one. The part just submitted is only referenced by its task.
+                part = null;
+                buffers.acquire();
+                part = new byte[partSize];
+                length = readFully(inStream, part);
+                partNumber += 1;
+            }
+
+            for (Future<?> future : futures) {
+                future.get();
+            }
+            if (error.get() != null) {
+                throw error.get();
+            }
+
+            List<PartETag> sorted = new ArrayList<PartETag>(eTags);
+            Collections.sort(sorted,
+                    (a, b) -> Integer.compare(a.getPartNumber(),
+                            b.getPartNumber()));
+            amazonS3.completeMultipartUpload(new CompleteMultipartUploadRequest(
+                    bucket, inKey, uploadId, sorted));
+
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            abortMultipartUpload(inKey, uploadId);
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            abortMultipartUpload(inKey, uploadId);
+            throw new RuntimeException(e.getCause());
+        } catch (IOException | RuntimeException e) {
+            abortMultipartUpload(inKey, uploadId);
+            if (e instanceof AmazonClientException) {
+                throw new RuntimeException(
+                        GenericAWSClient.buildDetailedMessageFromAWSException(e), e);
+            }
+            throw e;
+        }
+    }
+
+    /*
+     * Uploads a part of sendStream() in the background. Its buffer is released
+     * when it is sent, or could not be sent (the error is kept in inError).
+     */
+    protected Future<?> submitPart(String inKey, String inUploadId,
+            int inPartNumber, byte[] inData, int inLength,
+            Semaphore inBuffers, AtomicReference<RuntimeException> inError,
+            List<PartETag> inETags) {
+
+        return getPartsExecutor().submit(() -> {
+            try {
+                transferPartWithRetries(inPartNumber, n -> {
+                    UploadPartRequest upr = new UploadPartRequest().withBucketName(
+                            bucket).withKey(inKey).withUploadId(inUploadId).withPartNumber(
+                            n).withInputStream(
+                            new ByteArrayInputStream(inData, 0, inLength)).withPartSize(
+                            inLength);
+                    inETags.add(amazonS3.uploadPart(upr).getPartETag());
+                });
+            } catch (RuntimeException e) {
+                inError.compareAndSet(null, e);
+            } finally {
+                inBuffers.release();
+            }
+        });
+    }
+
+    /*
+     * Reads until the buffer is full or the end of the stream is reached.
+     * Returns the number of bytes read.
+     */
+    protected int readFully(InputStream inStream, byte[] inBuffer)
+            throws IOException {
+
+        int total = 0;
+        int read;
+        while (total < inBuffer.length
+                && (read = inStream.read(inBuffer, total, inBuffer.length
+                        - total)) != -1) {
+            total += read;
+        }
+        return total;
+    }
+
+    protected void abortMultipartUpload(String inKey, String inUploadId) {
+
+        try {
+            amazonS3.abortMultipartUpload(new AbortMultipartUploadRequest(
+                    bucket, inKey, inUploadId));
+        } catch (AmazonClientException e) {
+            log.error("Cannot abort the multipart upload of " + inKey
+                    + " in bucket " + bucket, e);
+        }
+    }
+
+    /*
+     * Runs the transfer of parts 1 to inPartCount with up to
+     * multipartParallelism threads, retrying each part. Returns when all the
+     * parts are transferred, or throws the error of the first part which could
+     * not be transferred (and the other threads stop at their next part).
+     */
+    protected void runParts(int inPartCount, PartTransfer inTransfer)
+            throws RuntimeException {
+
+        AtomicInteger nextPart = new AtomicInteger(1);
+        AtomicReference<RuntimeException> error = new AtomicReference<RuntimeException>();
+        int threads = Math.min(multipartParallelism, inPartCount);
+        List<Future<?>> futures = new ArrayList<Future<?>>(threads);
+
+        for (int i = 0; i < threads; i++) {
+            futures.add(getPartsExecutor().submit(() -> {
+                int partNumber;
+                while (error.get() == null
+                        && (partNumber = nextPart.getAndIncrement()) <= inPartCount) {
+                    try {
+                        transferPartWithRetries(partNumber, inTransfer);
+                    } catch (RuntimeException e) {
+                        error.compareAndSet(null, e);
+                    }
+                }
+            }));
+        }
+
+        for (Future<?> future : futures) {
+            try {
+                future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                error.compareAndSet(null, new RuntimeException(e));
+                // Let the running parts stop by themselves
+                break;
+            } catch (ExecutionException e) {
+                error.compareAndSet(null, new RuntimeException(e.getCause()));
+            }
+        }
+
+        if (error.get() != null) {
+            throw error.get();
+        }
+    }
+
+    protected void transferPartWithRetries(int inPartNumber,
+            PartTransfer inTransfer) throws RuntimeException {
+
+        for (int attempt = 0;; attempt++) {
+            try {
+                inTransfer.transfer(inPartNumber);
+                return;
+            } catch (AmazonClientException | UncheckedIOException e) {
+                if (attempt >= partMaxRetries
+                        || (e instanceof AmazonClientException && !((AmazonClientException) e).isRetryable())) {
+                    throw e;
+                }
+                log.warn("Transfer of part " + inPartNumber + " failed ("
+                        + e.getMessage() + "), retrying");
+                // Throttled by S3 (SlowDown): back off longer, with jitter,
+                // so the parallel parts don't retry all at the same time
+                long delay = e instanceof AmazonClientException
+                        && AWSThrottling.isThrottling((AmazonClientException) e) ? AWSThrottling.getBackoffDelayMs(
+                        attempt,
+                        AWSElasticTranscoderConstants.getThrottlingBaseDelayMs())
+                        : PART_RETRY_BASE_DELAY_MS << attempt;
+                try {
+                    Thread.sleep(delay);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw new RuntimeException(ie);
+                }
+            }
         }
     }
 
@@ -92,16 +546,25 @@ public class AWSS3Handler {
         Framework.trackFile(tmp, this);
 
         try {
-            GetObjectRequest gor = new GetObjectRequest(bucket, inKey);
-            metadata = amazonS3.getObject(gor, tmp);
+            if (rangedDownloadThreshold > 0) {
+                metadata = amazonS3.getObjectMetadata(bucket, inKey);
+            }
+            if (metadata != null
+                    && metadata.getContentLength() >= rangedDownloadThreshold) {
+                downloadFileRanges(inKey, metadata.getContentLength(), tmp);
+            } else {
+                GetObjectRequest gor = new GetObjectRequest(bucket, inKey);
+                metadata = AWSThrottling.callWithBackoff("GetObject",
+                        () -> amazonS3.getObject(gor, tmp));
+            }
 
         } catch (AmazonServiceException ase) {
             String message = GenericAWSClient.buildDetailedMessageFromAWSException(ase);
-            throw new RuntimeException(message);
+            throw new RuntimeException(message, ase);
 
         } catch (AmazonClientException ace) {
             String message = GenericAWSClient.buildDetailedMessageFromAWSException(ace);
-            throw new RuntimeException(message);
+            throw new RuntimeException(message, ace);
 
         }
 
@@ -113,17 +576,167 @@ public class AWSS3Handler {
         return result;
     }
 
+    /**
+     * Downloads the object in ranges of <code>multipartPartSize</code> bytes,
+     * using up to <code>multipartParallelism</code> connections. Each range is
+     * written at its position in the (preallocated) destination file, and is
+     * retried on its own if the connection drops.
+     *
+     * @param inKey
+     * @param inLength length of the object
+     * @param inDest
+     * @throws IOException
+     * @throws RuntimeException
+     * @since 8.3
+     */
+    public void downloadFileRanges(String inKey, long inLength, File inDest)
+            throws IOException, RuntimeException {
+
+        int partCount = (int) Math.max(1,
+                (inLength + multipartPartSize - 1) / multipartPartSize);
+
+        try (RandomAccessFile raf = new RandomAccessFile(inDest, "rw")) {
+            raf.setLength(inLength);
+            FileChannel channel = raf.getChannel();
+
+            try {
+                runParts(partCount, partNumber -> {
+                    long start = (partNumber - 1) * multipartPartSize;
+                    long end = Math.min(start + multipartPartSize, inLength) - 1;
+                    GetObjectRequest gor = new GetObjectRequest(bucket, inKey).withRange(
+                            start, end);
+                    try (S3Object object = amazonS3.getObject(gor);
+                            InputStream in = object.getObjectContent()) {
+                        writeAt(in, channel, start);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+        }
+    }
+
+    /*
+     * Positional writes: the channel is shared by all the parts, they don't
+     * change its position
+     */
+    protected void writeAt(InputStream inStream, FileChannel inChannel,
+            long inPosition) throws IOException {
+
+        byte[] buffer = new byte[BUFFER_SIZE];
+        ByteBuffer bb = ByteBuffer.wrap(buffer);
+        long position = inPosition;
+        int read;
+        while ((read = inStream.read(buffer)) != -1) {
+            bb.clear().limit(read);
+            while (bb.hasRemaining()) {
+                position += inChannel.write(bb, position);
+            }
+        }
+    }
+
+    /**
+     * @param inKey
+     * @return the metadata of the object, or null if it does not exist
+     * @throws RuntimeException
+     * @since 8.3
+     */
+    public ObjectMetadata getMetadataIfExists(String inKey)
+            throws RuntimeException {
+
+        try {
+            return amazonS3.getObjectMetadata(bucket, inKey);
+        } catch (AmazonServiceException ase) {
+            if (ase.getStatusCode() == 404) {
+                return null;
+            }
+            String message = GenericAWSClient.buildDetailedMessageFromAWSException(ase);
+            throw new RuntimeException(message, ase);
+
+        } catch (AmazonClientException ace) {
+            String message = GenericAWSClient.buildDetailedMessageFromAWSException(ace);
+            throw new RuntimeException(message, ace);
+        }
+    }
+
+    /**
+     * Copies an object to this bucket, on S3 side: The content does not go
+     * through this server. Objects bigger than 5GB (the max. for a single
+     * copy) are copied by parts, in parallel.
+     *
+     * @param inSourceBucket
+     * @param inSourceKey
+     * @param inKey key in this bucket
+     * @param inLength length of the source object
+     * @throws RuntimeException
+     * @since 8.3
+     */
+    public void copyFrom(String inSourceBucket, String inSourceKey,
+            String inKey, long inLength) throws RuntimeException {
+
+        if (inLength <= MAX_SINGLE_COPY_SIZE) {
+            try {
+                amazonS3.copyObject(new CopyObjectRequest(inSourceBucket,
+                        inSourceKey, bucket, inKey));
+            } catch (AmazonClientException e) {
+                throw new RuntimeException(
+                        GenericAWSClient.buildDetailedMessageFromAWSException(e), e);
+            }
+            return;
+        }
+
+        String uploadId;
+        try {
+            uploadId = amazonS3.initiateMultipartUpload(
+                    new InitiateMultipartUploadRequest(bucket, inKey)).getUploadId();
+        } catch (AmazonClientException e) {
+            throw new RuntimeException(
+                    GenericAWSClient.buildDetailedMessageFromAWSException(e), e);
+        }
+
+        // Bigger parts than for the uploads: There is no local buffer here
+        long partSize = getPartSize(inLength, Math.max(multipartPartSize,
+                COPY_PART_SIZE));
+        int partCount = (int) ((inLength + partSize - 1) / partSize);
+        PartETag[] eTags = new PartETag[partCount];
+
+        try {
+            runParts(partCount, partNumber -> {
+                long first = (partNumber - 1) * partSize;
+                long last = Math.min(first + partSize, inLength) - 1;
+                CopyPartRequest cpr = new CopyPartRequest().withSourceBucketName(
+                        inSourceBucket).withSourceKey(inSourceKey).withDestinationBucketName(
+                        bucket).withDestinationKey(inKey).withUploadId(uploadId).withPartNumber(
+                        partNumber).withFirstByte(first).withLastByte(last);
+                eTags[partNumber - 1] = amazonS3.copyPart(cpr).getPartETag();
+            });
+
+            amazonS3.completeMultipartUpload(new CompleteMultipartUploadRequest(
+                    bucket, inKey, uploadId, Arrays.asList(eTags)));
+
+        } catch (RuntimeException e) {
+            abortMultipartUpload(inKey, uploadId);
+            if (e instanceof AmazonClientException) {
+                throw new RuntimeException(
+                        GenericAWSClient.buildDetailedMessageFromAWSException(e), e);
+            }
+            throw e;
+        }
+    }
+
     public void deleteFile(String inKey) throws RuntimeException {
 
         try {
             amazonS3.deleteObject(bucket, inKey);
         } catch (AmazonServiceException ase) {
             String message = GenericAWSClient.buildDetailedMessageFromAWSException(ase);
-            throw new RuntimeException(message);
+            throw new RuntimeException(message, ase);
 
         } catch (AmazonClientException ace) {
             String message = GenericAWSClient.buildDetailedMessageFromAWSException(ace);
-            throw new RuntimeException(message);
+            throw new RuntimeException(message, ace);
 
         }
     }
@@ -0,0 +1,137 @@
+/*
+ * (C) Copyright 2016 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.aws.elastictranscoder;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Supplier;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+
+/**
+ * Retries the AWS calls rejected because the account or the pipeline sends
+ * too many requests ("Throttling", "SlowDown", HTTP 429...), with an
+ * exponential backoff.
+ * <p>
+ * The AWS SDK already retries these errors a few times, but with short
+ * delays: During a bulk import, they are not enough, and the throttling error
+ * fails the conversion. Other errors are not retried here.
+ *
+ * @since 8.3
+ */
+public class AWSThrottling {
+
+    private static final Log log = LogFactory.getLog(AWSThrottling.class);
+
+    protected static final Set<String> THROTTLING_ERROR_CODES = new HashSet<String>(
+            Arrays.asList("Throttling", "ThrottlingException",
+                    "ThrottledException", "RequestThrottled",
+                    "RequestLimitExceeded", "TooManyRequestsException",
+                    "SlowDown", "RequestThrottledException",
+                    "ProvisionedThroughputExceededException",
+                    "BandwidthLimitExceeded"));
+
+    private AWSThrottling() {
+    }
+
+    /**
+     * @return true if AWS rejected the request because of its rate
+     */
+    public static boolean isThrottling(AmazonClientException inException) {
+
+        if (!(inException instanceof AmazonServiceException)) {
+            return false;
+        }
+        AmazonServiceException ase = (AmazonServiceException) inException;
+        return THROTTLING_ERROR_CODES.contains(ase.getErrorCode())
+                || ase.getStatusCode() == 429;
+    }
+
+    /**
+     * Delay before the retry number <code>inAttempt</code> (starting at 0):
+     * <code>inBaseDelayMs * 2^inAttempt</code>, capped, of which a random
+     * half, so the threads throttled at the same time don't retry at the
+     * same time
+     */
+    public static long getBackoffDelayMs(int inAttempt, long inBaseDelayMs) {
+
+        long delay = inBaseDelayMs << Math.min(inAttempt, 20);
+        delay = Math.min(delay,
+                AWSElasticTranscoderConstants.MAX_THROTTLING_DELAY_MS);
+        long half = delay / 2;
+        return half + ThreadLocalRandom.current().nextLong(half + 1);
+    }
+
+    /**
+     * Same as {@link #callWithBackoff(String, Supplier, int, long)}, with the
+     * retries and delay set in the configuration
+     */
+    public static <T> T callWithBackoff(String inOperation,
+            Supplier<T> inCall) throws AmazonClientException {
+
+        return callWithBackoff(inOperation, inCall,
+                AWSElasticTranscoderConstants.getThrottlingMaxRetries(),
+                AWSElasticTranscoderConstants.getThrottlingBaseDelayMs());
+    }
+
+    /**
+     * Runs the call, retrying it up to <code>inMaxRetries</code> times while
+     * AWS throttles it. Any other error is thrown as is, as is the throttling
+     * error after the last retry.
+     *
+     * @param inOperation name of the operation, for the logs
+     * @param inCall
+     * @param inMaxRetries
+     * @param inBaseDelayMs
+     * @return the result of the call
+     * @throws AmazonClientException
+     */
+    public static <T> T callWithBackoff(String inOperation,
+            Supplier<T> inCall, int inMaxRetries, long inBaseDelayMs)
+            throws AmazonClientException {
+
+        for (int attempt = 0;; attempt++) {
+            try {
+                return inCall.get();
+            } catch (AmazonClientException e) {
+                if (attempt >= inMaxRetries || !isThrottling(e)) {
+                    throw e;
+                }
+                TranscodingMetrics.get().throttled(inOperation);
+                long delay = getBackoffDelayMs(attempt, inBaseDelayMs);
+                if (log.isDebugEnabled()) {
+                    log.debug(inOperation + " throttled ("
+                            + ((AmazonServiceException) e).getErrorCode()
+                            + "), retrying in " + delay + "ms");
+                }
+                try {
+                    Thread.sleep(delay);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw new RuntimeException(ie);
+                }
+            }
+        }
+    }
+
+}
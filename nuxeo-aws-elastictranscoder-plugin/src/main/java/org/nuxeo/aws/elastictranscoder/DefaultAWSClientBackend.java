@@ -0,0 +1,74 @@
+/*
+ * (C) Copyright 2016 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.aws.elastictranscoder;
+
+import org.apache.commons.lang.StringUtils;
+
+import com.amazonaws.AmazonWebServiceClient;
+import com.amazonaws.ClientConfiguration;
+import com.amazonaws.auth.AWSCredentialsProvider;
+import com.amazonaws.regions.Region;
+import com.amazonaws.regions.Regions;
+import com.amazonaws.services.elastictranscoder.AmazonElasticTranscoder;
+import com.amazonaws.services.elastictranscoder.AmazonElasticTranscoderClient;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.sqs.AmazonSQS;
+import com.amazonaws.services.sqs.AmazonSQSClient;
+
+/**
+ * The AWS SDK clients
+ *
+ * @since 8.3
+ */
+public class DefaultAWSClientBackend implements AWSClientBackend {
+
+    @Override
+    public AmazonS3 createS3Client(AWSCredentialsProvider inCredentials,
+            ClientConfiguration inConfiguration, String inRegion) {
+
+        return withRegion(new AmazonS3Client(inCredentials, inConfiguration),
+                inRegion);
+    }
+
+    @Override
+    public AmazonSQS createSQSClient(AWSCredentialsProvider inCredentials,
+            ClientConfiguration inConfiguration, String inRegion) {
+
+        return withRegion(new AmazonSQSClient(inCredentials, inConfiguration),
+                inRegion);
+    }
+
+    @Override
+    public AmazonElasticTranscoder createElasticTranscoder(
+            AWSCredentialsProvider inCredentials,
+            ClientConfiguration inConfiguration, String inRegion) {
+
+        return withRegion(new AmazonElasticTranscoderClient(inCredentials,
+                inConfiguration), inRegion);
+    }
+
+    protected <T extends AmazonWebServiceClient> T withRegion(T inClient,
+            String inRegion) {
+
+        if (StringUtils.isNotBlank(inRegion)) {
+            inClient.setRegion(Region.getRegion(Regions.fromName(inRegion)));
+        }
+        return inClient;
+    }
+
+}
@@ -41,8 +41,10 @@ import com.amazonaws.services.sqs.AmazonSQSClient;
  * only once during the whole life of the application
  * <p>
  * The tools (S3, SQS, ...) are created only once, for the first call to
- * <code>getS3Client()</code>, </code>getSLQClient()</code>, .... so you can
- * freely do something like:
+ * <code>getS3Client()</code>, </code>getSLQClient()</code>, .... Since 8.3,
+ * they are actually shared by all the <code>GenericAWSClient</code> instances
+ * (see {@link AWSClientRegistry}), so creating a <code>GenericAWSClient</code>
+ * is cheap and you can freely do something like:
  * <p>
  * <code>
  * GenericAWSClient awsC = new GenericAWSClient.getInstance();
@@ -72,25 +74,45 @@ public class GenericAWSClient {
 
     protected AmazonSQS sqs;
 
+    protected String region;
+
+    // The static provider, or a dummy one for the backends which don't need
+    // credentials
+    protected AWSCredentialsProvider credentialsProvider;
+
+    protected static final String NO_CREDENTIALS = "none";
+
     private static String buildCredentiaProviderLock = "Lock";
 
     public GenericAWSClient() {
 
         buildCredentiaProvider();
 
-        if (awsCredentialsProvider == null) {
-            throw new NuxeoException(
-                    "AWS Access Key ID/Secret Access Key are missing or invalid. Are they correctly set-up in nuxeo.conf or as System variables?");
-
+        credentialsProvider = awsCredentialsProvider;
+        if (credentialsProvider == null) {
+            AWSClientRegistry registry = Framework.getService(AWSClientRegistry.class);
+            if (registry != null
+                    && !registry.getBackend().requiresCredentials()) {
+                credentialsProvider = new SimpleAWSCredentialProvider(
+                        NO_CREDENTIALS, NO_CREDENTIALS);
+            } else {
+                throw new NuxeoException(
+                        "AWS Access Key ID/Secret Access Key are missing or invalid. Are they correctly set-up in nuxeo.conf or as System variables?");
+            }
         }
 
-        buildCredentiaProvider();
+        region = AWSElasticTranscoderConstants.getRegion();
     }
 
     public AmazonS3 getS3Client() {
 
         if (s3 == null) {
-            s3 = new AmazonS3Client(awsCredentialsProvider);
+            AWSClientRegistry registry = Framework.getService(AWSClientRegistry.class);
+            if (registry != null) {
+                s3 = registry.getS3Client(credentialsProvider, region);
+            } else {
+                s3 = new AmazonS3Client(credentialsProvider);
+            }
         }
         return s3;
     }
@@ -98,7 +120,12 @@ public class GenericAWSClient {
     public AmazonSQS getSQSClient() {
 
         if (sqs == null) {
-            sqs = new AmazonSQSClient(awsCredentialsProvider);
+            AWSClientRegistry registry = Framework.getService(AWSClientRegistry.class);
+            if (registry != null) {
+                sqs = registry.getSQSClient(credentialsProvider, region);
+            } else {
+                sqs = new AmazonSQSClient(credentialsProvider);
+            }
         }
         return sqs;
     }
@@ -106,8 +133,14 @@ public class GenericAWSClient {
     public AmazonElasticTranscoder getElasticTranscoder() {
 
         if (elasticTranscoder == null) {
-            elasticTranscoder = new AmazonElasticTranscoderClient(
-                    awsCredentialsProvider);
+            AWSClientRegistry registry = Framework.getService(AWSClientRegistry.class);
+            if (registry != null) {
+                elasticTranscoder = registry.getElasticTranscoder(
+                        credentialsProvider, region);
+            } else {
+                elasticTranscoder = new AmazonElasticTranscoderClient(
+                        credentialsProvider);
+            }
         }
 
         return elasticTranscoder;
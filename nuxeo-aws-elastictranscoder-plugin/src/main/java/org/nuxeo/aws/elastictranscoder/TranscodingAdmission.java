@@ -0,0 +1,287 @@
+/*
+ * (C) Copyright 2016 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.aws.elastictranscoder;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.google.common.util.concurrent.RateLimiter;
+
+/**
+ * Admission control of the transcodings started on this node, shared by all
+ * the {@link AWSElasticTranscoder}:
+ * <ul>
+ * <li>At most <code>aws.transcoder.max.submissions</code> transcodings are in
+ * progress at the same time. The next ones wait in a queue, without blocking
+ * the caller, and start when another one ends. At most
+ * <code>aws.transcoder.max.pending.submissions</code> transcodings can wait:
+ * Beyond, they are rejected, so a bulk import fails fast instead of piling up
+ * uploads and jobs.</li>
+ * <li>Each {@link TranscodingPriority} lane can also have its own quota
+ * (<code>aws.transcoder.priority.&lt;lane&gt;.max.submissions</code>, none by
+ * default), checked before the global limit: When the quotas of the other lanes add up to less
+ * than the global limit, a lane always gets its quota, whatever the load of
+ * the others. When a transcoding ends, the waiting ones start in the order
+ * of the lanes (interactive, automatic, then backfill), and in the order of
+ * their submission in a lane.</li>
+ * <li>The <code>createJob</code> calls are spread by a token bucket per
+ * pipeline (<code>aws.transcoder.pipeline.createjob.rate</code> jobs per
+ * second), so Elastic Transcoder does not throttle them.</li>
+ * </ul>
+ *
+ * @since 8.3
+ */
+public class TranscodingAdmission {
+
+    private static final Log log = LogFactory.getLog(TranscodingAdmission.class);
+
+    private static volatile TranscodingAdmission instance;
+
+    protected final int maxSubmissions;
+
+    protected final int maxPendingSubmissions;
+
+    protected final double createJobRate;
+
+    protected final ConcurrentMap<String, RateLimiter> createJobLimiters = new ConcurrentHashMap<String, RateLimiter>();
+
+    // Lanes without quota are not in the map
+    protected final Map<TranscodingPriority, Integer> laneQuotas = new EnumMap<TranscodingPriority, Integer>(
+            TranscodingPriority.class);
+
+    // The counters and the queues below are guarded by "this"
+    protected int submissionsCount;
+
+    protected int pendingCount;
+
+    protected final Map<TranscodingPriority, Integer> laneSubmissionsCounts = new EnumMap<TranscodingPriority, Integer>(
+            TranscodingPriority.class);
+
+    protected final Map<TranscodingPriority, ArrayDeque<Runnable>> lanePendings = new EnumMap<TranscodingPriority, ArrayDeque<Runnable>>(
+            TranscodingPriority.class);
+
+    /**
+     * @param inMaxSubmissions <= 0 means no limit
+     * @param inCreateJobRate jobs per second and per pipeline, <= 0 means no
+     *            limit
+     * @param inMaxPendingSubmissions max. number of transcodings waiting to
+     *            start, <= 0 means none can wait
+     */
+    public TranscodingAdmission(int inMaxSubmissions, double inCreateJobRate,
+            int inMaxPendingSubmissions) {
+
+        this(inMaxSubmissions, inCreateJobRate, inMaxPendingSubmissions,
+                Collections.<TranscodingPriority, Integer> emptyMap());
+    }
+
+    /**
+     * @param inMaxSubmissions <= 0 means no limit
+     * @param inCreateJobRate jobs per second and per pipeline, <= 0 means no
+     *            limit
+     * @param inMaxPendingSubmissions max. number of transcodings waiting to
+     *            start, <= 0 means none can wait
+     * @param inLaneQuotas max. number of transcodings in progress per lane. A
+     *            lane missing, or with a quota <= 0, has no quota
+     */
+    public TranscodingAdmission(int inMaxSubmissions, double inCreateJobRate,
+            int inMaxPendingSubmissions,
+            Map<TranscodingPriority, Integer> inLaneQuotas) {
+
+        maxSubmissions = inMaxSubmissions;
+        maxPendingSubmissions = inMaxPendingSubmissions;
+        createJobRate = inCreateJobRate;
+        for (Map.Entry<TranscodingPriority, Integer> entry : inLaneQuotas.entrySet()) {
+            if (entry.getValue() != null && entry.getValue() > 0) {
+                laneQuotas.put(entry.getKey(), entry.getValue());
+            }
+        }
+        for (TranscodingPriority priority : TranscodingPriority.values()) {
+            laneSubmissionsCounts.put(priority, 0);
+            lanePendings.put(priority, new ArrayDeque<Runnable>());
+        }
+    }
+
+    /**
+     * @return the instance configured in nuxeo.conf
+     */
+    public static TranscodingAdmission get() {
+
+        if (instance == null) {
+            synchronized (TranscodingAdmission.class) {
+                if (instance == null) {
+                    Map<TranscodingPriority, Integer> quotas = new EnumMap<TranscodingPriority, Integer>(
+                            TranscodingPriority.class);
+                    for (TranscodingPriority priority : TranscodingPriority.values()) {
+                        quotas.put(priority,
+                                AWSElasticTranscoderConstants.getPriorityMaxSubmissions(priority));
+                    }
+                    instance = new TranscodingAdmission(
+                            AWSElasticTranscoderConstants.getMaxSubmissions(),
+                            AWSElasticTranscoderConstants.getCreateJobRate(),
+                            AWSElasticTranscoderConstants.getMaxPendingSubmissions(),
+                            quotas);
+                }
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * Starts a new transcoding of the lane, now if the quota of the lane and
+     * the global limit allow it, else when another transcoding ends. Never
+     * blocks: <code>inStart</code> is run by the calling thread, or later by
+     * the thread releasing a submission. It must not block, and must not
+     * throw: It calls {@link #releaseSubmission(TranscodingPriority)} with
+     * the same lane once the transcoding is over, or if it cannot start it.
+     *
+     * @param inPriority
+     * @param inStart starts the transcoding
+     * @throws RejectedExecutionException if the transcoding cannot start now
+     *             and the queue of the waiting ones is full
+     * @since 8.3
+     */
+    public void submit(TranscodingPriority inPriority, Runnable inStart)
+            throws RejectedExecutionException {
+
+        synchronized (this) {
+            // Never overtake the ones already waiting in the lane
+            if (!lanePendings.get(inPriority).isEmpty()
+                    || !tryAcquire(inPriority)) {
+                if (pendingCount >= maxPendingSubmissions) {
+                    throw new RejectedExecutionException(
+                            "Too many transcodings waiting to start ("
+                                    + pendingCount + ")");
+                }
+                lanePendings.get(inPriority).add(inStart);
+                pendingCount++;
+                return;
+            }
+        }
+        start(inStart);
+    }
+
+    /**
+     * Ends a transcoding of the lane, and starts the waiting ones which can
+     * now start
+     *
+     * @since 8.3
+     */
+    public void releaseSubmission(TranscodingPriority inPriority) {
+
+        List<Runnable> starts = new ArrayList<Runnable>();
+        synchronized (this) {
+            submissionsCount--;
+            laneSubmissionsCounts.put(inPriority,
+                    laneSubmissionsCounts.get(inPriority) - 1);
+            // The lanes are in priority order
+            for (TranscodingPriority priority : TranscodingPriority.values()) {
+                ArrayDeque<Runnable> pending = lanePendings.get(priority);
+                while (!pending.isEmpty() && tryAcquire(priority)) {
+                    starts.add(pending.poll());
+                    pendingCount--;
+                }
+            }
+        }
+        for (Runnable start : starts) {
+            start(start);
+        }
+    }
+
+    /*
+     * Must be called while holding the lock
+     */
+    protected boolean tryAcquire(TranscodingPriority inPriority) {
+
+        Integer quota = laneQuotas.get(inPriority);
+        int laneCount = laneSubmissionsCounts.get(inPriority);
+        if ((quota != null && laneCount >= quota)
+                || (maxSubmissions > 0 && submissionsCount >= maxSubmissions)) {
+            return false;
+        }
+        submissionsCount++;
+        laneSubmissionsCounts.put(inPriority, laneCount + 1);
+        return true;
+    }
+
+    protected void start(Runnable inStart) {
+
+        try {
+            inStart.run();
+        } catch (RuntimeException e) {
+            log.error("Error while starting a transcoding", e);
+        }
+    }
+
+    /**
+     * Waits until a job can be created on the pipeline
+     *
+     * @param inPipelineId
+     */
+    public void acquireCreateJob(String inPipelineId) {
+
+        if (createJobRate > 0) {
+            createJobLimiters.computeIfAbsent(inPipelineId,
+                    k -> RateLimiter.create(createJobRate)).acquire();
+        }
+    }
+
+    /**
+     * @return the number of transcodings in progress
+     */
+    public synchronized int getSubmissionsCount() {
+
+        return submissionsCount;
+    }
+
+    /**
+     * @return the number of transcodings waiting to start
+     */
+    public synchronized int getWaitingSubmissionsCount() {
+
+        return pendingCount;
+    }
+
+    /**
+     * @return the number of transcodings of the lane in progress
+     * @since 8.3
+     */
+    public synchronized int getSubmissionsCount(TranscodingPriority inPriority) {
+
+        return laneSubmissionsCounts.get(inPriority);
+    }
+
+    /**
+     * @return the number of transcodings of the lane waiting to start
+     * @since 8.3
+     */
+    public synchronized int getWaitingSubmissionsCount(
+            TranscodingPriority inPriority) {
+
+        return lanePendings.get(inPriority).size();
+    }
+
+}
@@ -0,0 +1,280 @@
+/*
+ * (C) Copyright 2016 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.aws.elastictranscoder;
+
+import java.util.Arrays;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+
+import org.nuxeo.aws.elastictranscoder.notification.NotificationDispatcher;
+
+import com.amazonaws.AmazonServiceException;
+import com.codahale.metrics.CachedGauge;
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.SharedMetricRegistries;
+import com.codahale.metrics.Timer;
+
+/**
+ * Metrics of the transcodings, registered in the registry of the Nuxeo
+ * metrics service (so they are reported with the other metrics of the
+ * platform), under <code>nuxeo.aws.elastictranscoder</code>:
+ * <ul>
+ * <li>Timers of each step: <code>upload</code>, <code>createjob</code>,
+ * <code>job.queued</code> (until Elastic Transcoder starts the job),
+ * <code>job.transcoding</code>, <code>job.wait</code> (queued + transcoding,
+ * also known when the start of the job is not notified),
+ * <code>download</code>, and <code>total</code></li>
+ * <li>Histograms of the transfer rates, in KB/s:
+ * <code>upload.throughput</code>, <code>download.throughput</code> (the
+ * inputs copied on S3 side are not counted)</li>
+ * <li>Counters: <code>succeeded</code>, <code>failed</code>,
+ * <code>errors.&lt;code&gt;</code> (AWS error code, or
+ * <code>job.&lt;code&gt;</code> for the Elastic Transcoder job errors),
+ * <code>throttled.&lt;operation&gt;</code></li>
+ * <li>Gauges, reading the {@link TranscodingAdmission} and the counters of the
+ * {@link NotificationDispatcher} (see {@link #registerGauges(NotificationDispatcher)}):
+ * <code>inflight</code>, <code>inflight.waiting</code>, their
+ * value per priority lane (<code>inflight.&lt;lane&gt;</code>,
+ * <code>inflight.&lt;lane&gt;.waiting</code>, see {@link TranscodingPriority}),
+ * <code>jobs.pending</code>, <code>sqs.backlog</code></li>
+ * </ul>
+ *
+ * @since 8.3
+ */
+public class TranscodingMetrics {
+
+    // Name of the registry of org.nuxeo.runtime.metrics.MetricsService
+    public static final String REGISTRY_NAME = "org.nuxeo.runtime.metrics.MetricsService";
+
+    public static final String PREFIX = "nuxeo.aws.elastictranscoder";
+
+    public static final String GAUGE_INFLIGHT = "inflight";
+
+    public static final String GAUGE_INFLIGHT_WAITING = "inflight.waiting";
+
+    public static final String GAUGE_PENDING_JOBS = "jobs.pending";
+
+    public static final String GAUGE_SQS_BACKLOG = "sqs.backlog";
+
+    protected static final long BACKLOG_GAUGE_CACHE_SECONDS = 30;
+
+    private static volatile TranscodingMetrics instance;
+
+    protected final MetricRegistry registry;
+
+    protected final Timer uploadTimer;
+
+    protected final Timer createJobTimer;
+
+    protected final Timer queuedTimer;
+
+    protected final Timer transcodingTimer;
+
+    protected final Timer waitTimer;
+
+    protected final Timer downloadTimer;
+
+    protected final Timer totalTimer;
+
+    protected final Histogram uploadThroughput;
+
+    protected final Histogram downloadThroughput;
+
+    protected final Counter succeeded;
+
+    protected final Counter failed;
+
+    public TranscodingMetrics(MetricRegistry inRegistry) {
+
+        registry = inRegistry;
+        uploadTimer = registry.timer(name("upload"));
+        createJobTimer = registry.timer(name("createjob"));
+        queuedTimer = registry.timer(name("job", "queued"));
+        transcodingTimer = registry.timer(name("job", "transcoding"));
+        waitTimer = registry.timer(name("job", "wait"));
+        downloadTimer = registry.timer(name("download"));
+        totalTimer = registry.timer(name("total"));
+        uploadThroughput = registry.histogram(name("upload", "throughput"));
+        downloadThroughput = registry.histogram(name("download", "throughput"));
+        succeeded = registry.counter(name("succeeded"));
+        failed = registry.counter(name("failed"));
+    }
+
+    /**
+     * @return the instance using the registry of the Nuxeo metrics service
+     */
+    public static TranscodingMetrics get() {
+
+        if (instance == null) {
+            synchronized (TranscodingMetrics.class) {
+                if (instance == null) {
+                    instance = new TranscodingMetrics(
+                            SharedMetricRegistries.getOrCreate(REGISTRY_NAME));
+                }
+            }
+        }
+        return instance;
+    }
+
+    public static String name(String... inNames) {
+        return MetricRegistry.name(PREFIX, inNames);
+    }
+
+    public MetricRegistry getRegistry() {
+        return registry;
+    }
+
+    /**
+     * Registers the gauges, replacing the previous ones if any (the
+     * dispatcher was restarted)
+     *
+     * @param inDispatcher gives the pending jobs and the SQS backlog
+     */
+    public void registerGauges(NotificationDispatcher inDispatcher) {
+
+        unregisterGauges();
+        registry.register(name(GAUGE_INFLIGHT),
+                (Gauge<Integer>) () -> TranscodingAdmission.get().getSubmissionsCount());
+        registry.register(name(GAUGE_INFLIGHT_WAITING),
+                (Gauge<Integer>) () -> TranscodingAdmission.get().getWaitingSubmissionsCount());
+        for (TranscodingPriority priority : TranscodingPriority.values()) {
+            registry.register(name(GAUGE_INFLIGHT, priority.getName()),
+                    (Gauge<Integer>) () -> TranscodingAdmission.get().getSubmissionsCount(
+                            priority));
+            registry.register(
+                    name(GAUGE_INFLIGHT, priority.getName(), "waiting"),
+                    (Gauge<Integer>) () -> TranscodingAdmission.get().getWaitingSubmissionsCount(
+                            priority));
+        }
+        registry.register(name(GAUGE_PENDING_JOBS),
+                (Gauge<Integer>) inDispatcher::getPendingJobsCount);
+        // Calls SQS: read at most every BACKLOG_GAUGE_CACHE_SECONDS
+        registry.register(name(GAUGE_SQS_BACKLOG), new CachedGauge<Long>(
+                BACKLOG_GAUGE_CACHE_SECONDS, TimeUnit.SECONDS) {
+            @Override
+            protected Long loadValue() {
+                return inDispatcher.getQueuesBacklog();
+            }
+        });
+    }
+
+    public void unregisterGauges() {
+
+        for (String gauge : Arrays.asList(GAUGE_INFLIGHT,
+                GAUGE_INFLIGHT_WAITING, GAUGE_PENDING_JOBS, GAUGE_SQS_BACKLOG)) {
+            registry.remove(name(gauge));
+        }
+        for (TranscodingPriority priority : TranscodingPriority.values()) {
+            registry.remove(name(GAUGE_INFLIGHT, priority.getName()));
+            registry.remove(name(GAUGE_INFLIGHT, priority.getName(), "waiting"));
+        }
+    }
+
+    /**
+     * @param inBytes size sent from this server, 0 if the input was copied on
+     *            S3 side
+     * @param inNanos
+     */
+    public void uploaded(long inBytes, long inNanos) {
+
+        uploadTimer.update(inNanos, TimeUnit.NANOSECONDS);
+        if (inBytes > 0 && inNanos > 0) {
+            uploadThroughput.update(toKBPerSecond(inBytes, inNanos));
+        }
+    }
+
+    public void jobCreated(long inNanos) {
+        createJobTimer.update(inNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * @param inQueuedNanos time until the job started, -1 if not known
+     * @param inTranscodingNanos time from the start to the end of the job, -1
+     *            if not known
+     * @param inWaitNanos time from the creation to the end of the job
+     */
+    public void jobEnded(long inQueuedNanos, long inTranscodingNanos,
+            long inWaitNanos) {
+
+        if (inQueuedNanos >= 0) {
+            queuedTimer.update(inQueuedNanos, TimeUnit.NANOSECONDS);
+        }
+        if (inTranscodingNanos >= 0) {
+            transcodingTimer.update(inTranscodingNanos, TimeUnit.NANOSECONDS);
+        }
+        waitTimer.update(inWaitNanos, TimeUnit.NANOSECONDS);
+    }
+
+    public void downloaded(long inBytes, long inNanos) {
+
+        downloadTimer.update(inNanos, TimeUnit.NANOSECONDS);
+        if (inBytes > 0 && inNanos > 0) {
+            downloadThroughput.update(toKBPerSecond(inBytes, inNanos));
+        }
+    }
+
+    public void succeeded(long inTotalNanos) {
+
+        succeeded.inc();
+        totalTimer.update(inTotalNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * @param inErrorCode see {@link #getErrorCode(Throwable)}
+     */
+    public void failed(String inErrorCode) {
+
+        failed.inc();
+        registry.counter(name("errors", inErrorCode)).inc();
+    }
+
+    /**
+     * Counts a call rejected by AWS because of its rate (see
+     * {@link AWSThrottling})
+     */
+    public void throttled(String inOperation) {
+        registry.counter(name("throttled", inOperation)).inc();
+    }
+
+    /**
+     * @return the AWS error code of the exception or of one of its causes, or
+     *         the class of the root cause
+     */
+    public static String getErrorCode(Throwable inError) {
+
+        Throwable cause = inError;
+        while (cause instanceof CompletionException && cause.getCause() != null) {
+            cause = cause.getCause();
+        }
+        for (Throwable t = cause; t != null; t = t.getCause()) {
+            if (t instanceof AmazonServiceException
+                    && ((AmazonServiceException) t).getErrorCode() != null) {
+                return ((AmazonServiceException) t).getErrorCode();
+            }
+            cause = t;
+        }
+        return cause.getClass().getSimpleName();
+    }
+
+    protected static long toKBPerSecond(long inBytes, long inNanos) {
+        return (long) (inBytes / 1024.0 / (inNanos / 1e9));
+    }
+
+}
@@ -0,0 +1,65 @@
+/*
+ * (C) Copyright 2016 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.aws.elastictranscoder;
+
+import org.apache.commons.lang.StringUtils;
+
+/**
+ * The lane of a transcoding. Each lane can have its own quota of
+ * transcodings in progress (see {@link TranscodingAdmission}, no quota by
+ * default) and its own pipelines, so thousands of automatic or backfill
+ * conversions do not delay the ones a user is waiting for.
+ *
+ * @since 8.3
+ */
+public enum TranscodingPriority {
+
+    /** Requested by a user, who waits for the result */
+    INTERACTIVE,
+
+    /** Automatic conversions of new videos (default) */
+    AUTOMATIC,
+
+    /** Bulk conversions of existing videos */
+    BACKFILL;
+
+    /**
+     * @return the name used in the configuration and the parameters
+     *         (<code>interactive</code>, ...)
+     */
+    public String getName() {
+        return name().toLowerCase();
+    }
+
+    /**
+     * @param inValue a name (see {@link #getName()}), case insensitive
+     * @param inDefault returned if the value is blank or unknown
+     */
+    public static TranscodingPriority fromString(String inValue,
+            TranscodingPriority inDefault) {
+
+        if (StringUtils.isNotBlank(inValue)) {
+            for (TranscodingPriority priority : values()) {
+                if (priority.name().equalsIgnoreCase(inValue.trim())) {
+                    return priority;
+                }
+            }
+        }
+        return inDefault;
+    }
+
+}
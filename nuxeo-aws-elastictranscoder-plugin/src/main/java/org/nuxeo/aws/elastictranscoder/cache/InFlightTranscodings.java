@@ -0,0 +1,211 @@
+/*
+ * (C) Copyright 2016 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.aws.elastictranscoder.cache;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.lang.StringUtils;
+import org.nuxeo.aws.elastictranscoder.TranscodingPriority;
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.impl.blob.FileBlob;
+import org.nuxeo.runtime.api.Framework;
+
+/**
+ * Transcodings in progress on this node, by video and presets: A conversion
+ * requested while the same one is already running (same digest, same presets
+ * and suffixes) waits for the running one instead of starting a new upload,
+ * job and download.
+ * <p>
+ * The callers attached to a running transcoding get copies of its blobs, so
+ * each caller can rename, move or delete its own.
+ *
+ * @since 8.3
+ */
+public class InFlightTranscodings {
+
+    private static volatile InFlightTranscodings instance;
+
+    protected final ConcurrentMap<String, CompletableFuture<List<Blob>>> running = new ConcurrentHashMap<String, CompletableFuture<List<Blob>>>();
+
+    protected final AtomicLong coalesced = new AtomicLong();
+
+    /**
+     * @return the instance shared by the converters
+     */
+    public static InFlightTranscodings get() {
+
+        if (instance == null) {
+            synchronized (InFlightTranscodings.class) {
+                if (instance == null) {
+                    instance = new InFlightTranscodings();
+                }
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * @param inDigest digest of the video
+     * @param inPresetIds
+     * @param inOutputFileSuffixes
+     * @return the key of the transcoding
+     */
+    public static String getKey(String inDigest, List<String> inPresetIds,
+            List<String> inOutputFileSuffixes) {
+
+        StringBuilder key = new StringBuilder(inDigest);
+        for (int i = 0; i < inPresetIds.size(); i++) {
+            key.append('\n').append(inPresetIds.get(i)).append('\n').append(
+                    StringUtils.defaultString(inOutputFileSuffixes.get(i)));
+        }
+        return key.toString();
+    }
+
+    /**
+     * Same as {@link #getKey(String, List, List)}, for a lane: Identical
+     * transcodings of different lanes are not shared, so an interactive
+     * conversion never waits for the quota of the backfill lane
+     *
+     * @param inDigest digest of the video
+     * @param inPresetIds
+     * @param inOutputFileSuffixes
+     * @param inPriority
+     * @return the key of the transcoding
+     * @since 8.3
+     */
+    public static String getKey(String inDigest, List<String> inPresetIds,
+            List<String> inOutputFileSuffixes, TranscodingPriority inPriority) {
+
+        return getKey(inDigest, inPresetIds, inOutputFileSuffixes) + "\n"
+                + inPriority.getName();
+    }
+
+    /**
+     * Returns the digest of the blob: the one computed by the binary manager
+     * if any, else the MD5 of its content. Used for the keys, whether the
+     * {@link TranscodedResultCache} is enabled or not.
+     *
+     * @param inBlob
+     * @return the digest
+     * @throws IOException
+     * @since 8.3
+     */
+    public static String getDigest(Blob inBlob) throws IOException {
+
+        String digest = inBlob.getDigest();
+        if (StringUtils.isNotBlank(digest)) {
+            return digest;
+        }
+        try (InputStream in = inBlob.getStream()) {
+            return DigestUtils.md5Hex(in);
+        }
+    }
+
+    /**
+     * Returns the result of the transcoding running for this key, or starts
+     * it with <code>inStart</code> if none is running. <code>inStart</code> is
+     * called by the calling thread.
+     *
+     * @param inKey see {@link #getKey(String, List, List, TranscodingPriority)}
+     * @param inStart starts the transcoding
+     * @return a future completed with the transcoded blobs (copies of them if
+     *         the transcoding was started by another caller)
+     */
+    public CompletableFuture<List<Blob>> transcode(String inKey,
+            Supplier<CompletableFuture<List<Blob>>> inStart) {
+
+        CompletableFuture<List<Blob>> future = new CompletableFuture<List<Blob>>();
+        CompletableFuture<List<Blob>> existing = running.putIfAbsent(inKey,
+                future);
+        if (existing != null) {
+            coalesced.incrementAndGet();
+            return existing.thenApply(InFlightTranscodings::copyBlobs);
+        }
+
+        try {
+            inStart.get().whenComplete((blobs, e) -> {
+                // Removed first: a caller arriving now starts a new
+                // transcoding (or finds the result in the cache)
+                running.remove(inKey, future);
+                if (e != null) {
+                    future.completeExceptionally(e);
+                } else {
+                    future.complete(blobs);
+                }
+            });
+        } catch (RuntimeException e) {
+            running.remove(inKey, future);
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    /**
+     * @return the number of transcodings in progress
+     */
+    public int getRunningCount() {
+        return running.size();
+    }
+
+    /**
+     * @return the number of calls attached to a running transcoding instead
+     *         of starting a new one
+     */
+    public long getCoalescedCount() {
+        return coalesced.get();
+    }
+
+    protected static List<Blob> copyBlobs(List<Blob> inBlobs) {
+
+        List<Blob> copies = new ArrayList<Blob>();
+        for (Blob blob : inBlobs) {
+            try {
+                String name = StringUtils.defaultString(blob.getFilename());
+                String ext = name.contains(".") ? StringUtils.substringAfterLast(
+                        name, ".") : "tmp";
+                File tmp = File.createTempFile("NxAWSET-", "." + ext);
+                tmp.deleteOnExit();
+                try (InputStream in = blob.getStream()) {
+                    Files.copy(in, tmp.toPath(),
+                            StandardCopyOption.REPLACE_EXISTING);
+                }
+                Blob copy = new FileBlob(tmp);
+                copy.setFilename(blob.getFilename());
+                copy.setMimeType(blob.getMimeType());
+                Framework.trackFile(tmp, copy);
+                copies.add(copy);
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+        }
+        return copies;
+    }
+
+}
@@ -0,0 +1,97 @@
+/*
+ * (C) Copyright 2016 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.aws.elastictranscoder.cache;
+
+import java.io.IOException;
+
+import org.nuxeo.ecm.core.api.Blob;
+
+/**
+ * Persistent cache of the transcoded blobs, keyed by the digest of the video,
+ * the preset and the output file suffix: Converting again a video already
+ * converted with the same preset (duplicated assets, re-imports...) returns
+ * the stored result, without any AWS call.
+ * <p>
+ * The cache is bounded by size and by age (see
+ * <code>aws.transcoder.cache.maxsize.mb</code> and
+ * <code>aws.transcoder.cache.maxage.days</code>). The least recently used
+ * entries are evicted first.
+ *
+ * @since 8.3
+ */
+public interface TranscodedResultCache {
+
+    /**
+     * @return false if the cache is disabled in the configuration. It is then
+     *         always empty.
+     */
+    public boolean isEnabled();
+
+    /**
+     * @param inDigest digest of the video
+     * @param inPresetId
+     * @param inOutputFileSuffix can be null
+     * @return a copy of the cached blob (the caller can do anything with it),
+     *         or null if it is not in the cache
+     */
+    public Blob get(String inDigest, String inPresetId,
+            String inOutputFileSuffix);
+
+    /**
+     * Stores a copy of the transcoded blob. Errors are logged, not thrown: A
+     * failure to cache must not fail the conversion.
+     *
+     * @param inDigest digest of the video
+     * @param inPresetId
+     * @param inOutputFileSuffix can be null
+     * @param inBlob the transcoded blob
+     */
+    public void put(String inDigest, String inPresetId,
+            String inOutputFileSuffix, Blob inBlob);
+
+    /**
+     * Returns the digest of the blob: the one computed by the binary manager
+     * if any, else the MD5 of its content.
+     *
+     * @param inBlob
+     * @return the digest
+     * @throws IOException
+     */
+    public String getDigest(Blob inBlob) throws IOException;
+
+    /**
+     * Removes the expired entries, then the least recently used ones until
+     * the cache is under its max. size. Also run automatically when needed.
+     *
+     * @return the number of entries removed
+     */
+    public int evict();
+
+    public void clear();
+
+    public long getHitsCount();
+
+    public long getMissesCount();
+
+    public long getEvictionsCount();
+
+    /**
+     * @return the size of the cached blobs, in bytes
+     */
+    public long getSize();
+
+}
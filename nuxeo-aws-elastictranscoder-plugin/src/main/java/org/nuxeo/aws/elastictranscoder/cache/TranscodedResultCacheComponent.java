@@ -0,0 +1,352 @@
+/*
+ * (C) Copyright 2016 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.aws.elastictranscoder.cache;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.nuxeo.aws.elastictranscoder.AWSElasticTranscoderConstants;
+import org.nuxeo.common.Environment;
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.impl.blob.FileBlob;
+import org.nuxeo.runtime.api.Framework;
+import org.nuxeo.runtime.model.ComponentContext;
+import org.nuxeo.runtime.model.DefaultComponent;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Default implementation of the {@link TranscodedResultCache} service, storing
+ * the blobs in the data directory of the server. Each entry is made of two
+ * files named after the hash of the key: the blob itself, and its description
+ * (a {@link TranscodedResultCacheEntry}, as JSON). The last modification date
+ * of the description is updated at each hit, and is used to evict the least
+ * recently used entries.
+ *
+ * @since 8.3
+ */
+public class TranscodedResultCacheComponent extends DefaultComponent implements
+        TranscodedResultCache {
+
+    private static final Log log = LogFactory.getLog(TranscodedResultCacheComponent.class);
+
+    protected static final String CACHE_DIRECTORY = "aws-elastictranscoder"
+            + File.separator + "cache";
+
+    protected static final String BLOB_FILE_EXTENSION = ".bin";
+
+    protected static final String ENTRY_FILE_EXTENSION = ".json";
+
+    protected static final String TMP_FILE_EXTENSION = ".tmp";
+
+    // Expired entries are removed at least this often, even if the cache is
+    // not full
+    protected static final long EVICTION_INTERVAL_MS = TimeUnit.HOURS.toMillis(1);
+
+    // A full cache is reduced to this ratio of its max. size, so the eviction
+    // does not run again at the next put
+    protected static final double EVICTION_TARGET_RATIO = 0.9;
+
+    private static final ObjectMapper mapper = new ObjectMapper();
+
+    protected File cacheDirectory;
+
+    protected long maxSize;
+
+    protected long maxAgeMs;
+
+    protected volatile long lastEviction;
+
+    protected final AtomicLong size = new AtomicLong();
+
+    protected final AtomicLong hits = new AtomicLong();
+
+    protected final AtomicLong misses = new AtomicLong();
+
+    protected final AtomicLong evictions = new AtomicLong();
+
+    @Override
+    public void activate(ComponentContext context) {
+
+        File data = Environment.getDefault().getData();
+        cacheDirectory = new File(data, CACHE_DIRECTORY);
+        cacheDirectory.mkdirs();
+
+        maxSize = AWSElasticTranscoderConstants.getCacheMaxSizeMB() * 1024L * 1024L;
+        int maxAgeDays = AWSElasticTranscoderConstants.getCacheMaxAgeDays();
+        maxAgeMs = maxAgeDays > 0 ? TimeUnit.DAYS.toMillis(maxAgeDays) : 0;
+    }
+
+    @Override
+    public void applicationStarted(ComponentContext context) {
+
+        if (isEnabled()) {
+            // Also computes the current size
+            evict();
+        } else {
+            // Don't keep the entries of a previous configuration
+            clear();
+        }
+    }
+
+    @Override
+    public boolean isEnabled() {
+        return maxSize > 0;
+    }
+
+    @Override
+    public Blob get(String inDigest, String inPresetId,
+            String inOutputFileSuffix) {
+
+        if (!isEnabled() || StringUtils.isBlank(inDigest)) {
+            return null;
+        }
+
+        String key = getKey(inDigest, inPresetId, inOutputFileSuffix);
+        File entryFile = getEntryFile(key);
+        TranscodedResultCacheEntry entry = readEntry(entryFile);
+        if (entry == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        if (isExpired(entry)) {
+            remove(key);
+            misses.incrementAndGet();
+            return null;
+        }
+
+        try {
+            File tmp = File.createTempFile("NxAWSET-",
+                    StringUtils.defaultString(inOutputFileSuffix));
+            tmp.deleteOnExit();
+            Files.copy(getBlobFile(key).toPath(), tmp.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING);
+
+            Blob result = new FileBlob(tmp);
+            result.setMimeType(entry.getMimeType());
+            Framework.trackFile(tmp, result);
+
+            entryFile.setLastModified(System.currentTimeMillis());
+            hits.incrementAndGet();
+            return result;
+
+        } catch (IOException e) {
+            // Evicted in the meantime for example
+            log.debug("Cannot read the cached blob " + key, e);
+            misses.incrementAndGet();
+            return null;
+        }
+    }
+
+    @Override
+    public void put(String inDigest, String inPresetId,
+            String inOutputFileSuffix, Blob inBlob) {
+
+        if (!isEnabled() || StringUtils.isBlank(inDigest) || inBlob == null) {
+            return;
+        }
+
+        String key = getKey(inDigest, inPresetId, inOutputFileSuffix);
+        File blobFile = getBlobFile(key);
+        File tmp = null;
+        try {
+            // Write then rename, so a reader never gets a partial file
+            tmp = File.createTempFile(key, TMP_FILE_EXTENSION, cacheDirectory);
+            try (InputStream in = inBlob.getStream()) {
+                Files.copy(in, tmp.toPath(),
+                        StandardCopyOption.REPLACE_EXISTING);
+            }
+            long length = tmp.length();
+            long previousLength = blobFile.length();
+            Files.move(tmp.toPath(), blobFile.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+
+            TranscodedResultCacheEntry entry = new TranscodedResultCacheEntry();
+            entry.setDigest(inDigest);
+            entry.setPresetId(inPresetId);
+            entry.setOutputFileSuffix(inOutputFileSuffix);
+            entry.setMimeType(inBlob.getMimeType());
+            entry.setLength(length);
+            entry.setCreated(System.currentTimeMillis());
+
+            tmp = File.createTempFile(key, TMP_FILE_EXTENSION, cacheDirectory);
+            mapper.writeValue(tmp, entry);
+            Files.move(tmp.toPath(), getEntryFile(key).toPath(),
+                    StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+
+            size.addAndGet(length - previousLength);
+
+        } catch (IOException e) {
+            log.error("Cannot cache the transcoded blob " + key, e);
+            if (tmp != null) {
+                tmp.delete();
+            }
+            return;
+        }
+
+        if (size.get() > maxSize
+                || System.currentTimeMillis() - lastEviction > EVICTION_INTERVAL_MS) {
+            evict();
+        }
+    }
+
+    @Override
+    public String getDigest(Blob inBlob) throws IOException {
+        return InFlightTranscodings.getDigest(inBlob);
+    }
+
+    @Override
+    public synchronized int evict() {
+
+        long now = System.currentTimeMillis();
+        lastEviction = now;
+
+        int removed = 0;
+        long total = 0;
+        List<File> kept = new ArrayList<File>();
+
+        File[] files = cacheDirectory.listFiles();
+        if (files == null) {
+            return 0;
+        }
+        for (File file : files) {
+            String name = file.getName();
+            if (name.endsWith(ENTRY_FILE_EXTENSION)) {
+                String key = StringUtils.removeEnd(name, ENTRY_FILE_EXTENSION);
+                TranscodedResultCacheEntry entry = readEntry(file);
+                File blobFile = getBlobFile(key);
+                if (entry == null || !blobFile.exists() || isExpired(entry)) {
+                    remove(key);
+                    removed += 1;
+                } else {
+                    kept.add(file);
+                    total += blobFile.length();
+                }
+            } else if (now - file.lastModified() > EVICTION_INTERVAL_MS
+                    && (name.endsWith(TMP_FILE_EXTENSION) || !getEntryFile(
+                            StringUtils.removeEnd(name, BLOB_FILE_EXTENSION)).exists())) {
+                // Left by a crash during a put
+                file.delete();
+            }
+        }
+
+        if (total > maxSize) {
+            long target = (long) (maxSize * EVICTION_TARGET_RATIO);
+            kept.sort(Comparator.comparingLong(File::lastModified));
+            for (File file : kept) {
+                if (total <= target) {
+                    break;
+                }
+                String key = StringUtils.removeEnd(file.getName(),
+                        ENTRY_FILE_EXTENSION);
+                total -= getBlobFile(key).length();
+                remove(key);
+                removed += 1;
+            }
+        }
+
+        size.set(total);
+        evictions.addAndGet(removed);
+        return removed;
+    }
+
+    @Override
+    public synchronized void clear() {
+
+        File[] files = cacheDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        size.set(0);
+    }
+
+    @Override
+    public long getHitsCount() {
+        return hits.get();
+    }
+
+    @Override
+    public long getMissesCount() {
+        return misses.get();
+    }
+
+    @Override
+    public long getEvictionsCount() {
+        return evictions.get();
+    }
+
+    @Override
+    public long getSize() {
+        return size.get();
+    }
+
+    protected boolean isExpired(TranscodedResultCacheEntry inEntry) {
+        return maxAgeMs > 0
+                && System.currentTimeMillis() - inEntry.getCreated() > maxAgeMs;
+    }
+
+    protected void remove(String inKey) {
+        // The description first: the entry is then considered missing
+        getEntryFile(inKey).delete();
+        getBlobFile(inKey).delete();
+    }
+
+    protected TranscodedResultCacheEntry readEntry(File inFile) {
+
+        if (!inFile.exists()) {
+            return null;
+        }
+        try {
+            return mapper.readValue(inFile, TranscodedResultCacheEntry.class);
+        } catch (IOException e) {
+            // Removed in the meantime, or invalid
+            return null;
+        }
+    }
+
+    protected String getKey(String inDigest, String inPresetId,
+            String inOutputFileSuffix) {
+        // Hashed: safe as a file name, whatever the suffix
+        return DigestUtils.sha256Hex(inDigest + "\n" + inPresetId + "\n"
+                + StringUtils.defaultString(inOutputFileSuffix));
+    }
+
+    protected File getBlobFile(String inKey) {
+        return new File(cacheDirectory, inKey + BLOB_FILE_EXTENSION);
+    }
+
+    protected File getEntryFile(String inKey) {
+        return new File(cacheDirectory, inKey + ENTRY_FILE_EXTENSION);
+    }
+
+}
@@ -19,14 +19,24 @@ package org.nuxeo.aws.elastictranscoder.connverters;
 import java.io.IOException;
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Supplier;
 
 import org.apache.commons.lang.StringUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.nuxeo.aws.elastictranscoder.AWSElasticTranscoder;
 import org.nuxeo.aws.elastictranscoder.AWSElasticTranscoderConstants;
+import org.nuxeo.aws.elastictranscoder.TranscodingPriority;
+import org.nuxeo.aws.elastictranscoder.cache.InFlightTranscodings;
+import org.nuxeo.aws.elastictranscoder.cache.TranscodedResultCache;
+import org.nuxeo.aws.elastictranscoder.pool.PipelinePool;
+import org.nuxeo.aws.elastictranscoder.pool.PipelinePoolService;
+import org.nuxeo.aws.elastictranscoder.pool.PooledPipeline;
 import org.nuxeo.ecm.core.api.Blob;
 import org.nuxeo.ecm.core.api.NuxeoException;
 import org.nuxeo.ecm.core.api.blobholder.BlobHolder;
@@ -34,6 +44,7 @@ import org.nuxeo.ecm.core.convert.api.ConversionException;
 import org.nuxeo.ecm.core.convert.cache.SimpleCachableBlobHolder;
 import org.nuxeo.ecm.core.convert.extension.Converter;
 import org.nuxeo.ecm.core.convert.extension.ConverterDescriptor;
+import org.nuxeo.runtime.api.Framework;
 
 /**
  * The converter is contributed via an XML extension (see
@@ -44,14 +55,47 @@ import org.nuxeo.ecm.core.convert.extension.ConverterDescriptor;
  * <li>outputBucket</li>
  * <li>pipelineId</li>
  * <li>presetId</li>
- * <li>sqsQueueUrl</li>
+ * <li>sqsQueueUrl: optional, the end of the job is polled if there is no
+ * queue</li>
  * <li>deleteInputFileWhenDone</li>
  * <li>deleteOutputFileWhenDone</li>
  * <li>outputFileSuffix: file extension to use (to generate the
  * <code>filename</code> field of the resulting blob). Can be actually anything
  * that will be added to the filename</li>
+ * <li>multipartThresholdMB: videos of this size or bigger are uploaded in
+ * several parts, in parallel. 0 disables the multipart upload</li>
+ * <li>multipartPartSizeMB: size of each part (min. 5)</li>
+ * <li>multipartParallelism: max. number of parts uploaded at the same time</li>
+ * <li>rangedDownloadThresholdMB: transcoded videos of this size or bigger are
+ * downloaded by ranges, in parallel (using the multipart part size and
+ * parallelism). 0 disables the ranged download</li>
+ * <li>presetIds and outputFileSuffixes: comma separated lists, to get
+ * several transcoded blobs from a single job (the video is uploaded only once).
+ * There must be one suffix per preset. When set, presetIds is used instead of
+ * presetId and outputFileSuffix, and the result holds one blob per preset, in
+ * the same order</li>
+ * <li>binaryStoreBucket, binaryStorePrefix: bucket and prefix of the Nuxeo S3
+ * binary store. Videos stored there are copied to the input bucket on S3 side
+ * (or used as is if it is the input bucket), instead of being sent by the
+ * server. Default values are the ones of the S3 binary manager</li>
+ * <li>binaryStoreProvider: id of the blob provider storing its binaries in
+ * binaryStoreBucket, the blobs of the other providers are sent by the server.
+ * Default: <code>default</code></li>
+ * <li>pipelinePool: name of a {@link PipelinePool}. The jobs are spread on its
+ * pipelines (each with its own buckets and queue): inputBucket, outputBucket,
+ * pipelineId and sqsQueueUrl are then ignored</li>
+ * <li>priority: default {@link TranscodingPriority} lane of the conversions
+ * (<code>interactive</code>, <code>automatic</code> or
+ * <code>backfill</code>). Default: <code>automatic</code>. A conversion can
+ * set its own with the <code>priority</code> conversion parameter</li>
  * </ul>
  * <p>
+ * The results are kept in the {@link TranscodedResultCache}: A video already
+ * converted with the same preset is not sent to AWS again. With several
+ * presets, only the ones missing from the cache are transcoded. If the same
+ * conversion of the same video is already running on this node, the
+ * converter waits for its result (see {@link InFlightTranscodings}).
+ * <p>
  * For all parameters except <code>outputFileSuffix</code>: If a parameter is
  * missing, the class gets it from the configuration (nuxeo.conf). If it is not
  * there, the conversion will fail.
@@ -62,6 +106,10 @@ public class AWSElasticTranscoderConverter implements Converter {
 
     private static Log log = LogFactory.getLog(AWSElasticTranscoderConverter.class);
 
+    protected static final long MB = 1024L * 1024L;
+
+    protected static final String DEFAULT_SOURCE_FILE_NAME = "video";
+
     protected String inputBucket;
 
     protected String outputBucket;
@@ -70,6 +118,8 @@ public class AWSElasticTranscoderConverter implements Converter {
 
     protected String presetId;
 
+    protected List<String> presetIds;
+
     protected String sqsQueueUrl;
 
     protected boolean deleteInputFileWhenDone;
@@ -78,6 +128,26 @@ public class AWSElasticTranscoderConverter implements Converter {
 
     protected String outputFileSuffix;
 
+    protected List<String> outputFileSuffixes;
+
+    protected int multipartThresholdMB;
+
+    protected int multipartPartSizeMB;
+
+    protected int multipartParallelism;
+
+    protected int rangedDownloadThresholdMB;
+
+    protected String binaryStoreBucket;
+
+    protected String binaryStorePrefix;
+
+    protected String binaryStoreProvider;
+
+    protected String pipelinePoolName;
+
+    protected TranscodingPriority priority;
+
     @Override
     public void init(ConverterDescriptor descriptor) {
 
@@ -113,6 +183,64 @@ public class AWSElasticTranscoderConverter implements Converter {
 
         outputFileSuffix = params.get("outputFileSuffix");
 
+        presetIds = splitParameter(params.get("presetIds"));
+        if (presetIds.isEmpty()) {
+            presetIds = Collections.singletonList(presetId);
+            outputFileSuffixes = Collections.singletonList(outputFileSuffix);
+        } else {
+            outputFileSuffixes = splitParameter(params.get("outputFileSuffixes"));
+        }
+
+        multipartThresholdMB = getIntParameter(params, "multipartThresholdMB",
+                AWSElasticTranscoderConstants.getDefaultMultipartThresholdMB());
+        multipartPartSizeMB = getIntParameter(params, "multipartPartSizeMB",
+                AWSElasticTranscoderConstants.getDefaultMultipartPartSizeMB());
+        multipartParallelism = getIntParameter(params, "multipartParallelism",
+                AWSElasticTranscoderConstants.getDefaultMultipartParallelism());
+        rangedDownloadThresholdMB = getIntParameter(params,
+                "rangedDownloadThresholdMB",
+                AWSElasticTranscoderConstants.getDefaultRangedDownloadThresholdMB());
+
+        binaryStoreBucket = StringUtils.defaultIfBlank(
+                params.get("binaryStoreBucket"),
+                AWSElasticTranscoderConstants.getBinaryStoreBucket());
+        binaryStorePrefix = StringUtils.defaultIfBlank(
+                params.get("binaryStorePrefix"),
+                AWSElasticTranscoderConstants.getBinaryStorePrefix());
+        binaryStoreProvider = StringUtils.defaultIfBlank(
+                params.get("binaryStoreProvider"),
+                AWSElasticTranscoderConstants.getBinaryStoreProvider());
+
+        pipelinePoolName = StringUtils.trimToNull(params.get("pipelinePool"));
+
+        priority = TranscodingPriority.fromString(params.get("priority"),
+                TranscodingPriority.AUTOMATIC);
+
+    }
+
+    protected List<String> splitParameter(String inValue) {
+
+        List<String> values = new ArrayList<String>();
+        if (StringUtils.isNotBlank(inValue)) {
+            for (String value : inValue.split(",")) {
+                values.add(value.trim());
+            }
+        }
+        return values;
+    }
+
+    protected int getIntParameter(Map<String, String> inParams, String inName,
+            int inDefault) {
+
+        String str = inParams.get(inName);
+        if (StringUtils.isNotBlank(str)) {
+            try {
+                return Integer.parseInt(str.trim());
+            } catch (NumberFormatException e) {
+                log.warn("Invalid value for parameter " + inName + ": " + str);
+            }
+        }
+        return inDefault;
     }
 
     @Override
@@ -122,15 +250,90 @@ public class AWSElasticTranscoderConverter implements Converter {
         List<Blob> results = new ArrayList<Blob>();
 
         Blob theBlob = blobHolder.getBlob();
+        Serializable value = parameters == null ? null
+                : parameters.get("priority");
+        TranscodingPriority conversionPriority = TranscodingPriority.fromString(
+                value == null ? null : value.toString(), priority);
         try {
-            AWSElasticTranscoder transcoder = new AWSElasticTranscoder(theBlob,
-                    presetId, inputBucket, outputBucket, pipelineId,
-                    sqsQueueUrl, outputFileSuffix);
+            // Presets already applied to the same video: no AWS call
+            TranscodedResultCache cache = Framework.getService(TranscodedResultCache.class);
+            String digest = null;
+            Blob[] blobs = new Blob[presetIds.size()];
+            if (cache != null && cache.isEnabled()) {
+                digest = cache.getDigest(theBlob);
+                for (int i = 0; i < presetIds.size(); i++) {
+                    Blob cached = cache.get(digest, presetIds.get(i),
+                            outputFileSuffixes.get(i));
+                    if (cached != null) {
+                        cached.setFilename(getOutputFileName(theBlob,
+                                outputFileSuffixes.get(i)));
+                        blobs[i] = cached;
+                    }
+                }
+            }
+
+            List<Integer> missing = new ArrayList<Integer>();
+            for (int i = 0; i < blobs.length; i++) {
+                if (blobs[i] == null) {
+                    missing.add(i);
+                }
+            }
+
+            if (!missing.isEmpty()) {
+                List<String> missingPresetIds = new ArrayList<String>();
+                List<String> missingSuffixes = new ArrayList<String>();
+                for (int i : missing) {
+                    missingPresetIds.add(presetIds.get(i));
+                    missingSuffixes.add(outputFileSuffixes.get(i));
+                }
+
+                String cacheDigest = digest;
+                Supplier<CompletableFuture<List<Blob>>> start = () -> {
+                    AWSElasticTranscoder transcoder = newTranscoder(theBlob,
+                            missingPresetIds, missingSuffixes);
+                    transcoder.setPriority(conversionPriority);
+                    return transcoder.transcodeAsync().thenApply(blob -> {
+                        List<Blob> transcoded = transcoder.getTranscodedBlobs();
+                        if (cacheDigest != null) {
+                            for (int j = 0; j < transcoded.size(); j++) {
+                                cache.put(cacheDigest, missingPresetIds.get(j),
+                                        missingSuffixes.get(j),
+                                        transcoded.get(j));
+                            }
+                        }
+                        return transcoded;
+                    });
+                };
+
+                // The same conversion may be running already (other user,
+                // automatic conversion...): wait for it instead, with or
+                // without the cache. Not across lanes: an interactive
+                // conversion must not wait for the quota of the backfill lane.
+                String videoDigest = digest != null ? digest
+                        : InFlightTranscodings.getDigest(theBlob);
+                CompletableFuture<List<Blob>> future = InFlightTranscodings.get().transcode(
+                        InFlightTranscodings.getKey(videoDigest,
+                                missingPresetIds, missingSuffixes,
+                                conversionPriority), start);
 
-            transcoder.transcode();
+                List<Blob> transcoded;
+                try {
+                    transcoded = future.join();
+                } catch (CompletionException e) {
+                    if (e.getCause() instanceof RuntimeException) {
+                        throw (RuntimeException) e.getCause();
+                    }
+                    throw new NuxeoException(e.getCause());
+                }
+                for (int j = 0; j < missing.size(); j++) {
+                    int i = missing.get(j);
+                    blobs[i] = transcoded.get(j);
+                    blobs[i].setFilename(getOutputFileName(theBlob,
+                            outputFileSuffixes.get(i)));
+                }
+            }
 
-            Blob transcodedBlob = transcoder.getTranscodedBlob();
-            results.add(transcodedBlob);
+            Collections.addAll(results, blobs);
 
         } catch (NuxeoException | IOException e) {
             log.error("Cannot convert video", e);
@@ -139,4 +342,150 @@ public class AWSElasticTranscoderConverter implements Converter {
         return new SimpleCachableBlobHolder(results);
     }
 
+    /**
+     * @return a transcoder of the blob with all the presets and the settings
+     *         of this converter, not started
+     * @since 8.3
+     */
+    public AWSElasticTranscoder newTranscoder(Blob inBlob) {
+
+        AWSElasticTranscoder transcoder = newTranscoder(inBlob, presetIds,
+                outputFileSuffixes);
+        transcoder.setPriority(priority);
+        return transcoder;
+    }
+
+    /**
+     * @return the transcoded blobs of all the presets, named as if they were
+     *         just transcoded, or null if one of them is not in the
+     *         {@link TranscodedResultCache}
+     * @throws IOException
+     * @since 8.3
+     */
+    public List<Blob> getCachedBlobs(Blob inBlob) throws IOException {
+
+        TranscodedResultCache cache = Framework.getService(TranscodedResultCache.class);
+        if (cache == null || !cache.isEnabled()) {
+            return null;
+        }
+        String digest = cache.getDigest(inBlob);
+        List<Blob> blobs = new ArrayList<Blob>();
+        for (int i = 0; i < presetIds.size(); i++) {
+            Blob cached = cache.get(digest, presetIds.get(i),
+                    outputFileSuffixes.get(i));
+            if (cached == null) {
+                return null;
+            }
+            cached.setFilename(getOutputFileName(inBlob,
+                    outputFileSuffixes.get(i)));
+            blobs.add(cached);
+        }
+        return blobs;
+    }
+
+    /**
+     * Puts the blobs transcoded from <code>inBlob</code> (one per preset) in
+     * the {@link TranscodedResultCache}
+     *
+     * @since 8.3
+     */
+    public void cacheBlobs(Blob inBlob, List<Blob> inTranscodedBlobs)
+            throws IOException {
+
+        TranscodedResultCache cache = Framework.getService(TranscodedResultCache.class);
+        if (cache == null || !cache.isEnabled()) {
+            return;
+        }
+        String digest = cache.getDigest(inBlob);
+        for (int i = 0; i < inTranscodedBlobs.size(); i++) {
+            cache.put(digest, presetIds.get(i), outputFileSuffixes.get(i),
+                    inTranscodedBlobs.get(i));
+        }
+    }
+
+    /**
+     * @return the default lane of the conversions
+     * @since 8.3
+     */
+    public TranscodingPriority getPriority() {
+        return priority;
+    }
+
+    /**
+     * @since 8.3
+     */
+    public List<String> getPresetIds() {
+        return presetIds;
+    }
+
+    /**
+     * @since 8.3
+     */
+    public List<String> getOutputFileSuffixes() {
+        return outputFileSuffixes;
+    }
+
+    protected AWSElasticTranscoder newTranscoder(Blob inBlob,
+            List<String> inPresetIds, List<String> inOutputFileSuffixes) {
+
+        // With a pool, the pipeline is chosen when the transcoding starts:
+        // use its first one until then
+        PipelinePool pool = getPipelinePool();
+        PooledPipeline first = pool == null ? null
+                : pool.getPipelines().get(0);
+
+        AWSElasticTranscoder transcoder;
+        try {
+            transcoder = first == null ? new AWSElasticTranscoder(inBlob,
+                    inPresetIds, inputBucket, outputBucket, pipelineId,
+                    sqsQueueUrl, inOutputFileSuffixes)
+                    : new AWSElasticTranscoder(inBlob, inPresetIds,
+                            first.getInputBucket(), first.getOutputBucket(),
+                            first.getId(), first.getSqsQueueUrl(),
+                            inOutputFileSuffixes);
+        } catch (IOException e) {
+            throw new NuxeoException(e);
+        }
+        transcoder.setPipelinePool(pool);
+        transcoder.setMultipartThreshold(multipartThresholdMB * MB);
+        transcoder.setMultipartPartSize(multipartPartSizeMB * MB);
+        transcoder.setMultipartParallelism(multipartParallelism);
+        transcoder.setRangedDownloadThreshold(rangedDownloadThresholdMB * MB);
+        transcoder.setBinaryStore(binaryStoreBucket, binaryStorePrefix,
+                binaryStoreProvider);
+        return transcoder;
+    }
+
+    /**
+     * @return the pool of pipelines set in the <code>pipelinePool</code>
+     *         parameter, null if there is none
+     * @throws NuxeoException if the pool is not registered
+     * @since 8.3
+     */
+    public PipelinePool getPipelinePool() throws NuxeoException {
+
+        if (pipelinePoolName == null) {
+            return null;
+        }
+        PipelinePoolService service = Framework.getService(PipelinePoolService.class);
+        PipelinePool pool = service == null ? null
+                : service.getPool(pipelinePoolName);
+        if (pool == null) {
+            throw new NuxeoException("Unknown pipeline pool: "
+                    + pipelinePoolName);
+        }
+        return pool;
+    }
+
+    /*
+     * Same name as the one given by AWSElasticTranscoder to the blobs it
+     * downloads
+     */
+    protected String getOutputFileName(Blob inBlob, String inOutputFileSuffix) {
+
+        return StringUtils.defaultIfBlank(inBlob.getFilename(),
+                DEFAULT_SOURCE_FILE_NAME)
+                + StringUtils.defaultString(inOutputFileSuffix);
+    }
+
 }
@@ -0,0 +1,112 @@
+/*
+ * (C) Copyright 2016 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.aws.elastictranscoder.jobs;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.ecm.core.api.IdRef;
+import org.nuxeo.ecm.core.api.UnrestrictedSessionRunner;
+import org.nuxeo.ecm.platform.video.TranscodedVideo;
+import org.nuxeo.ecm.platform.video.VideoHelper;
+import org.nuxeo.ecm.platform.video.VideoInfo;
+import org.nuxeo.runtime.transaction.TransactionHelper;
+
+/**
+ * Saves transcoded blobs in the <code>vid:transcodedVideos</code> field of a
+ * Video document, the same way the video conversions do.
+ *
+ * @since 8.3
+ */
+public class TranscodedVideoUpdater {
+
+    private static final Log log = LogFactory.getLog(TranscodedVideoUpdater.class);
+
+    public static final String TRANSCODED_VIDEOS_PROPERTY = "vid:transcodedVideos";
+
+    private TranscodedVideoUpdater() {
+    }
+
+    /**
+     * Saves the blob(s) in a transaction of their own. The first blob is saved
+     * under <code>inConversionName</code>, the next ones (if the job had
+     * several presets) under <code>inConversionName</code> + the output suffix.
+     * A previous transcoded video with the same name is replaced.
+     *
+     * @param inRepository
+     * @param inDocId
+     * @param inConversionName
+     * @param inBlobs
+     * @param inSuffixes
+     */
+    public static void save(String inRepository, String inDocId,
+            String inConversionName, List<Blob> inBlobs, List<String> inSuffixes) {
+
+        boolean txStarted = !TransactionHelper.isTransactionActive()
+                && TransactionHelper.startTransaction();
+        try {
+            new UnrestrictedSessionRunner(inRepository) {
+                @Override
+                public void run() {
+                    IdRef ref = new IdRef(inDocId);
+                    if (!session.exists(ref)) {
+                        log.warn("Document " + inDocId
+                                + " does not exist anymore, cannot save "
+                                + inConversionName);
+                        return;
+                    }
+                    DocumentModel doc = session.getDocument(ref);
+                    @SuppressWarnings("unchecked")
+                    List<Map<String, Serializable>> videos = (List<Map<String, Serializable>>) doc.getPropertyValue(TRANSCODED_VIDEOS_PROPERTY);
+                    videos = videos == null ? new ArrayList<Map<String, Serializable>>()
+                            : new ArrayList<Map<String, Serializable>>(videos);
+
+                    for (int i = 0; i < inBlobs.size(); i++) {
+                        String name = i == 0 ? inConversionName
+                                : inConversionName + inSuffixes.get(i);
+                        Blob blob = inBlobs.get(i);
+                        VideoInfo info = VideoHelper.getVideoInfo(blob);
+                        TranscodedVideo transcoded = TranscodedVideo.fromBlobAndInfo(
+                                name, blob, info);
+                        videos.removeIf(v -> name.equals(v.get("name")));
+                        videos.add(transcoded.toMap());
+                    }
+
+                    doc.setPropertyValue(TRANSCODED_VIDEOS_PROPERTY,
+                            (Serializable) videos);
+                    session.saveDocument(doc);
+                }
+            }.runUnrestricted();
+        } catch (RuntimeException e) {
+            if (txStarted) {
+                TransactionHelper.setTransactionRollbackOnly();
+            }
+            throw e;
+        } finally {
+            if (txStarted) {
+                TransactionHelper.commitOrRollbackTransaction();
+            }
+        }
+    }
+
+}
@@ -0,0 +1,190 @@
+/*
+ * (C) Copyright 2016 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.aws.elastictranscoder.jobs;
+
+import java.util.List;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+
+/**
+ * What must be known about a job submitted to Elastic Transcoder to collect
+ * its result (and cleanup the S3 files) if the server restarted while the job
+ * was running. Saved as JSON by the {@link TranscodingJobRegistry}.
+ *
+ * @since 8.3
+ */
+@JsonIgnoreProperties(ignoreUnknown = true)
+public class TranscodingJob {
+
+    private String awsJobId;
+
+    private String pipelineId;
+
+    private String sqsQueueUrl;
+
+    private String inputBucket;
+
+    private String inputKey;
+
+    private boolean deleteInput;
+
+    private String outputBucket;
+
+    private List<String> outputKeys;
+
+    private List<String> outputFileSuffixes;
+
+    private boolean deleteOutput;
+
+    private String uniqueFilePrefix;
+
+    private String repositoryName;
+
+    private String documentId;
+
+    private String conversionName;
+
+    private long submitted;
+
+    public String getAwsJobId() {
+        return awsJobId;
+    }
+
+    public void setAwsJobId(String awsJobId) {
+        this.awsJobId = awsJobId;
+    }
+
+    public String getPipelineId() {
+        return pipelineId;
+    }
+
+    public void setPipelineId(String pipelineId) {
+        this.pipelineId = pipelineId;
+    }
+
+    public String getSqsQueueUrl() {
+        return sqsQueueUrl;
+    }
+
+    public void setSqsQueueUrl(String sqsQueueUrl) {
+        this.sqsQueueUrl = sqsQueueUrl;
+    }
+
+    public String getInputBucket() {
+        return inputBucket;
+    }
+
+    public void setInputBucket(String inputBucket) {
+        this.inputBucket = inputBucket;
+    }
+
+    public String getInputKey() {
+        return inputKey;
+    }
+
+    public void setInputKey(String inputKey) {
+        this.inputKey = inputKey;
+    }
+
+    public boolean isDeleteInput() {
+        return deleteInput;
+    }
+
+    public void setDeleteInput(boolean deleteInput) {
+        this.deleteInput = deleteInput;
+    }
+
+    public String getOutputBucket() {
+        return outputBucket;
+    }
+
+    public void setOutputBucket(String outputBucket) {
+        this.outputBucket = outputBucket;
+    }
+
+    public List<String> getOutputKeys() {
+        return outputKeys;
+    }
+
+    public void setOutputKeys(List<String> outputKeys) {
+        this.outputKeys = outputKeys;
+    }
+
+    public List<String> getOutputFileSuffixes() {
+        return outputFileSuffixes;
+    }
+
+    public void setOutputFileSuffixes(List<String> outputFileSuffixes) {
+        this.outputFileSuffixes = outputFileSuffixes;
+    }
+
+    public boolean isDeleteOutput() {
+        return deleteOutput;
+    }
+
+    public void setDeleteOutput(boolean deleteOutput) {
+        this.deleteOutput = deleteOutput;
+    }
+
+    public String getUniqueFilePrefix() {
+        return uniqueFilePrefix;
+    }
+
+    public void setUniqueFilePrefix(String uniqueFilePrefix) {
+        this.uniqueFilePrefix = uniqueFilePrefix;
+    }
+
+    public String getRepositoryName() {
+        return repositoryName;
+    }
+
+    public void setRepositoryName(String repositoryName) {
+        this.repositoryName = repositoryName;
+    }
+
+    public String getDocumentId() {
+        return documentId;
+    }
+
+    public void setDocumentId(String documentId) {
+        this.documentId = documentId;
+    }
+
+    public String getConversionName() {
+        return conversionName;
+    }
+
+    public void setConversionName(String conversionName) {
+        this.conversionName = conversionName;
+    }
+
+    public long getSubmitted() {
+        return submitted;
+    }
+
+    public void setSubmitted(long submitted) {
+        this.submitted = submitted;
+    }
+
+    @Override
+    public String toString() {
+        return "TranscodingJob [awsJobId=" + awsJobId + ", pipelineId="
+                + pipelineId + ", inputKey=" + inputKey + ", outputKeys="
+                + outputKeys + ", documentId=" + documentId
+                + ", conversionName=" + conversionName + "]";
+    }
+}
@@ -0,0 +1,48 @@
+/*
+ * (C) Copyright 2016 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.aws.elastictranscoder.jobs;
+
+import java.util.List;
+
+/**
+ * Keeps track of the jobs submitted to Elastic Transcoder by this node, so they
+ * survive a restart: At startup, the jobs still registered are resumed (wait
+ * for their completion, save the result in the document waiting for it if
+ * any, cleanup the S3 files).
+ *
+ * @since 8.3
+ */
+public interface TranscodingJobRegistry {
+
+    /**
+     * Saves the job, replacing the previous version if any
+     */
+    public void save(TranscodingJob inJob);
+
+    /**
+     * Removes the job. Does nothing if the job is not registered.
+     */
+    public void remove(String inAwsJobId);
+
+    public List<TranscodingJob> getJobs();
+
+    /**
+     * @return the number of jobs resumed at startup
+     */
+    public int getRecoveredJobsCount();
+
+}
@@ -0,0 +1,138 @@
+/*
+ * (C) Copyright 2016 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.aws.elastictranscoder.jobs;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.nuxeo.aws.elastictranscoder.AWSElasticTranscoder;
+import org.nuxeo.common.Environment;
+import org.nuxeo.runtime.model.ComponentContext;
+import org.nuxeo.runtime.model.DefaultComponent;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Default implementation of the {@link TranscodingJobRegistry} service.
+ * <p>
+ * Each job is saved as a JSON file in the data directory of the server
+ * (<code>nxserver/data/aws-elastictranscoder/jobs</code>), so it survives a
+ * restart. This is a per node registry: A node resumes only the jobs it
+ * submitted. The jobs in progress of a node replaced, or whose data directory
+ * is wiped, are lost (their result is not saved, their S3 files are not
+ * cleaned up).
+ *
+ * @since 8.3
+ */
+public class TranscodingJobRegistryComponent extends DefaultComponent
+        implements TranscodingJobRegistry {
+
+    private static final Log log = LogFactory.getLog(TranscodingJobRegistryComponent.class);
+
+    protected static final String JOBS_DIRECTORY = "aws-elastictranscoder"
+            + File.separator + "jobs";
+
+    protected static final String JOB_FILE_EXTENSION = ".json";
+
+    private static final ObjectMapper mapper = new ObjectMapper();
+
+    protected File jobsDirectory;
+
+    protected int recoveredJobsCount = 0;
+
+    @Override
+    public void activate(ComponentContext context) {
+
+        File data = Environment.getDefault().getData();
+        jobsDirectory = new File(data, JOBS_DIRECTORY);
+        jobsDirectory.mkdirs();
+    }
+
+    @Override
+    public void applicationStarted(ComponentContext context) {
+
+        for (TranscodingJob job : getJobs()) {
+            try {
+                AWSElasticTranscoder.resume(job);
+                recoveredJobsCount += 1;
+                log.info("Resumed Elastic Transcoder job " + job);
+            } catch (RuntimeException e) {
+                // Keep it registered, we'll try again at next startup
+                log.error("Cannot resume the Elastic Transcoder job " + job, e);
+            }
+        }
+    }
+
+    @Override
+    public void save(TranscodingJob inJob) {
+
+        File file = getFile(inJob.getAwsJobId());
+        File tmp = new File(jobsDirectory, file.getName() + ".tmp");
+        try {
+            // Write then rename, so a crash never leaves a partial file
+            mapper.writeValue(tmp, inJob);
+            Files.move(tmp.toPath(), file.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            log.error("Cannot save the Elastic Transcoder job " + inJob, e);
+        }
+    }
+
+    @Override
+    public void remove(String inAwsJobId) {
+
+        if (StringUtils.isNotBlank(inAwsJobId)) {
+            getFile(inAwsJobId).delete();
+        }
+    }
+
+    @Override
+    public List<TranscodingJob> getJobs() {
+
+        List<TranscodingJob> jobs = new ArrayList<TranscodingJob>();
+        File[] files = jobsDirectory.listFiles((dir, name) -> name.endsWith(JOB_FILE_EXTENSION));
+        if (files != null) {
+            for (File file : files) {
+                try {
+                    jobs.add(mapper.readValue(file, TranscodingJob.class));
+                } catch (IOException e) {
+                    log.error("Invalid Elastic Transcoder job file " + file, e);
+                }
+            }
+        }
+        return jobs;
+    }
+
+    @Override
+    public int getRecoveredJobsCount() {
+        return recoveredJobsCount;
+    }
+
+    protected File getFile(String inAwsJobId) {
+        // Job ids are like 1234567890123-abcdef: safe as a file name
+        return new File(jobsDirectory, inAwsJobId + JOB_FILE_EXTENSION);
+    }
+
+}
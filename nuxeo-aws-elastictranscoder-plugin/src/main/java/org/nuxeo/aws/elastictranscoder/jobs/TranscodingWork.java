@@ -0,0 +1,238 @@
+/*
+ * (C) Copyright 2016 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.aws.elastictranscoder.jobs;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.nuxeo.aws.elastictranscoder.AWSElasticTranscoder;
+import org.nuxeo.aws.elastictranscoder.TranscodingPriority;
+import org.nuxeo.aws.elastictranscoder.cache.InFlightTranscodings;
+import org.nuxeo.aws.elastictranscoder.connverters.AWSElasticTranscoderConverter;
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.IdRef;
+import org.nuxeo.ecm.core.api.NuxeoException;
+import org.nuxeo.ecm.core.convert.extension.Converter;
+import org.nuxeo.ecm.core.convert.service.ConversionServiceImpl;
+import org.nuxeo.ecm.core.work.AbstractWork;
+
+/**
+ * Transcodes a video of a document with an {@link AWSElasticTranscoderConverter}
+ * without waiting for the job: The work only reads the blob and submits the
+ * transcoding, then ends (and commits). The upload, the job and the download
+ * run on the transcoding threads, and the transcoded blob(s) are saved in the
+ * <code>vid:transcodedVideos</code> field of the document when the job is done
+ * (see {@link TranscodedVideoUpdater}).
+ * <p>
+ * If the server restarts before the end of the job, the job is resumed at
+ * startup and the result is still saved in the document (see
+ * {@link TranscodingJobRegistry}). If the results of all the presets are in
+ * the cache, they are saved right away, by the work.
+ * <p>
+ * If the same transcoding (same video, presets and lane) is already running,
+ * started by another work or by the converter, the work does not create
+ * another job: It waits for this one and saves a copy of its result in the
+ * document (see {@link InFlightTranscodings}). Such a result is not resumed
+ * after a restart, only the job of the first caller is.
+ * <p>
+ * To be used instead of the conversion service when the caller does not need
+ * the result (manual conversion from the UI for example):
+ *
+ * <pre>
+ * Framework.getService(WorkManager.class).schedule(
+ *         new TranscodingWork(repo, docId, "file:content",
+ *                 "awsET_presetWeb", "Elastic Transcoder: Web"),
+ *         Scheduling.IF_NOT_SCHEDULED, true);
+ * </pre>
+ *
+ * The work submitting an interactive or backfill transcoding runs in a queue
+ * of its own (see {@link #getCategory(TranscodingPriority)}): A backlog of
+ * backfill works never holds up an interactive one. The submission itself
+ * never waits for the quota of the lane: The transcoding waits in the queue
+ * of {@link org.nuxeo.aws.elastictranscoder.TranscodingAdmission}, or is
+ * rejected (and logged) if this queue is full.
+ *
+ * @since 8.3
+ */
+public class TranscodingWork extends AbstractWork {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final Log log = LogFactory.getLog(TranscodingWork.class);
+
+    public static final String CATEGORY = "awsElasticTranscoder";
+
+    public static final String CATEGORY_INTERACTIVE = "awsElasticTranscoderInteractive";
+
+    public static final String CATEGORY_BACKFILL = "awsElasticTranscoderBackfill";
+
+    protected final String xpath;
+
+    protected final String converterName;
+
+    protected final String conversionName;
+
+    // null: the default of the converter
+    protected final TranscodingPriority priority;
+
+    /**
+     * @param inRepositoryName
+     * @param inDocId
+     * @param inXPath the blob to transcode (<code>file:content</code> for a
+     *            Video)
+     * @param inConverterName an {@link AWSElasticTranscoderConverter}
+     * @param inConversionName name of the transcoded video in the document
+     */
+    public TranscodingWork(String inRepositoryName, String inDocId,
+            String inXPath, String inConverterName, String inConversionName) {
+
+        this(inRepositoryName, inDocId, inXPath, inConverterName,
+                inConversionName, null);
+    }
+
+    /**
+     * @param inRepositoryName
+     * @param inDocId
+     * @param inXPath
+     * @param inConverterName
+     * @param inConversionName
+     * @param inPriority lane of the transcoding, null for the default of the
+     *            converter
+     * @since 8.3
+     */
+    public TranscodingWork(String inRepositoryName, String inDocId,
+            String inXPath, String inConverterName, String inConversionName,
+            TranscodingPriority inPriority) {
+
+        // Same id for the same conversion of the same document: scheduling it
+        // again while it is queued does nothing (Scheduling.IF_NOT_SCHEDULED)
+        super(CATEGORY + ":" + inRepositoryName + ":" + inDocId + ":"
+                + inConversionName);
+        setDocument(inRepositoryName, inDocId);
+        xpath = inXPath;
+        converterName = inConverterName;
+        conversionName = inConversionName;
+        priority = inPriority;
+    }
+
+    @Override
+    public String getCategory() {
+        return getCategory(priority);
+    }
+
+    /**
+     * @return the category (and queue) of the works of the lane
+     * @since 8.3
+     */
+    public static String getCategory(TranscodingPriority inPriority) {
+
+        if (inPriority == TranscodingPriority.INTERACTIVE) {
+            return CATEGORY_INTERACTIVE;
+        }
+        if (inPriority == TranscodingPriority.BACKFILL) {
+            return CATEGORY_BACKFILL;
+        }
+        return CATEGORY;
+    }
+
+    @Override
+    public String getTitle() {
+        return "Elastic Transcoder: " + conversionName + " of " + docId;
+    }
+
+    @Override
+    public void work() {
+
+        Converter converter = ConversionServiceImpl.getConverter(converterName);
+        if (!(converter instanceof AWSElasticTranscoderConverter)) {
+            throw new NuxeoException(converterName
+                    + " is not an Elastic Transcoder converter");
+        }
+        AWSElasticTranscoderConverter awsConverter = (AWSElasticTranscoderConverter) converter;
+
+        setStatus("Submitting");
+        openSystemSession();
+        IdRef ref = new IdRef(docId);
+        if (!session.exists(ref)) {
+            setStatus("Document not found");
+            return;
+        }
+        Blob blob = (Blob) session.getDocument(ref).getPropertyValue(xpath);
+        if (blob == null) {
+            setStatus("Nothing to transcode");
+            return;
+        }
+
+        TranscodingPriority lane = priority != null ? priority
+                : awsConverter.getPriority();
+        String key;
+        try {
+            List<Blob> cached = awsConverter.getCachedBlobs(blob);
+            if (cached != null) {
+                TranscodedVideoUpdater.save(repositoryName, docId,
+                        conversionName, cached,
+                        awsConverter.getOutputFileSuffixes());
+                setStatus("Done");
+                return;
+            }
+            key = InFlightTranscodings.getKey(
+                    InFlightTranscodings.getDigest(blob),
+                    awsConverter.getPresetIds(),
+                    awsConverter.getOutputFileSuffixes(), lane);
+        } catch (IOException e) {
+            throw new NuxeoException(e);
+        }
+
+        // Same key as the converter: The work waits for the same transcoding
+        // already running (other work, conversion service...) instead of
+        // creating another job
+        AtomicBoolean started = new AtomicBoolean(false);
+        InFlightTranscodings.get().transcode(key, () -> {
+            started.set(true);
+            AWSElasticTranscoder transcoder = awsConverter.newTranscoder(blob);
+            transcoder.setPriority(lane);
+            transcoder.setDocument(repositoryName, docId, conversionName);
+            return transcoder.transcodeToDocumentAsync().thenApply(result -> {
+                List<Blob> transcoded = transcoder.getTranscodedBlobs();
+                try {
+                    awsConverter.cacheBlobs(blob, transcoded);
+                } catch (IOException ioe) {
+                    log.warn("Cannot cache " + conversionName + " of "
+                            + docId, ioe);
+                }
+                return transcoded;
+            });
+        }).whenComplete((transcoded, e) -> {
+            if (e != null) {
+                log.error("Cannot transcode " + conversionName + " of "
+                        + docId, e);
+                return;
+            }
+            if (!started.get()) {
+                // Transcoded for another caller: This document gets a copy
+                TranscodedVideoUpdater.save(repositoryName, docId,
+                        conversionName, transcoded,
+                        awsConverter.getOutputFileSuffixes());
+            }
+        });
+        setStatus("Submitted");
+    }
+
+}
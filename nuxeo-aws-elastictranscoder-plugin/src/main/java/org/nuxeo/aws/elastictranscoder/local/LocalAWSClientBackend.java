@@ -0,0 +1,104 @@
+/*
+ * (C) Copyright 2016 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.aws.elastictranscoder.local;
+
+import org.nuxeo.aws.elastictranscoder.AWSClientBackend;
+import org.nuxeo.aws.elastictranscoder.AWSElasticTranscoderConstants;
+
+import com.amazonaws.ClientConfiguration;
+import com.amazonaws.auth.AWSCredentialsProvider;
+import com.amazonaws.services.elastictranscoder.AmazonElasticTranscoder;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.sqs.AmazonSQS;
+
+/**
+ * In-process stand-in for S3, SQS and Elastic Transcoder, so the whole
+ * transcoding flow (upload, job, notifications, download, cleanup) can run in
+ * unit tests and benchmarks without an AWS account and without network
+ * latency noise.
+ * <p>
+ * Activated with <code>aws.transcoder.backend=local</code>. The time taken by a
+ * job is set with <code>aws.transcoder.local.jobduration.ms</code>. No
+ * credentials are needed, and all the clients share the same in-memory state,
+ * whatever the region or credentials.
+ *
+ * @since 8.3
+ */
+public class LocalAWSClientBackend implements AWSClientBackend {
+
+    protected final LocalS3 s3;
+
+    protected final LocalSQS sqs;
+
+    protected final LocalElasticTranscoder elasticTranscoder;
+
+    public LocalAWSClientBackend() {
+        this(AWSElasticTranscoderConstants.getLocalJobDurationMs());
+    }
+
+    public LocalAWSClientBackend(long inJobDurationMs) {
+
+        s3 = new LocalS3();
+        sqs = new LocalSQS();
+        elasticTranscoder = new LocalElasticTranscoder(s3, sqs,
+                inJobDurationMs);
+    }
+
+    @Override
+    public AmazonS3 createS3Client(AWSCredentialsProvider inCredentials,
+            ClientConfiguration inConfiguration, String inRegion) {
+        return LocalClientProxy.create(AmazonS3.class, s3);
+    }
+
+    @Override
+    public AmazonSQS createSQSClient(AWSCredentialsProvider inCredentials,
+            ClientConfiguration inConfiguration, String inRegion) {
+        return LocalClientProxy.create(AmazonSQS.class, sqs);
+    }
+
+    @Override
+    public AmazonElasticTranscoder createElasticTranscoder(
+            AWSCredentialsProvider inCredentials,
+            ClientConfiguration inConfiguration, String inRegion) {
+        return LocalClientProxy.create(AmazonElasticTranscoder.class,
+                elasticTranscoder);
+    }
+
+    @Override
+    public boolean requiresCredentials() {
+        return false;
+    }
+
+    @Override
+    public void shutdown() {
+        elasticTranscoder.shutdown();
+        sqs.shutdown();
+    }
+
+    public LocalS3 getS3() {
+        return s3;
+    }
+
+    public LocalSQS getSQS() {
+        return sqs;
+    }
+
+    public LocalElasticTranscoder getElasticTranscoder() {
+        return elasticTranscoder;
+    }
+
+}
@@ -0,0 +1,89 @@
+/*
+ * (C) Copyright 2016 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.aws.elastictranscoder.local;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Exposes one of the local stand-ins as an AWS client interface (AmazonS3,
+ * AmazonSQS, ...).
+ * <p>
+ * The AWS interfaces have dozens of methods, and we only use a few of them:
+ * A call is forwarded to the public method of the stand-in with the same name
+ * and the same parameter types. Calling any other method throws an
+ * <code>UnsupportedOperationException</code>.
+ *
+ * @since 8.3
+ */
+public class LocalClientProxy implements InvocationHandler {
+
+    protected final Object target;
+
+    protected final ConcurrentMap<Method, Method> targetMethods = new ConcurrentHashMap<Method, Method>();
+
+    protected LocalClientProxy(Object inTarget) {
+        target = inTarget;
+    }
+
+    public static <T> T create(Class<T> inInterface, Object inTarget) {
+
+        return inInterface.cast(Proxy.newProxyInstance(
+                inInterface.getClassLoader(), new Class<?>[] { inInterface },
+                new LocalClientProxy(inTarget)));
+    }
+
+    @Override
+    public Object invoke(Object inProxy, Method inMethod, Object[] inArgs)
+            throws Throwable {
+
+        if (inMethod.getDeclaringClass() == Object.class) {
+            switch (inMethod.getName()) {
+            case "equals":
+                return inProxy == inArgs[0];
+            case "hashCode":
+                return System.identityHashCode(inProxy);
+            default:
+                return "Local " + target.getClass().getSimpleName();
+            }
+        }
+
+        Method method = targetMethods.computeIfAbsent(inMethod, m -> {
+            try {
+                return target.getClass().getMethod(m.getName(),
+                        m.getParameterTypes());
+            } catch (NoSuchMethodException e) {
+                return null;
+            }
+        });
+        if (method == null) {
+            throw new UnsupportedOperationException(inMethod.getName()
+                    + " is not supported by the local backend");
+        }
+
+        try {
+            return method.invoke(target, inArgs);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+
+}
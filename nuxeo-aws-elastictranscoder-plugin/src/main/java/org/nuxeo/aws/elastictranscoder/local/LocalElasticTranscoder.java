@@ -0,0 +1,390 @@
+/*
+ * (C) Copyright 2016 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.aws.elastictranscoder.local;
+
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiFunction;
+
+import org.apache.commons.lang.StringUtils;
+import org.nuxeo.aws.elastictranscoder.AWSElasticTranscoderConstants;
+import org.nuxeo.aws.elastictranscoder.notification.JobStatusNotification;
+import org.nuxeo.aws.elastictranscoder.notification.JobStatusNotification.JobState;
+
+import com.amazonaws.services.elastictranscoder.model.CreateJobOutput;
+import com.amazonaws.services.elastictranscoder.model.CreateJobRequest;
+import com.amazonaws.services.elastictranscoder.model.CreateJobResult;
+import com.amazonaws.services.elastictranscoder.model.Job;
+import com.amazonaws.services.elastictranscoder.model.JobOutput;
+import com.amazonaws.services.elastictranscoder.model.ListJobsByPipelineRequest;
+import com.amazonaws.services.elastictranscoder.model.ListJobsByPipelineResult;
+import com.amazonaws.services.elastictranscoder.model.ListJobsByStatusRequest;
+import com.amazonaws.services.elastictranscoder.model.ListJobsByStatusResult;
+import com.amazonaws.services.elastictranscoder.model.ReadJobRequest;
+import com.amazonaws.services.elastictranscoder.model.ReadJobResult;
+import com.amazonaws.services.elastictranscoder.model.ResourceNotFoundException;
+import com.amazonaws.services.elastictranscoder.model.Timing;
+import com.amazonaws.services.elastictranscoder.model.ValidationException;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * In-process Elastic Transcoder, working with {@link LocalS3} and
+ * {@link LocalSQS}.
+ * <p>
+ * A job does not transcode anything: After the configured duration, each
+ * output is a copy of the input. The job then goes through the same states as
+ * a real one, and the PROGRESSING and COMPLETED (or ERROR, if the input does
+ * not exist) notifications are sent to the SQS queue of the pipeline, wrapped
+ * in an SNS envelope, as AWS does.
+ * <p>
+ * Pipelines can be declared with {@link #addPipeline}. An unknown pipeline uses
+ * the default buckets and queue set in the configuration.
+ *
+ * @since 8.3
+ */
+public class LocalElasticTranscoder {
+
+    public static final String STATUS_SUBMITTED = "Submitted";
+
+    public static final String STATUS_PROGRESSING = "Progressing";
+
+    public static final String STATUS_COMPLETE = "Complete";
+
+    public static final String STATUS_ERROR = "Error";
+
+    public static final int ERROR_CODE_INPUT_NOT_FOUND = 3002;
+
+    public static final int DEFAULT_PAGE_SIZE = 50;
+
+    protected static final ObjectMapper mapper = new ObjectMapper();
+
+    protected static class LocalPipeline {
+
+        protected final String inputBucket;
+
+        protected final String outputBucket;
+
+        protected final String sqsQueueUrl;
+
+        protected LocalPipeline(String inInputBucket, String inOutputBucket,
+                String inSqsQueueUrl) {
+            inputBucket = inInputBucket;
+            outputBucket = inOutputBucket;
+            sqsQueueUrl = inSqsQueueUrl;
+        }
+    }
+
+    protected final LocalS3 s3;
+
+    protected final LocalSQS sqs;
+
+    protected final long jobDurationMs;
+
+    protected final ScheduledExecutorService scheduler;
+
+    protected final ConcurrentMap<String, LocalPipeline> pipelines = new ConcurrentHashMap<String, LocalPipeline>();
+
+    protected final ConcurrentMap<String, Job> jobs = new ConcurrentHashMap<String, Job>();
+
+    protected final AtomicLong jobCounter = new AtomicLong();
+
+    protected volatile int pageSize = DEFAULT_PAGE_SIZE;
+
+    public LocalElasticTranscoder(LocalS3 inS3, LocalSQS inSQS,
+            long inJobDurationMs) {
+
+        s3 = inS3;
+        sqs = inSQS;
+        jobDurationMs = inJobDurationMs;
+        scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setNameFormat(
+                "NxAWSET-local-transcoder-%d").setDaemon(true).build());
+    }
+
+    /**
+     * @param inPipelineId
+     * @param inInputBucket
+     * @param inOutputBucket
+     * @param inSqsQueueUrl the queue receiving the notifications. Can be null
+     *            (no notifications)
+     */
+    public void addPipeline(String inPipelineId, String inInputBucket,
+            String inOutputBucket, String inSqsQueueUrl) {
+
+        pipelines.put(inPipelineId, new LocalPipeline(inInputBucket,
+                inOutputBucket, inSqsQueueUrl));
+    }
+
+    /**
+     * Sets the number of jobs per page of the List* calls
+     *
+     * @param inPageSize
+     */
+    public void setPageSize(int inPageSize) {
+
+        pageSize = inPageSize > 0 ? inPageSize : DEFAULT_PAGE_SIZE;
+    }
+
+    /**
+     * Changes the submit time of a job, to simulate a job submitted long ago
+     * (before a restart of the server for example)
+     *
+     * @param inJobId
+     * @param inSubmitTimeMillis
+     */
+    public void setSubmitTime(String inJobId, long inSubmitTimeMillis) {
+
+        Job job = jobs.get(inJobId);
+        if (job == null) {
+            throw new ResourceNotFoundException("The job " + inJobId
+                    + " does not exist");
+        }
+        synchronized (job) {
+            job.getTiming().setSubmitTimeMillis(inSubmitTimeMillis);
+        }
+    }
+
+    public CreateJobResult createJob(CreateJobRequest inRequest) {
+
+        if (StringUtils.isBlank(inRequest.getPipelineId())
+                || inRequest.getInput() == null
+                || inRequest.getOutputs().isEmpty()) {
+            throw new ValidationException(
+                    "A job needs a pipeline, an input and at least one output");
+        }
+
+        List<JobOutput> outputs = new ArrayList<JobOutput>();
+        for (CreateJobOutput createOutput : inRequest.getOutputs()) {
+            outputs.add(new JobOutput().withId(
+                    String.valueOf(outputs.size() + 1)).withKey(
+                    createOutput.getKey()).withPresetId(
+                    createOutput.getPresetId()).withStatus(STATUS_SUBMITTED));
+        }
+        String jobId = System.currentTimeMillis() + "-"
+                + String.format("%06d", jobCounter.incrementAndGet() % 1000000);
+        Job job = new Job().withId(jobId).withPipelineId(
+                inRequest.getPipelineId()).withInput(inRequest.getInput()).withOutputs(
+                outputs).withStatus(STATUS_SUBMITTED).withTiming(
+                new Timing().withSubmitTimeMillis(System.currentTimeMillis()));
+        jobs.put(jobId, job);
+
+        scheduler.execute(() -> progress(job));
+        scheduler.schedule(() -> complete(job), jobDurationMs,
+                TimeUnit.MILLISECONDS);
+
+        return new CreateJobResult().withJob(copyOf(job));
+    }
+
+    public ReadJobResult readJob(ReadJobRequest inRequest) {
+
+        Job job = jobs.get(inRequest.getId());
+        if (job == null) {
+            throw new ResourceNotFoundException("The job " + inRequest.getId()
+                    + " does not exist");
+        }
+        return new ReadJobResult().withJob(copyOf(job));
+    }
+
+    /**
+     * Pages of 50 jobs, like AWS
+     */
+    public ListJobsByPipelineResult listJobsByPipeline(
+            ListJobsByPipelineRequest inRequest) {
+
+        List<Job> pipelineJobs = new ArrayList<Job>();
+        for (Job job : jobs.values()) {
+            if (job.getPipelineId().equals(inRequest.getPipelineId())) {
+                pipelineJobs.add(job);
+            }
+        }
+        return listJobs(pipelineJobs, inRequest.getAscending(),
+                inRequest.getPageToken(), (list, token) -> new ListJobsByPipelineResult().withJobs(
+                        list).withNextPageToken(token));
+    }
+
+    public ListJobsByStatusResult listJobsByStatus(
+            ListJobsByStatusRequest inRequest) {
+
+        List<Job> statusJobs = new ArrayList<Job>();
+        for (Job job : jobs.values()) {
+            synchronized (job) {
+                if (job.getStatus().equals(inRequest.getStatus())) {
+                    statusJobs.add(job);
+                }
+            }
+        }
+        return listJobs(statusJobs, inRequest.getAscending(),
+                inRequest.getPageToken(), (list, token) -> new ListJobsByStatusResult().withJobs(
+                        list).withNextPageToken(token));
+    }
+
+    public void shutdown() {
+        scheduler.shutdownNow();
+    }
+
+    protected LocalPipeline getPipeline(String inPipelineId) {
+
+        LocalPipeline pipeline = pipelines.get(inPipelineId);
+        if (pipeline == null) {
+            pipeline = new LocalPipeline(
+                    AWSElasticTranscoderConstants.getDefaultBucketInput(),
+                    AWSElasticTranscoderConstants.getDefaultBucketOutput(),
+                    AWSElasticTranscoderConstants.getDefaultSqsQueueUrl());
+        }
+        return pipeline;
+    }
+
+    protected void progress(Job inJob) {
+
+        synchronized (inJob) {
+            inJob.setStatus(STATUS_PROGRESSING);
+            for (JobOutput output : inJob.getOutputs()) {
+                output.setStatus(STATUS_PROGRESSING);
+            }
+        }
+        notify(inJob, JobState.PROGRESSING, 0);
+    }
+
+    protected void complete(Job inJob) {
+
+        LocalPipeline pipeline = getPipeline(inJob.getPipelineId());
+        String inputKey = inJob.getInput().getKey();
+        byte[] input = s3.getContent(pipeline.inputBucket, inputKey);
+
+        synchronized (inJob) {
+            if (input == null) {
+                inJob.setStatus(STATUS_ERROR);
+                for (JobOutput output : inJob.getOutputs()) {
+                    output.setStatus(STATUS_ERROR);
+                    output.setStatusDetail(ERROR_CODE_INPUT_NOT_FOUND
+                            + " The input file " + inputKey
+                            + " does not exist");
+                }
+            } else {
+                for (JobOutput output : inJob.getOutputs()) {
+                    s3.copyObject(pipeline.inputBucket, inputKey,
+                            pipeline.outputBucket, output.getKey());
+                    output.setStatus(STATUS_COMPLETE);
+                }
+                inJob.setStatus(STATUS_COMPLETE);
+            }
+        }
+
+        if (input == null) {
+            notify(inJob, JobState.ERROR, ERROR_CODE_INPUT_NOT_FOUND);
+        } else {
+            notify(inJob, JobState.COMPLETED, 0);
+        }
+    }
+
+    /*
+     * Sends the notification as AWS does: The JobStatusNotification is a JSON
+     * string in the "Message" field of the SNS notification
+     */
+    protected void notify(Job inJob, JobState inState, int inErrorCode) {
+
+        String queueUrl = getPipeline(inJob.getPipelineId()).sqsQueueUrl;
+        if (StringUtils.isBlank(queueUrl)) {
+            return;
+        }
+
+        JobStatusNotification notification = new JobStatusNotification();
+        notification.setState(inState);
+        notification.setErrorCode(inErrorCode);
+        notification.setVersion("2012-09-25");
+        notification.setJobId(inJob.getId());
+        notification.setPipelineId(inJob.getPipelineId());
+        JobStatusNotification.JobInput input = new JobStatusNotification.JobInput();
+        input.setKey(inJob.getInput().getKey());
+        notification.setInput(input);
+        List<JobStatusNotification.JobOutput> outputs = new ArrayList<JobStatusNotification.JobOutput>();
+        synchronized (inJob) {
+            for (JobOutput jobOutput : inJob.getOutputs()) {
+                JobStatusNotification.JobOutput output = new JobStatusNotification.JobOutput();
+                output.setId(jobOutput.getId());
+                output.setPresetId(jobOutput.getPresetId());
+                output.setKey(jobOutput.getKey());
+                output.setStatus(jobOutput.getStatus());
+                output.setStatusDetail(jobOutput.getStatusDetail());
+                output.setErrorCode(inErrorCode);
+                outputs.add(output);
+            }
+        }
+        notification.setOutputs(outputs);
+
+        Map<String, String> envelope = new HashMap<String, String>();
+        envelope.put("Type", "Notification");
+        envelope.put("MessageId", UUID.randomUUID().toString());
+        envelope.put("TopicArn", "arn:aws:sns:local:000000000000:transcoder");
+        envelope.put("Subject", "The status of job " + inJob.getId()
+                + " has changed to " + inState);
+        try {
+            envelope.put("Message", mapper.writeValueAsString(notification));
+            sqs.sendMessage(queueUrl, mapper.writeValueAsString(envelope));
+        } catch (JsonProcessingException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /*
+     * Jobs sorted by submit time (then by id, the ids start with the creation
+     * time), and paginated
+     */
+    protected <T> T listJobs(List<Job> inJobs, String inAscending,
+            String inPageToken, BiFunction<List<Job>, String, T> inResult) {
+
+        Comparator<Job> bySubmitTime = Comparator.comparing(
+                (Job job) -> job.getTiming().getSubmitTimeMillis()).thenComparing(
+                Job::getId);
+        inJobs.sort("true".equals(inAscending) ? bySubmitTime
+                : bySubmitTime.reversed());
+
+        int start = StringUtils.isBlank(inPageToken) ? 0
+                : Integer.parseInt(inPageToken);
+        int end = Math.min(start + pageSize, inJobs.size());
+        List<Job> page = new ArrayList<Job>();
+        for (Job job : inJobs.subList(start, end)) {
+            page.add(copyOf(job));
+        }
+        return inResult.apply(page, end < inJobs.size() ? String.valueOf(end)
+                : null);
+    }
+
+    protected Job copyOf(Job inJob) {
+
+        synchronized (inJob) {
+            List<JobOutput> outputs = new ArrayList<JobOutput>();
+            for (JobOutput output : inJob.getOutputs()) {
+                outputs.add(output.clone());
+            }
+            return inJob.clone().withOutputs(outputs);
+        }
+    }
+
+}
@@ -0,0 +1,381 @@
+/*
+ * (C) Copyright 2016 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.aws.elastictranscoder.local;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.IOUtils;
+
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadResult;
+import com.amazonaws.services.s3.model.CopyObjectRequest;
+import com.amazonaws.services.s3.model.CopyObjectResult;
+import com.amazonaws.services.s3.model.CopyPartRequest;
+import com.amazonaws.services.s3.model.CopyPartResult;
+import com.amazonaws.services.s3.model.DeleteObjectRequest;
+import com.amazonaws.services.s3.model.GetObjectMetadataRequest;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadResult;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PartETag;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.PutObjectResult;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+import com.amazonaws.services.s3.model.UploadPartResult;
+
+/**
+ * In-memory S3: Buckets are created on the fly, objects are kept as byte
+ * arrays. Supports what {@link org.nuxeo.aws.elastictranscoder.AWSS3Handler}
+ * uses: simple and multipart uploads, simple and ranged downloads, server side
+ * copies, metadata and deletion.
+ * <p>
+ * Meant for tests and benchmarks, so for small and medium videos only.
+ *
+ * @since 8.3
+ */
+public class LocalS3 {
+
+    protected static class LocalObject {
+
+        protected final byte[] data;
+
+        protected final ObjectMetadata metadata;
+
+        protected LocalObject(byte[] inData, ObjectMetadata inMetadata) {
+            data = inData;
+            metadata = inMetadata == null ? new ObjectMetadata()
+                    : inMetadata.clone();
+            metadata.setContentLength(inData.length);
+            metadata.setHeader("ETag", DigestUtils.md5Hex(inData));
+        }
+    }
+
+    protected static class LocalUpload {
+
+        protected final String bucket;
+
+        protected final String key;
+
+        protected final ObjectMetadata metadata;
+
+        protected final ConcurrentMap<Integer, byte[]> parts = new ConcurrentHashMap<Integer, byte[]>();
+
+        protected LocalUpload(String inBucket, String inKey,
+                ObjectMetadata inMetadata) {
+            bucket = inBucket;
+            key = inKey;
+            metadata = inMetadata;
+        }
+    }
+
+    protected final ConcurrentMap<String, ConcurrentMap<String, LocalObject>> buckets = new ConcurrentHashMap<String, ConcurrentMap<String, LocalObject>>();
+
+    protected final ConcurrentMap<String, LocalUpload> uploads = new ConcurrentHashMap<String, LocalUpload>();
+
+    public PutObjectResult putObject(PutObjectRequest inRequest) {
+
+        byte[] data;
+        if (inRequest.getFile() != null) {
+            data = readFile(inRequest.getFile());
+        } else {
+            data = readStream(inRequest.getInputStream(), -1);
+        }
+        LocalObject object = new LocalObject(data, inRequest.getMetadata());
+        getBucket(inRequest.getBucketName()).put(inRequest.getKey(), object);
+
+        PutObjectResult result = new PutObjectResult();
+        result.setETag(object.metadata.getETag());
+        return result;
+    }
+
+    public S3Object getObject(GetObjectRequest inRequest) {
+
+        LocalObject object = getObject(inRequest.getBucketName(),
+                inRequest.getKey());
+        byte[] data = getRange(object.data, inRequest.getRange());
+
+        S3Object result = new S3Object();
+        result.setBucketName(inRequest.getBucketName());
+        result.setKey(inRequest.getKey());
+        result.setObjectMetadata(object.metadata.clone());
+        result.getObjectMetadata().setContentLength(data.length);
+        result.setObjectContent(new ByteArrayInputStream(data));
+        return result;
+    }
+
+    public ObjectMetadata getObject(GetObjectRequest inRequest, File inDest) {
+
+        LocalObject object = getObject(inRequest.getBucketName(),
+                inRequest.getKey());
+        try (OutputStream out = new FileOutputStream(inDest)) {
+            out.write(getRange(object.data, inRequest.getRange()));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return object.metadata.clone();
+    }
+
+    public ObjectMetadata getObjectMetadata(String inBucket, String inKey) {
+        return getObject(inBucket, inKey).metadata.clone();
+    }
+
+    public ObjectMetadata getObjectMetadata(GetObjectMetadataRequest inRequest) {
+        return getObjectMetadata(inRequest.getBucketName(), inRequest.getKey());
+    }
+
+    public boolean doesObjectExist(String inBucket, String inKey) {
+        return getBucket(inBucket).containsKey(inKey);
+    }
+
+    public void deleteObject(String inBucket, String inKey) {
+        getBucket(inBucket).remove(inKey);
+    }
+
+    public void deleteObject(DeleteObjectRequest inRequest) {
+        deleteObject(inRequest.getBucketName(), inRequest.getKey());
+    }
+
+    public CopyObjectResult copyObject(CopyObjectRequest inRequest) {
+
+        LocalObject source = getObject(inRequest.getSourceBucketName(),
+                inRequest.getSourceKey());
+        LocalObject copy = new LocalObject(source.data,
+                inRequest.getNewObjectMetadata() != null ? inRequest.getNewObjectMetadata()
+                        : source.metadata);
+        getBucket(inRequest.getDestinationBucketName()).put(
+                inRequest.getDestinationKey(), copy);
+
+        CopyObjectResult result = new CopyObjectResult();
+        result.setETag(copy.metadata.getETag());
+        return result;
+    }
+
+    public CopyObjectResult copyObject(String inSourceBucket,
+            String inSourceKey, String inDestBucket, String inDestKey) {
+        return copyObject(new CopyObjectRequest(inSourceBucket, inSourceKey,
+                inDestBucket, inDestKey));
+    }
+
+    public InitiateMultipartUploadResult initiateMultipartUpload(
+            InitiateMultipartUploadRequest inRequest) {
+
+        String uploadId = UUID.randomUUID().toString();
+        uploads.put(uploadId, new LocalUpload(inRequest.getBucketName(),
+                inRequest.getKey(), inRequest.getObjectMetadata()));
+
+        InitiateMultipartUploadResult result = new InitiateMultipartUploadResult();
+        result.setBucketName(inRequest.getBucketName());
+        result.setKey(inRequest.getKey());
+        result.setUploadId(uploadId);
+        return result;
+    }
+
+    public UploadPartResult uploadPart(UploadPartRequest inRequest) {
+
+        byte[] data;
+        if (inRequest.getFile() != null) {
+            data = readFile(inRequest.getFile(), inRequest.getFileOffset(),
+                    inRequest.getPartSize());
+        } else {
+            data = readStream(inRequest.getInputStream(),
+                    inRequest.getPartSize());
+        }
+        getUpload(inRequest.getUploadId()).parts.put(
+                inRequest.getPartNumber(), data);
+
+        UploadPartResult result = new UploadPartResult();
+        result.setPartNumber(inRequest.getPartNumber());
+        result.setETag(DigestUtils.md5Hex(data));
+        return result;
+    }
+
+    public CopyPartResult copyPart(CopyPartRequest inRequest) {
+
+        LocalObject source = getObject(inRequest.getSourceBucketName(),
+                inRequest.getSourceKey());
+        long[] range = null;
+        if (inRequest.getFirstByte() != null) {
+            range = new long[] { inRequest.getFirstByte(),
+                    inRequest.getLastByte() };
+        }
+        byte[] data = getRange(source.data, range);
+        getUpload(inRequest.getUploadId()).parts.put(
+                inRequest.getPartNumber(), data);
+
+        CopyPartResult result = new CopyPartResult();
+        result.setPartNumber(inRequest.getPartNumber());
+        result.setETag(DigestUtils.md5Hex(data));
+        return result;
+    }
+
+    public CompleteMultipartUploadResult completeMultipartUpload(
+            CompleteMultipartUploadRequest inRequest) {
+
+        if (inRequest.getPartETags().size() > 10000) {
+            throw newS3Exception(400, "InvalidArgument",
+                    "Part number must be an integer between 1 and 10000");
+        }
+
+        LocalUpload upload = getUpload(inRequest.getUploadId());
+        List<PartETag> eTags = new ArrayList<PartETag>(inRequest.getPartETags());
+        eTags.sort((a, b) -> Integer.compare(a.getPartNumber(),
+                b.getPartNumber()));
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (PartETag eTag : eTags) {
+            byte[] part = upload.parts.get(eTag.getPartNumber());
+            if (part == null) {
+                throw newS3Exception(400, "InvalidPart", "Part "
+                        + eTag.getPartNumber() + " was not uploaded");
+            }
+            out.write(part, 0, part.length);
+        }
+        LocalObject object = new LocalObject(out.toByteArray(),
+                upload.metadata);
+        getBucket(upload.bucket).put(upload.key, object);
+        uploads.remove(inRequest.getUploadId());
+
+        CompleteMultipartUploadResult result = new CompleteMultipartUploadResult();
+        result.setBucketName(upload.bucket);
+        result.setKey(upload.key);
+        result.setETag(object.metadata.getETag());
+        return result;
+    }
+
+    public void abortMultipartUpload(AbortMultipartUploadRequest inRequest) {
+        uploads.remove(inRequest.getUploadId());
+    }
+
+    public void shutdown() {
+        // Nothing to close
+    }
+
+    /**
+     * @return the content of the object, or null if it does not exist
+     */
+    public byte[] getContent(String inBucket, String inKey) {
+        LocalObject object = getBucket(inBucket).get(inKey);
+        return object == null ? null : object.data;
+    }
+
+    /**
+     * @return the number of objects in the bucket
+     */
+    public int getObjectsCount(String inBucket) {
+        return getBucket(inBucket).size();
+    }
+
+    protected ConcurrentMap<String, LocalObject> getBucket(String inBucket) {
+        return buckets.computeIfAbsent(inBucket,
+                k -> new ConcurrentHashMap<String, LocalObject>());
+    }
+
+    protected LocalObject getObject(String inBucket, String inKey) {
+
+        LocalObject object = getBucket(inBucket).get(inKey);
+        if (object == null) {
+            throw newS3Exception(404, "NoSuchKey",
+                    "The specified key does not exist.");
+        }
+        return object;
+    }
+
+    protected LocalUpload getUpload(String inUploadId) {
+
+        LocalUpload upload = uploads.get(inUploadId);
+        if (upload == null) {
+            throw newS3Exception(404, "NoSuchUpload",
+                    "The specified upload does not exist.");
+        }
+        return upload;
+    }
+
+    protected static AmazonS3Exception newS3Exception(int inStatusCode,
+            String inErrorCode, String inMessage) {
+
+        AmazonS3Exception e = new AmazonS3Exception(inMessage);
+        e.setStatusCode(inStatusCode);
+        e.setErrorCode(inErrorCode);
+        e.setServiceName("Amazon S3");
+        return e;
+    }
+
+    protected static byte[] getRange(byte[] inData, long[] inRange) {
+
+        if (inRange == null) {
+            return inData;
+        }
+        int start = (int) inRange[0];
+        int end = (int) Math.min(inRange[1] + 1, inData.length);
+        return Arrays.copyOfRange(inData, start, end);
+    }
+
+    protected static byte[] readFile(File inFile) {
+        try {
+            return Files.readAllBytes(inFile.toPath());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    protected static byte[] readFile(File inFile, long inOffset, long inLength) {
+
+        byte[] data = new byte[(int) inLength];
+        try (RandomAccessFile raf = new RandomAccessFile(inFile, "r")) {
+            raf.seek(inOffset);
+            raf.readFully(data);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return data;
+    }
+
+    protected static byte[] readStream(InputStream inStream, long inLength) {
+
+        try (InputStream in = inStream) {
+            if (inLength < 0) {
+                return IOUtils.toByteArray(in);
+            }
+            byte[] data = new byte[(int) inLength];
+            IOUtils.readFully(in, data);
+            return data;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+}
@@ -0,0 +1,320 @@
+/*
+ * (C) Copyright 2016 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.aws.elastictranscoder.local;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.sqs.model.BatchResultErrorEntry;
+import com.amazonaws.services.sqs.model.ChangeMessageVisibilityBatchRequest;
+import com.amazonaws.services.sqs.model.ChangeMessageVisibilityBatchRequestEntry;
+import com.amazonaws.services.sqs.model.ChangeMessageVisibilityBatchResult;
+import com.amazonaws.services.sqs.model.ChangeMessageVisibilityBatchResultEntry;
+import com.amazonaws.services.sqs.model.ChangeMessageVisibilityRequest;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchRequest;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchRequestEntry;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchResult;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchResultEntry;
+import com.amazonaws.services.sqs.model.DeleteMessageRequest;
+import com.amazonaws.services.sqs.model.GetQueueAttributesRequest;
+import com.amazonaws.services.sqs.model.GetQueueAttributesResult;
+import com.amazonaws.services.sqs.model.Message;
+import com.amazonaws.services.sqs.model.QueueAttributeName;
+import com.amazonaws.services.sqs.model.ReceiveMessageRequest;
+import com.amazonaws.services.sqs.model.ReceiveMessageResult;
+import com.amazonaws.services.sqs.model.SendMessageRequest;
+import com.amazonaws.services.sqs.model.SendMessageResult;
+
+/**
+ * In-memory SQS: Queues are created on the fly (the queue URL is just a name
+ * here), and behave like the real ones: long polling, visibility timeout (a
+ * received message which is not deleted is received again once the timeout
+ * expired) and receipt handles.
+ *
+ * @since 8.3
+ */
+public class LocalSQS {
+
+    protected static final int DEFAULT_VISIBILITY_TIMEOUT = 30;
+
+    protected static class LocalMessage {
+
+        protected final String messageId;
+
+        protected final String body;
+
+        protected final long sentAt;
+
+        protected long firstReceivedAt;
+
+        protected int receiveCount;
+
+        protected long visibleAt;
+
+        protected LocalMessage(String inBody) {
+            messageId = UUID.randomUUID().toString();
+            body = inBody;
+            sentAt = System.currentTimeMillis();
+        }
+    }
+
+    protected static class LocalQueue {
+
+        protected final Deque<LocalMessage> visible = new ArrayDeque<LocalMessage>();
+
+        // Received and not deleted yet, by receipt handle
+        protected final Map<String, LocalMessage> inFlight = new HashMap<String, LocalMessage>();
+
+        protected void makeExpiredVisible(long inNow) {
+
+            Iterator<LocalMessage> it = inFlight.values().iterator();
+            while (it.hasNext()) {
+                LocalMessage message = it.next();
+                if (message.visibleAt <= inNow) {
+                    it.remove();
+                    visible.add(message);
+                }
+            }
+        }
+    }
+
+    protected final ConcurrentMap<String, LocalQueue> queues = new ConcurrentHashMap<String, LocalQueue>();
+
+    protected volatile boolean shutdown = false;
+
+    public SendMessageResult sendMessage(SendMessageRequest inRequest) {
+
+        LocalMessage message = new LocalMessage(inRequest.getMessageBody());
+        LocalQueue queue = getQueue(inRequest.getQueueUrl());
+        synchronized (queue) {
+            queue.visible.add(message);
+            queue.notifyAll();
+        }
+        return new SendMessageResult().withMessageId(message.messageId);
+    }
+
+    public SendMessageResult sendMessage(String inQueueUrl, String inBody) {
+        return sendMessage(new SendMessageRequest(inQueueUrl, inBody));
+    }
+
+    public ReceiveMessageResult receiveMessage(ReceiveMessageRequest inRequest) {
+
+        int max = inRequest.getMaxNumberOfMessages() == null ? 1
+                : inRequest.getMaxNumberOfMessages();
+        long visibilityMs = 1000L * (inRequest.getVisibilityTimeout() == null ? DEFAULT_VISIBILITY_TIMEOUT
+                : inRequest.getVisibilityTimeout());
+        long waitMs = 1000L * (inRequest.getWaitTimeSeconds() == null ? 0
+                : inRequest.getWaitTimeSeconds());
+        long deadline = System.currentTimeMillis() + waitMs;
+
+        List<Message> messages = new ArrayList<Message>();
+        LocalQueue queue = getQueue(inRequest.getQueueUrl());
+        synchronized (queue) {
+            long now = System.currentTimeMillis();
+            queue.makeExpiredVisible(now);
+            while (queue.visible.isEmpty() && now < deadline && !shutdown) {
+                try {
+                    // Wake up regularly to check the in-flight messages
+                    queue.wait(Math.min(deadline - now, 100));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+                now = System.currentTimeMillis();
+                queue.makeExpiredVisible(now);
+            }
+
+            while (messages.size() < max && !queue.visible.isEmpty()) {
+                LocalMessage message = queue.visible.poll();
+                String receiptHandle = UUID.randomUUID().toString();
+                message.visibleAt = now + visibilityMs;
+                if (message.firstReceivedAt == 0) {
+                    message.firstReceivedAt = now;
+                }
+                message.receiveCount++;
+                queue.inFlight.put(receiptHandle, message);
+                messages.add(new Message().withMessageId(message.messageId).withBody(
+                        message.body).withReceiptHandle(receiptHandle).withAttributes(
+                        getAttributes(message, inRequest.getAttributeNames())));
+            }
+        }
+        return new ReceiveMessageResult().withMessages(messages);
+    }
+
+    /*
+     * The system attributes of the message, as requested
+     */
+    protected Map<String, String> getAttributes(LocalMessage inMessage,
+            List<String> inNames) {
+
+        Map<String, String> attributes = new HashMap<String, String>();
+        if (inNames != null) {
+            boolean all = inNames.contains("All");
+            if (all || inNames.contains("SentTimestamp")) {
+                attributes.put("SentTimestamp",
+                        String.valueOf(inMessage.sentAt));
+            }
+            if (all || inNames.contains("ApproximateFirstReceiveTimestamp")) {
+                attributes.put("ApproximateFirstReceiveTimestamp",
+                        String.valueOf(inMessage.firstReceivedAt));
+            }
+            if (all || inNames.contains("ApproximateReceiveCount")) {
+                attributes.put("ApproximateReceiveCount",
+                        String.valueOf(inMessage.receiveCount));
+            }
+        }
+        return attributes;
+    }
+
+    public ReceiveMessageResult receiveMessage(String inQueueUrl) {
+        return receiveMessage(new ReceiveMessageRequest(inQueueUrl));
+    }
+
+    public void deleteMessage(DeleteMessageRequest inRequest) {
+
+        LocalQueue queue = getQueue(inRequest.getQueueUrl());
+        synchronized (queue) {
+            queue.inFlight.remove(inRequest.getReceiptHandle());
+        }
+    }
+
+    public DeleteMessageBatchResult deleteMessageBatch(
+            DeleteMessageBatchRequest inRequest) {
+
+        List<DeleteMessageBatchResultEntry> successful = new ArrayList<DeleteMessageBatchResultEntry>();
+        LocalQueue queue = getQueue(inRequest.getQueueUrl());
+        synchronized (queue) {
+            for (DeleteMessageBatchRequestEntry entry : inRequest.getEntries()) {
+                queue.inFlight.remove(entry.getReceiptHandle());
+                successful.add(new DeleteMessageBatchResultEntry().withId(entry.getId()));
+            }
+        }
+        return new DeleteMessageBatchResult().withSuccessful(successful).withFailed(
+                new ArrayList<BatchResultErrorEntry>());
+    }
+
+    public void changeMessageVisibility(
+            ChangeMessageVisibilityRequest inRequest) {
+
+        LocalQueue queue = getQueue(inRequest.getQueueUrl());
+        synchronized (queue) {
+            LocalMessage message = queue.inFlight.get(inRequest.getReceiptHandle());
+            if (message == null) {
+                throw newReceiptHandleException(inRequest.getReceiptHandle());
+            }
+            message.visibleAt = System.currentTimeMillis() + 1000L
+                    * inRequest.getVisibilityTimeout();
+        }
+    }
+
+    public ChangeMessageVisibilityBatchResult changeMessageVisibilityBatch(
+            ChangeMessageVisibilityBatchRequest inRequest) {
+
+        List<ChangeMessageVisibilityBatchResultEntry> successful = new ArrayList<ChangeMessageVisibilityBatchResultEntry>();
+        List<BatchResultErrorEntry> failed = new ArrayList<BatchResultErrorEntry>();
+        LocalQueue queue = getQueue(inRequest.getQueueUrl());
+        synchronized (queue) {
+            long now = System.currentTimeMillis();
+            for (ChangeMessageVisibilityBatchRequestEntry entry : inRequest.getEntries()) {
+                LocalMessage message = queue.inFlight.get(entry.getReceiptHandle());
+                if (message == null) {
+                    failed.add(new BatchResultErrorEntry().withId(entry.getId()).withCode(
+                            "ReceiptHandleIsInvalid").withSenderFault(true));
+                } else {
+                    message.visibleAt = now + 1000L
+                            * entry.getVisibilityTimeout();
+                    successful.add(new ChangeMessageVisibilityBatchResultEntry().withId(entry.getId()));
+                }
+            }
+        }
+        return new ChangeMessageVisibilityBatchResult().withSuccessful(
+                successful).withFailed(failed);
+    }
+
+    public void deleteMessage(String inQueueUrl, String inReceiptHandle) {
+        deleteMessage(new DeleteMessageRequest(inQueueUrl, inReceiptHandle));
+    }
+
+    /**
+     * Only the approximate numbers of messages are returned (visible, and
+     * received but not deleted)
+     */
+    public GetQueueAttributesResult getQueueAttributes(
+            GetQueueAttributesRequest inRequest) {
+
+        LocalQueue queue = getQueue(inRequest.getQueueUrl());
+        Map<String, String> attributes = new HashMap<String, String>();
+        synchronized (queue) {
+            queue.makeExpiredVisible(System.currentTimeMillis());
+            attributes.put(QueueAttributeName.ApproximateNumberOfMessages.toString(),
+                    String.valueOf(queue.visible.size()));
+            attributes.put(
+                    QueueAttributeName.ApproximateNumberOfMessagesNotVisible.toString(),
+                    String.valueOf(queue.inFlight.size()));
+        }
+        return new GetQueueAttributesResult().withAttributes(attributes);
+    }
+
+    /**
+     * @return the number of messages in the queue, received or not
+     */
+    public int getMessagesCount(String inQueueUrl) {
+
+        LocalQueue queue = getQueue(inQueueUrl);
+        synchronized (queue) {
+            return queue.visible.size() + queue.inFlight.size();
+        }
+    }
+
+    /**
+     * Wakes up the long polling receivers
+     */
+    public void shutdown() {
+
+        shutdown = true;
+        for (LocalQueue queue : queues.values()) {
+            synchronized (queue) {
+                queue.notifyAll();
+            }
+        }
+    }
+
+    protected static AmazonServiceException newReceiptHandleException(
+            String inReceiptHandle) {
+
+        AmazonServiceException e = new AmazonServiceException("The receipt handle "
+                + inReceiptHandle + " is not valid");
+        e.setStatusCode(400);
+        e.setErrorCode("ReceiptHandleIsInvalid");
+        e.setServiceName("AmazonSQS");
+        return e;
+    }
+
+    protected LocalQueue getQueue(String inQueueUrl) {
+        return queues.computeIfAbsent(inQueueUrl, k -> new LocalQueue());
+    }
+
+}
@@ -146,6 +146,12 @@ public class JobStatusNotification {
 
     private List<JobOutput> outputs;
 
+    // Set from the SQS message, not part of the notification (epoch ms, 0 if
+    // not known)
+    private long sentTimestamp;
+
+    private long receivedTimestamp;
+
     public JobState getState() {
         return state;
     }
@@ -210,6 +216,32 @@ public class JobStatusNotification {
         this.outputs = outputs;
     }
 
+    /**
+     * @return when the notification was sent to the SQS queue (epoch ms), 0
+     *         if not known (job status polled, for example)
+     * @since 8.3
+     */
+    public long getSentTimestamp() {
+        return sentTimestamp;
+    }
+
+    public void setSentTimestamp(long sentTimestamp) {
+        this.sentTimestamp = sentTimestamp;
+    }
+
+    /**
+     * @return when the notification was first received from the SQS queue
+     *         (epoch ms), 0 if not known
+     * @since 8.3
+     */
+    public long getReceivedTimestamp() {
+        return receivedTimestamp;
+    }
+
+    public void setReceivedTimestamp(long receivedTimestamp) {
+        this.receivedTimestamp = receivedTimestamp;
+    }
+
     @Override
     public String toString() {
         return "JobStatusNotification [state=" + state + ", errorCode="
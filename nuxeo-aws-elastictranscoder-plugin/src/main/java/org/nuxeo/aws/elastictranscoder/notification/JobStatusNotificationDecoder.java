@@ -0,0 +1,183 @@
+/*
+ * (C) Copyright 2016 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.aws.elastictranscoder.notification;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.nuxeo.aws.elastictranscoder.notification.JobStatusNotification.JobOutput;
+import org.nuxeo.aws.elastictranscoder.notification.JobStatusNotification.JobState;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+/**
+ * Decodes the SQS messages sent by Elastic Transcoder through SNS, reading only
+ * what the dispatch needs: <code>jobId</code>, <code>state</code>,
+ * <code>errorCode</code> and the key of each output. Everything else is skipped
+ * without being converted, and the parsing of the SNS envelope stops as soon
+ * as its <code>Message</code> field is read (so the signature and the URLs
+ * that follow are not even tokenized).
+ * <p>
+ * The nested notification is parsed directly from the character buffer of the
+ * envelope parser, without creating an intermediate String. The buffers are
+ * recycled per thread by Jackson, so each polling thread should use its own
+ * decoder: An instance is not thread safe.
+ * <p>
+ * The full object, with all the fields, is still available with
+ * {@link JobStatusNotification#valueOf(String)}.
+ *
+ * @since 8.3
+ */
+public class JobStatusNotificationDecoder {
+
+    protected static final JsonFactory factory = new JsonFactory();
+
+    protected static final String FIELD_MESSAGE = "Message";
+
+    /**
+     * @param inSqsMessageBody the SNS envelope received from SQS
+     * @return the notification
+     * @throws IOException if the message is not a valid notification
+     */
+    public JobStatusNotification decode(String inSqsMessageBody)
+            throws IOException {
+
+        try (JsonParser parser = factory.createParser(inSqsMessageBody)) {
+            expect(parser, JsonToken.START_OBJECT);
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.getCurrentName();
+                JsonToken value = parser.nextToken();
+                if (FIELD_MESSAGE.equals(field)
+                        && value == JsonToken.VALUE_STRING) {
+                    return decodeMessage(parser.getTextCharacters(),
+                            parser.getTextOffset(), parser.getTextLength());
+                }
+                parser.skipChildren();
+            }
+        }
+        throw new IOException("No " + FIELD_MESSAGE
+                + " in the SNS notification");
+    }
+
+    /**
+     * Decodes the notification itself, once extracted from the SNS envelope
+     */
+    public JobStatusNotification decodeMessage(String inMessage)
+            throws IOException {
+
+        try (JsonParser parser = factory.createParser(inMessage)) {
+            return decodeNotification(parser);
+        }
+    }
+
+    protected JobStatusNotification decodeMessage(char[] inChars,
+            int inOffset, int inLength) throws IOException {
+
+        try (JsonParser parser = factory.createParser(inChars, inOffset,
+                inLength)) {
+            return decodeNotification(parser);
+        }
+    }
+
+    protected JobStatusNotification decodeNotification(JsonParser inParser)
+            throws IOException {
+
+        expect(inParser, JsonToken.START_OBJECT);
+        JobStatusNotification notification = new JobStatusNotification();
+        while (inParser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = inParser.getCurrentName();
+            inParser.nextToken();
+            switch (field) {
+            case "jobId":
+                notification.setJobId(inParser.getValueAsString());
+                break;
+            case "state":
+                notification.setState(decodeState(inParser.getValueAsString()));
+                break;
+            case "errorCode":
+                notification.setErrorCode(inParser.getValueAsInt());
+                break;
+            case "outputs":
+                notification.setOutputs(decodeOutputs(inParser));
+                break;
+            default:
+                inParser.skipChildren();
+            }
+        }
+        return notification;
+    }
+
+    protected List<JobOutput> decodeOutputs(JsonParser inParser)
+            throws IOException {
+
+        if (inParser.getCurrentToken() != JsonToken.START_ARRAY) {
+            inParser.skipChildren();
+            return null;
+        }
+
+        List<JobOutput> outputs = new ArrayList<JobOutput>(2);
+        while (inParser.nextToken() == JsonToken.START_OBJECT) {
+            JobOutput output = new JobOutput();
+            while (inParser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = inParser.getCurrentName();
+                inParser.nextToken();
+                if ("key".equals(field)) {
+                    output.setKey(inParser.getValueAsString());
+                } else {
+                    inParser.skipChildren();
+                }
+            }
+            outputs.add(output);
+        }
+        return outputs;
+    }
+
+    /*
+     * Same behavior as the databind conversion: An unknown state is an error
+     */
+    protected JobState decodeState(String inValue) throws IOException {
+
+        if (inValue == null) {
+            return null;
+        }
+        switch (inValue) {
+        case "PROGRESSING":
+            return JobState.PROGRESSING;
+        case "COMPLETED":
+            return JobState.COMPLETED;
+        case "ERROR":
+            return JobState.ERROR;
+        default:
+            throw new IOException("Unknown job state: " + inValue);
+        }
+    }
+
+    protected void expect(JsonParser inParser, JsonToken inToken)
+            throws IOException {
+
+        JsonToken token = inParser.getCurrentToken() == null ? inParser.nextToken()
+                : inParser.getCurrentToken();
+        if (token != inToken) {
+            throw new IOException("Invalid notification: expected " + inToken
+                    + ", got " + token);
+        }
+    }
+
+}
@@ -0,0 +1,540 @@
+/*
+ * (C) Copyright 2016 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.aws.elastictranscoder.notification;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.nuxeo.aws.elastictranscoder.AWSElasticTranscoderConstants;
+import org.nuxeo.aws.elastictranscoder.notification.JobStatusNotification.JobState;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.elastictranscoder.AmazonElasticTranscoder;
+import com.amazonaws.services.elastictranscoder.model.Job;
+import com.amazonaws.services.elastictranscoder.model.ListJobsByPipelineRequest;
+import com.amazonaws.services.elastictranscoder.model.ListJobsByPipelineResult;
+import com.amazonaws.services.elastictranscoder.model.ListJobsByStatusRequest;
+import com.amazonaws.services.elastictranscoder.model.ListJobsByStatusResult;
+import com.amazonaws.services.elastictranscoder.model.ReadJobRequest;
+import com.amazonaws.services.elastictranscoder.model.ResourceNotFoundException;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Detects the end of the jobs by asking Elastic Transcoder, and calls the
+ * handler of the job with a notification built from the job status, as if it
+ * was received from SQS.
+ * <p>
+ * It is used for the jobs without SQS queue, and as a watchdog for the jobs
+ * waiting for an SQS notification, in case the notification is lost (consumed
+ * by another application, expired, ...):
+ * <ul>
+ * <li>A job without queue is checked after
+ * <code>aws.transcoder.polling.initialdelay.ms</code>, then the interval grows
+ * up to <code>aws.transcoder.polling.maxinterval.ms</code></li>
+ * <li>A job with a queue is checked every
+ * <code>aws.transcoder.polling.watchdog.ms</code></li>
+ * <li>A job still running after <code>aws.transcoder.job.maxwait.minutes</code>
+ * is ended with an ERROR state, so nobody waits forever</li>
+ * </ul>
+ * When several jobs of the same pipeline must be checked at the same time, the
+ * jobs of the pipeline are listed (ListJobsByPipeline, 50 jobs per call)
+ * instead of being read one by one.
+ * <p>
+ * Every <code>aws.transcoder.reconcile.interval.ms</code>, all the pending
+ * jobs are also reconciled at once: The most recent Complete, Error and
+ * Canceled jobs of the account are listed (ListJobsByStatus), until all our
+ * jobs were found or the listed jobs are older than our oldest one. A few
+ * calls are enough to recover hundreds of jobs whose final notification was
+ * missed.
+ *
+ * @since 8.3
+ */
+public class JobStatusPoller {
+
+    private static final Log log = LogFactory.getLog(JobStatusPoller.class);
+
+    // From this number of jobs to check on a pipeline, list the jobs
+    protected static final int LIST_THRESHOLD = 5;
+
+    protected static final int MAX_LIST_PAGES = 10;
+
+    protected static final long TICK_MS = 500;
+
+    protected static final int MAX_RECONCILE_PAGES = 20;
+
+    // Jobs submitted this long before our oldest pending job can't be ours
+    // (margin for the clock skew with AWS)
+    protected static final long RECONCILE_MARGIN_MS = 60000;
+
+    protected static final String[] TERMINAL_STATUSES = { "Complete", "Error",
+            "Canceled" };
+
+    // Error code of the notification sent when giving up waiting for a job
+    public static final int ERROR_CODE_MAX_WAIT = -1;
+
+    protected static class PolledJob {
+
+        protected final String jobId;
+
+        protected final String pipelineId;
+
+        protected final JobStatusNotificationHandler handler;
+
+        protected final boolean hasNotifications;
+
+        protected final long registeredAt;
+
+        // When the job was created on AWS, for the reconciliation
+        protected final long submittedAt;
+
+        protected volatile long intervalMs;
+
+        protected volatile long nextCheckAt;
+
+        protected PolledJob(String jobId, String pipelineId,
+                JobStatusNotificationHandler handler, boolean hasNotifications,
+                long firstDelayMs, long submittedAt) {
+            this.jobId = jobId;
+            this.pipelineId = pipelineId;
+            this.handler = handler;
+            this.hasNotifications = hasNotifications;
+            registeredAt = System.currentTimeMillis();
+            this.submittedAt = submittedAt > 0 ? Math.min(submittedAt,
+                    registeredAt) : registeredAt;
+            intervalMs = firstDelayMs;
+            nextCheckAt = registeredAt + firstDelayMs;
+        }
+    }
+
+    protected final ConcurrentMap<String, PolledJob> jobs = new ConcurrentHashMap<String, PolledJob>();
+
+    protected final Supplier<AmazonElasticTranscoder> clientSupplier;
+
+    protected long initialDelayMs = AWSElasticTranscoderConstants.getPollingInitialDelayMs();
+
+    protected long maxIntervalMs = AWSElasticTranscoderConstants.getPollingMaxIntervalMs();
+
+    protected long watchdogDelayMs = AWSElasticTranscoderConstants.getPollingWatchdogDelayMs();
+
+    protected long maxWaitMs = AWSElasticTranscoderConstants.getJobMaxWaitMinutes() * 60000L;
+
+    protected long reconcileIntervalMs = AWSElasticTranscoderConstants.getReconcileIntervalMs();
+
+    protected final AtomicLong resolvedCount = new AtomicLong();
+
+    protected final AtomicLong reconciledCount = new AtomicLong();
+
+    protected ScheduledExecutorService scheduler;
+
+    public JobStatusPoller(Supplier<AmazonElasticTranscoder> clientSupplier) {
+        this.clientSupplier = clientSupplier;
+    }
+
+    public synchronized void start() {
+
+        if (scheduler == null) {
+            scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setNameFormat(
+                    "NxAWSET-ET-poller-%d").setDaemon(true).build());
+            scheduler.scheduleWithFixedDelay(this::checkDueJobs, TICK_MS,
+                    TICK_MS, TimeUnit.MILLISECONDS);
+            if (reconcileIntervalMs > 0) {
+                scheduler.scheduleWithFixedDelay(this::reconcile,
+                        reconcileIntervalMs, reconcileIntervalMs,
+                        TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    public synchronized void shutdown() {
+
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler = null;
+        }
+        jobs.clear();
+    }
+
+    /**
+     * @param jobId
+     * @param pipelineId can be null (the job will be read, never listed)
+     * @param handler called once by the poller, when the job is over. In
+     *            watchdog mode, the SQS worker calls it too: it must ignore
+     *            the second terminal notification
+     * @param hasNotifications true if the job is also waiting for an SQS
+     *            notification (watchdog mode)
+     */
+    public void add(String jobId, String pipelineId,
+            JobStatusNotificationHandler handler, boolean hasNotifications) {
+
+        add(jobId, pipelineId, handler, hasNotifications, 0);
+    }
+
+    /**
+     * @param jobId
+     * @param pipelineId
+     * @param handler
+     * @param hasNotifications
+     * @param submittedAt when the job was created (epoch ms), 0 if not known:
+     *            A job resumed after a restart may have ended long before it
+     *            is added
+     * @since 8.3
+     */
+    public void add(String jobId, String pipelineId,
+            JobStatusNotificationHandler handler, boolean hasNotifications,
+            long submittedAt) {
+
+        if (hasNotifications && watchdogDelayMs <= 0 && maxWaitMs <= 0) {
+            return;
+        }
+        long firstDelay = hasNotifications ? watchdogDelayMs : initialDelayMs;
+        if (firstDelay <= 0) {
+            // Watchdog disabled, only the max. wait check
+            firstDelay = Long.MAX_VALUE / 2;
+        }
+        jobs.put(jobId, new PolledJob(jobId, pipelineId, handler,
+                hasNotifications, firstDelay, submittedAt));
+    }
+
+    public void remove(String jobId) {
+        jobs.remove(jobId);
+    }
+
+    /**
+     * @return the number of jobs which have no SQS queue and wait for the
+     *         poller to detect their end
+     */
+    public int getPollingOnlyJobsCount() {
+
+        int count = 0;
+        for (PolledJob job : jobs.values()) {
+            if (!job.hasNotifications) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return the number of jobs whose end was detected by the poller (or
+     *         which were ended because of the max. wait)
+     */
+    public long getResolvedJobsCount() {
+        return resolvedCount.get();
+    }
+
+    /**
+     * @return the number of jobs whose end was detected by the reconciliation
+     *         (included in {@link #getResolvedJobsCount()})
+     */
+    public long getReconciledJobsCount() {
+        return reconciledCount.get();
+    }
+
+    /**
+     * Lists the most recent terminated jobs, and ends the pending jobs found
+     * in the list.
+     *
+     * @return the number of jobs ended by this call
+     */
+    public int reconcile() {
+
+        int recovered = 0;
+        try {
+            Map<String, PolledJob> pending = new HashMap<String, PolledJob>(
+                    jobs);
+            if (pending.isEmpty()) {
+                return 0;
+            }
+            long oldest = Long.MAX_VALUE;
+            for (PolledJob job : pending.values()) {
+                oldest = Math.min(oldest, job.submittedAt);
+            }
+            long limit = oldest - RECONCILE_MARGIN_MS;
+
+            AmazonElasticTranscoder elasticTranscoder = clientSupplier.get();
+            for (String status : TERMINAL_STATUSES) {
+                String pageToken = null;
+                int pages = 0;
+                boolean tooOld = false;
+                do {
+                    ListJobsByStatusResult result = elasticTranscoder.listJobsByStatus(new ListJobsByStatusRequest().withStatus(
+                            status).withAscending("false").withPageToken(
+                            pageToken));
+                    for (Job awsJob : result.getJobs()) {
+                        PolledJob job = pending.remove(awsJob.getId());
+                        if (job != null) {
+                            if (deliver(job, newNotification(job,
+                                    toJobState(status), awsJob))) {
+                                recovered++;
+                            }
+                        } else if (awsJob.getTiming() != null
+                                && awsJob.getTiming().getSubmitTimeMillis() != null
+                                && awsJob.getTiming().getSubmitTimeMillis() < limit) {
+                            // Sorted by date: The next ones are even older
+                            tooOld = true;
+                        }
+                    }
+                    pageToken = result.getNextPageToken();
+                    pages++;
+                } while (pageToken != null && !pending.isEmpty() && !tooOld
+                        && pages < MAX_RECONCILE_PAGES);
+
+                if (pending.isEmpty()) {
+                    break;
+                }
+            }
+        } catch (AmazonClientException e) {
+            log.warn("Cannot reconcile the pending jobs: " + e.getMessage());
+        } catch (RuntimeException e) {
+            // Keep the task scheduled
+            log.error("Error while reconciling the pending jobs", e);
+        }
+
+        if (recovered > 0) {
+            reconciledCount.addAndGet(recovered);
+            log.warn("Recovered " + recovered
+                    + " job(s) whose final notification was missed");
+        }
+        return recovered;
+    }
+
+    protected void checkDueJobs() {
+
+        try {
+            long now = System.currentTimeMillis();
+            Map<String, List<PolledJob>> dueByPipeline = new HashMap<String, List<PolledJob>>();
+            for (PolledJob job : jobs.values()) {
+                if (maxWaitMs > 0 && now - job.registeredAt > maxWaitMs) {
+                    giveUp(job);
+                } else if (job.nextCheckAt <= now) {
+                    dueByPipeline.computeIfAbsent(
+                            StringUtils.defaultString(job.pipelineId),
+                            k -> new ArrayList<PolledJob>()).add(job);
+                }
+            }
+
+            if (!dueByPipeline.isEmpty()) {
+                AmazonElasticTranscoder elasticTranscoder = clientSupplier.get();
+                for (Map.Entry<String, List<PolledJob>> entry : dueByPipeline.entrySet()) {
+                    check(elasticTranscoder, entry.getKey(), entry.getValue());
+                }
+            }
+        } catch (RuntimeException e) {
+            // Keep the task scheduled
+            log.error("Error while checking the status of the jobs", e);
+        }
+    }
+
+    protected void check(AmazonElasticTranscoder elasticTranscoder,
+            String pipelineId, List<PolledJob> due) {
+
+        Map<String, Job> found = new HashMap<String, Job>();
+        if (due.size() >= LIST_THRESHOLD && StringUtils.isNotBlank(pipelineId)) {
+            found = listJobs(elasticTranscoder, pipelineId, due);
+        }
+
+        for (PolledJob job : due) {
+            Job awsJob = found.get(job.jobId);
+            if (awsJob == null) {
+                try {
+                    awsJob = elasticTranscoder.readJob(
+                            new ReadJobRequest().withId(job.jobId)).getJob();
+                } catch (ResourceNotFoundException e) {
+                    log.error("Job " + job.jobId + " not found in Elastic Transcoder");
+                    deliver(job, newNotification(job, JobState.ERROR, null));
+                    continue;
+                } catch (AmazonClientException e) {
+                    log.warn("Cannot read the status of the job " + job.jobId
+                            + ": " + e.getMessage());
+                    backoff(job);
+                    continue;
+                }
+            }
+
+            JobState state = toJobState(awsJob.getStatus());
+            if (state != null && state.isTerminalState()) {
+                if (job.hasNotifications) {
+                    log.warn("The notification of the end of the job "
+                            + job.jobId + " was not received");
+                }
+                deliver(job, newNotification(job, state, awsJob));
+            } else {
+                backoff(job);
+            }
+        }
+    }
+
+    /*
+     * Lists the jobs of the pipeline, most recent first, until all the wanted
+     * jobs were found. The jobs not found are then read one by one.
+     */
+    protected Map<String, Job> listJobs(
+            AmazonElasticTranscoder elasticTranscoder, String pipelineId,
+            List<PolledJob> wanted) {
+
+        Map<String, Job> found = new HashMap<String, Job>();
+        Set<String> missing = new HashSet<String>();
+        for (PolledJob job : wanted) {
+            missing.add(job.jobId);
+        }
+
+        String pageToken = null;
+        int pages = 0;
+        try {
+            do {
+                ListJobsByPipelineResult result = elasticTranscoder.listJobsByPipeline(new ListJobsByPipelineRequest().withPipelineId(
+                        pipelineId).withAscending("false").withPageToken(
+                        pageToken));
+                for (Job job : result.getJobs()) {
+                    if (missing.remove(job.getId())) {
+                        found.put(job.getId(), job);
+                    }
+                }
+                pageToken = result.getNextPageToken();
+                pages++;
+            } while (pageToken != null && !missing.isEmpty()
+                    && pages < MAX_LIST_PAGES);
+        } catch (AmazonClientException e) {
+            log.warn("Cannot list the jobs of the pipeline " + pipelineId
+                    + ": " + e.getMessage());
+        }
+        return found;
+    }
+
+    protected void backoff(PolledJob job) {
+
+        long cap = job.hasNotifications ? watchdogDelayMs : maxIntervalMs;
+        if (cap <= 0) {
+            // Watchdog disabled, only the max. wait check
+            job.nextCheckAt = Long.MAX_VALUE;
+            return;
+        }
+        job.intervalMs = Math.min(cap, job.intervalMs + job.intervalMs / 2);
+        job.nextCheckAt = System.currentTimeMillis() + job.intervalMs;
+    }
+
+    protected void giveUp(PolledJob job) {
+
+        log.error("Job " + job.jobId + " still not over after "
+                + (maxWaitMs / 60000) + " minutes, giving up");
+        JobStatusNotification notification = newNotification(job,
+                JobState.ERROR, null);
+        notification.setErrorCode(ERROR_CODE_MAX_WAIT);
+        deliver(job, notification);
+    }
+
+    /*
+     * The poller calls the handler once, even if the job is checked by the
+     * watchdog and by the reconciliation at the same time. The SQS worker may
+     * call the same handler on its own: the handler must be idempotent.
+     */
+    protected boolean deliver(PolledJob job,
+            JobStatusNotification notification) {
+
+        if (!jobs.remove(job.jobId, job)) {
+            return false;
+        }
+        resolvedCount.incrementAndGet();
+        try {
+            job.handler.handle(notification);
+        } catch (RuntimeException e) {
+            log.error("Error in the handler of the job " + job.jobId, e);
+        }
+        return true;
+    }
+
+    protected JobStatusNotification newNotification(PolledJob job,
+            JobState state, Job awsJob) {
+
+        JobStatusNotification notification = new JobStatusNotification();
+        notification.setJobId(job.jobId);
+        notification.setPipelineId(job.pipelineId);
+        notification.setState(state);
+        if (awsJob != null) {
+            List<JobStatusNotification.JobOutput> outputs = new ArrayList<JobStatusNotification.JobOutput>();
+            for (com.amazonaws.services.elastictranscoder.model.JobOutput awsOutput : awsJob.getOutputs()) {
+                JobStatusNotification.JobOutput output = new JobStatusNotification.JobOutput();
+                output.setId(awsOutput.getId());
+                output.setKey(awsOutput.getKey());
+                output.setPresetId(awsOutput.getPresetId());
+                output.setStatus(awsOutput.getStatus());
+                output.setStatusDetail(awsOutput.getStatusDetail());
+                outputs.add(output);
+                if (state == JobState.ERROR && notification.getErrorCode() == 0) {
+                    notification.setErrorCode(getErrorCode(awsOutput.getStatusDetail()));
+                }
+            }
+            notification.setOutputs(outputs);
+        }
+        return notification;
+    }
+
+    /*
+     * The status detail of a failed output starts with the error code
+     */
+    protected static int getErrorCode(String statusDetail) {
+
+        if (statusDetail != null) {
+            String code = StringUtils.substringBefore(statusDetail.trim(), " ");
+            if (StringUtils.isNumeric(code) && !code.isEmpty()) {
+                try {
+                    return Integer.parseInt(code);
+                } catch (NumberFormatException e) {
+                    // Not a code
+                }
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * @return the state for a job status (Submitted, Progressing, Complete,
+     *         Canceled, Error)
+     */
+    public static JobState toJobState(String status) {
+
+        if (status == null) {
+            return null;
+        }
+        switch (status) {
+        case "Complete":
+            return JobState.COMPLETED;
+        case "Error":
+        case "Canceled":
+            return JobState.ERROR;
+        case "Progressing":
+            return JobState.PROGRESSING;
+        default:
+            return null;
+        }
+    }
+
+}
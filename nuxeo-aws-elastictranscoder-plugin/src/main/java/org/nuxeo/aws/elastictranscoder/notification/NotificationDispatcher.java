@@ -0,0 +1,153 @@
+/*
+ * (C) Copyright 2016 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.aws.elastictranscoder.notification;
+
+/**
+ * Service routing the Elastic Transcoder job status notifications to the jobs
+ * waiting for them.
+ * <p>
+ * There is only one poller per SQS queue and per Nuxeo node, whatever the
+ * number of jobs in flight: callers register a handler for the jobId they
+ * created, and the poller of the queue calls this handler (and only this one)
+ * when a notification for the job is received.
+ *
+ * @since 8.3
+ */
+public interface NotificationDispatcher {
+
+    /**
+     * Registers a handler for the given job. The poller of the queue is
+     * started if it is not running yet.
+     *
+     * @param inQueueUrl the SQS queue receiving the notifications of the
+     *            pipeline used by the job
+     * @param inJobId the AWS job id
+     * @param inHandler the handler called for every notification received for
+     *            this job
+     */
+    public void register(String inQueueUrl, String inJobId,
+            JobStatusNotificationHandler inHandler);
+
+    /**
+     * Registers a handler for the given job.
+     * <p>
+     * If <code>inQueueUrl</code> is blank, the end of the job is detected by
+     * polling Elastic Transcoder, and the handler is called only once, with the
+     * final state. Else, the handler receives the notifications of the queue,
+     * and the job is also polled from time to time, in case the final
+     * notification is lost (see {@link JobStatusPoller}).
+     *
+     * @param inQueueUrl the SQS queue receiving the notifications of the
+     *            pipeline used by the job. Can be null.
+     * @param inPipelineId the pipeline of the job, used to check the status of
+     *            several jobs at once
+     * @param inJobId the AWS job id
+     * @param inHandler
+     * @since 8.3
+     */
+    public void register(String inQueueUrl, String inPipelineId,
+            String inJobId, JobStatusNotificationHandler inHandler);
+
+    /**
+     * Same as
+     * {@link #register(String, String, String, JobStatusNotificationHandler)}
+     * for a job submitted at the given time, which can be long before its
+     * registration (a job resumed after a restart): The reconciliation looks
+     * for it among the jobs ended since then.
+     *
+     * @param inQueueUrl
+     * @param inPipelineId
+     * @param inJobId
+     * @param inSubmittedAt when the job was created (epoch ms), 0 if not known
+     *            (the time of the registration is used)
+     * @param inHandler
+     * @since 8.3
+     */
+    public void register(String inQueueUrl, String inPipelineId,
+            String inJobId, long inSubmittedAt,
+            JobStatusNotificationHandler inHandler);
+
+    /**
+     * Removes the handler of the job. Does nothing if no handler was
+     * registered.
+     *
+     * @param inQueueUrl
+     * @param inJobId
+     */
+    public void unregister(String inQueueUrl, String inJobId);
+
+    /**
+     * Adds a listener called for every notification received on the queue,
+     * whatever the job (for monitoring for example). It must be fast: It is
+     * called by the threads consuming the queue.
+     *
+     * @param inQueueUrl
+     * @param inListener
+     * @since 8.3
+     */
+    public void addListener(String inQueueUrl,
+            JobStatusNotificationHandler inListener);
+
+    /**
+     * Removes a listener added with
+     * {@link #addListener(String, JobStatusNotificationHandler)}
+     *
+     * @param inQueueUrl
+     * @param inListener
+     * @since 8.3
+     */
+    public void removeListener(String inQueueUrl,
+            JobStatusNotificationHandler inListener);
+
+    /**
+     * @return the number of jobs currently waiting for a notification, all
+     *         queues included, or for the poller
+     */
+    public int getPendingJobsCount();
+
+    /**
+     * @return the number of jobs whose end was detected by polling Elastic
+     *         Transcoder
+     * @since 8.3
+     */
+    public long getPolledJobsCount();
+
+    /**
+     * @return the number of jobs whose final notification was missed and
+     *         which were recovered by the periodic reconciliation (see
+     *         {@link JobStatusPoller#reconcile()})
+     * @since 8.3
+     */
+    public long getReconciledJobsCount();
+
+    /**
+     * @return the approximate number of notifications waiting in the SQS
+     *         queues, not received yet (calls SQS)
+     * @since 8.3
+     */
+    public long getQueuesBacklog();
+
+    /**
+     * Runs the reconciliation now, instead of waiting for the next scheduled
+     * one
+     *
+     * @return the number of jobs recovered
+     * @since 8.3
+     */
+    public int reconcile();
+
+}
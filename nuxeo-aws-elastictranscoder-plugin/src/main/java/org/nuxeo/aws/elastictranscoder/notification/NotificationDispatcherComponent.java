@@ -0,0 +1,199 @@
+/*
+ * (C) Copyright 2016 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.aws.elastictranscoder.notification;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.nuxeo.aws.elastictranscoder.AWSElasticTranscoderConstants;
+import org.nuxeo.aws.elastictranscoder.GenericAWSClient;
+import org.nuxeo.aws.elastictranscoder.TranscodingMetrics;
+import org.nuxeo.runtime.model.ComponentContext;
+import org.nuxeo.runtime.model.DefaultComponent;
+
+/**
+ * Default implementation of the {@link NotificationDispatcher} service.
+ * <p>
+ * Starts one {@link SqsQueueNotificationWorker} consumer pool per SQS queue, the
+ * first time a job waits for a notification on this queue (or at startup for
+ * the queue declared in nuxeo.conf), and stops them when the component is
+ * deactivated. Also runs the {@link JobStatusPoller}, for the jobs without
+ * queue and as a watchdog for the others. The gauges of the
+ * {@link TranscodingMetrics} read its counters.
+ *
+ * @since 8.3
+ */
+public class NotificationDispatcherComponent extends DefaultComponent implements
+        NotificationDispatcher {
+
+    private static final Log log = LogFactory.getLog(NotificationDispatcherComponent.class);
+
+    protected ConcurrentMap<String, SqsQueueNotificationWorker> workers;
+
+    protected JobStatusPoller poller;
+
+    @Override
+    public void activate(ComponentContext context) {
+        workers = new ConcurrentHashMap<String, SqsQueueNotificationWorker>();
+        poller = new JobStatusPoller(
+                () -> new GenericAWSClient().getElasticTranscoder());
+        poller.start();
+        TranscodingMetrics.get().registerGauges(this);
+    }
+
+    @Override
+    public void applicationStarted(ComponentContext context) {
+
+        String defaultQueue = AWSElasticTranscoderConstants.getDefaultSqsQueueUrl();
+        if (StringUtils.isNotBlank(defaultQueue)) {
+            try {
+                getWorker(defaultQueue);
+            } catch (RuntimeException e) {
+                // Missing credentials for example. Jobs will fail with a
+                // clear message, no need to prevent the startup.
+                log.warn("Cannot start polling " + defaultQueue + ": "
+                        + e.getMessage());
+            }
+        }
+    }
+
+    @Override
+    public void deactivate(ComponentContext context) {
+
+        for (SqsQueueNotificationWorker worker : workers.values()) {
+            worker.shutdown();
+        }
+        workers.clear();
+        poller.shutdown();
+        TranscodingMetrics.get().unregisterGauges();
+    }
+
+    @Override
+    public void register(String inQueueUrl, String inJobId,
+            JobStatusNotificationHandler inHandler) {
+
+        register(inQueueUrl, null, inJobId, inHandler);
+    }
+
+    @Override
+    public void register(String inQueueUrl, String inPipelineId,
+            String inJobId, JobStatusNotificationHandler inHandler) {
+
+        register(inQueueUrl, inPipelineId, inJobId, 0, inHandler);
+    }
+
+    @Override
+    public void register(String inQueueUrl, String inPipelineId,
+            String inJobId, long inSubmittedAt,
+            JobStatusNotificationHandler inHandler) {
+
+        boolean hasQueue = StringUtils.isNotBlank(inQueueUrl);
+        if (hasQueue) {
+            getWorker(inQueueUrl).addJobHandler(inJobId, inHandler);
+        }
+        poller.add(inJobId, inPipelineId, inHandler, hasQueue, inSubmittedAt);
+    }
+
+    @Override
+    public void unregister(String inQueueUrl, String inJobId) {
+
+        if (StringUtils.isNotBlank(inQueueUrl)) {
+            SqsQueueNotificationWorker worker = workers.get(inQueueUrl);
+            if (worker != null) {
+                worker.removeJobHandler(inJobId);
+            }
+        }
+        poller.remove(inJobId);
+    }
+
+    @Override
+    public void addListener(String inQueueUrl,
+            JobStatusNotificationHandler inListener) {
+
+        getWorker(inQueueUrl).addHandler(inListener);
+    }
+
+    @Override
+    public void removeListener(String inQueueUrl,
+            JobStatusNotificationHandler inListener) {
+
+        SqsQueueNotificationWorker worker = workers.get(inQueueUrl);
+        if (worker != null) {
+            worker.removeHandler(inListener);
+        }
+    }
+
+    @Override
+    public int getPendingJobsCount() {
+
+        int count = 0;
+        for (SqsQueueNotificationWorker worker : workers.values()) {
+            count += worker.getJobHandlersCount();
+        }
+        return count + poller.getPollingOnlyJobsCount();
+    }
+
+    @Override
+    public long getPolledJobsCount() {
+        return poller.getResolvedJobsCount();
+    }
+
+    @Override
+    public long getReconciledJobsCount() {
+        return poller.getReconciledJobsCount();
+    }
+
+    @Override
+    public long getQueuesBacklog() {
+
+        long backlog = 0;
+        for (SqsQueueNotificationWorker worker : workers.values()) {
+            backlog += Math.max(0, worker.getBacklog());
+        }
+        return backlog;
+    }
+
+    @Override
+    public int reconcile() {
+        return poller.reconcile();
+    }
+
+    protected SqsQueueNotificationWorker getWorker(String inQueueUrl) {
+
+        SqsQueueNotificationWorker worker = workers.get(inQueueUrl);
+        if (worker == null) {
+            synchronized (workers) {
+                // Another thread may have started the worker while we were
+                // acquiring the lock => check again.
+                worker = workers.get(inQueueUrl);
+                if (worker == null) {
+                    worker = new SqsQueueNotificationWorker(
+                            new GenericAWSClient().getSQSClient(), inQueueUrl);
+                    worker.start("NxAWSET-SQS-" + workers.size());
+                    workers.put(inQueueUrl, worker);
+                    log.info("Polling Elastic Transcoder notifications from "
+                            + inQueueUrl);
+                }
+            }
+        }
+        return worker;
+    }
+
+}
@@ -19,13 +19,38 @@ package org.nuxeo.aws.elastictranscoder.notification;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.nuxeo.aws.elastictranscoder.AWSElasticTranscoderConstants;
+
+import com.amazonaws.AmazonClientException;
 import com.amazonaws.services.sqs.AmazonSQS;
-import com.amazonaws.services.sqs.model.DeleteMessageRequest;
+import com.amazonaws.services.sqs.model.BatchResultErrorEntry;
+import com.amazonaws.services.sqs.model.ChangeMessageVisibilityBatchRequest;
+import com.amazonaws.services.sqs.model.ChangeMessageVisibilityBatchRequestEntry;
+import com.amazonaws.services.sqs.model.ChangeMessageVisibilityBatchResult;
+import com.amazonaws.services.sqs.model.ChangeMessageVisibilityBatchResultEntry;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchRequest;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchRequestEntry;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchResult;
+import com.amazonaws.services.sqs.model.GetQueueAttributesRequest;
 import com.amazonaws.services.sqs.model.Message;
+import com.amazonaws.services.sqs.model.QueueAttributeName;
 import com.amazonaws.services.sqs.model.ReceiveMessageRequest;
-import com.fasterxml.jackson.core.type.TypeReference;
-import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 /**
  * 2014-12, First implementation: Beside some renaming, all this comes from AWS
@@ -37,94 +62,590 @@ import com.fasterxml.jackson.databind.ObjectMapper;
  * Polls an SQS queue for Elastic Transcoder job status notification messages
  * and calls the handle method on all registered JobStatusNotificationHandler
  * objects before deleting the message from the queue.
+ * <p>
+ * Since 8.3, handlers are also registered per jobId (see
+ * {@link #addJobHandler(String, JobStatusNotificationHandler)}), so a single
+ * worker can serve all the jobs in flight on a queue: The handler of a job is
+ * found with one lookup in a concurrent map, so the cost of a dispatch does
+ * not depend on the number of jobs in flight, and nothing is locked. Handlers
+ * added with {@link #addHandler(JobStatusNotificationHandler)} are wildcard
+ * listeners, called for every notification (monitoring): they do not count
+ * as waiting for the job. A terminal notification
+ * for a job nobody is waiting for on this node is not deleted: it becomes
+ * visible again after the visibility timeout, so the node waiting for it (or
+ * this node, if the job was registered right after the message was received)
+ * can get it. Once it was received <code>maxUnhandledReceives</code> times
+ * (all nodes included) without being handled, nobody waits for it anymore (a
+ * job started before a restart and already recovered by the poller, for
+ * example): it is deleted, so it does not stay in the queue until the end of
+ * its retention period.
  */
 public class SqsQueueNotificationWorker implements Runnable {
 
-    private static final int MAX_NUMBER_OF_MESSAGES = 5;
+    private static final Log log = LogFactory.getLog(SqsQueueNotificationWorker.class);
+
+    private static final long PAUSE_AFTER_ERROR_MS = 5000;
+
+    // Max. number of entries in a DeleteMessageBatch call
+    private static final int MAX_BATCH_SIZE = 10;
 
-    private static final int VISIBILITY_TIMEOUT = 15;
+    // SQS attributes of the messages (epoch ms): When SNS sent the
+    // notification to the queue, and when it was received the first time
+    public static final String SENT_TIMESTAMP = "SentTimestamp";
 
-    private static final int WAIT_TIME_SECONDS = 15;
+    public static final String FIRST_RECEIVE_TIMESTAMP = "ApproximateFirstReceiveTimestamp";
 
-    private static final ObjectMapper mapper = new ObjectMapper();
+    // SQS attribute: number of times the message was received, all consumers
+    // included
+    public static final String RECEIVE_COUNT = "ApproximateReceiveCount";
 
     private AmazonSQS amazonSqs;
 
     private String queueUrl;
 
-    private List<JobStatusNotificationHandler> handlers;
+    // Wildcard listeners. Rarely modified, read for every message: copied on
+    // write so the dispatch never locks
+    private final CopyOnWriteArrayList<JobStatusNotificationHandler> listeners = new CopyOnWriteArrayList<JobStatusNotificationHandler>();
+
+    private ConcurrentMap<String, JobStatusNotificationHandler> jobHandlers;
 
     private volatile boolean shutdown = false;
 
+    // One per thread parsing the messages
+    private final ThreadLocal<JobStatusNotificationDecoder> decoder = ThreadLocal.withInitial(JobStatusNotificationDecoder::new);
+
+    private int receivers = AWSElasticTranscoderConstants.getSqsReceivers();
+
+    private int batchSize = AWSElasticTranscoderConstants.getSqsBatchSize();
+
+    private int visibilityTimeout = AWSElasticTranscoderConstants.getSqsVisibilityTimeout();
+
+    private int waitTimeSeconds = AWSElasticTranscoderConstants.getSqsWaitTime();
+
+    private int handlerThreads = AWSElasticTranscoderConstants.getSqsHandlerThreads();
+
+    private int handoffCapacity = AWSElasticTranscoderConstants.getSqsHandoffCapacity();
+
+    private int maxUnhandledReceives = AWSElasticTranscoderConstants.getSqsMaxUnhandledReceives();
+
+    // Pool mode (see start())
+    private BlockingQueue<ReceivedMessage> handoff;
+
+    // One permit per message that can still be received
+    private Semaphore handoffPermits;
+
+    private ExecutorService receiverPool;
+
+    private ExecutorService handlerPool;
+
+    private ScheduledExecutorService visibilityExtender;
+
+    /*
+     * A message received, waiting for a handler thread
+     */
+    private static class ReceivedMessage {
+
+        private final Message message;
+
+        // When SQS makes it visible again if it is not deleted
+        private volatile long visibleAt;
+
+        private ReceivedMessage(Message message, long visibleAt) {
+            this.message = message;
+            this.visibleAt = visibleAt;
+        }
+    }
+
     public SqsQueueNotificationWorker(AmazonSQS amazonSqs, String queueUrl) {
         this.amazonSqs = amazonSqs;
         this.queueUrl = queueUrl;
-        this.handlers = new ArrayList<JobStatusNotificationHandler>();
+        this.jobHandlers = new ConcurrentHashMap<String, JobStatusNotificationHandler>();
     }
 
+    /**
+     * Adds a listener, called for every notification received on the queue,
+     * whatever the job. A listener does not make a terminal notification
+     * deletable: only the handler of its job does
+     */
     public void addHandler(
             JobStatusNotificationHandler jobStatusNotificationHandler) {
-        synchronized (handlers) {
-            this.handlers.add(jobStatusNotificationHandler);
-        }
+        listeners.addIfAbsent(jobStatusNotificationHandler);
     }
 
     public void removeHandler(
             JobStatusNotificationHandler jobStatusNotificationHandler) {
-        synchronized (handlers) {
-            this.handlers.remove(jobStatusNotificationHandler);
+        listeners.remove(jobStatusNotificationHandler);
+    }
+
+    /**
+     * The handler will be called only for the notifications of this job
+     *
+     * @since 8.3
+     */
+    public void addJobHandler(String jobId,
+            JobStatusNotificationHandler jobStatusNotificationHandler) {
+        jobHandlers.put(jobId, jobStatusNotificationHandler);
+    }
+
+    /**
+     * @since 8.3
+     */
+    public void removeJobHandler(String jobId) {
+        jobHandlers.remove(jobId);
+    }
+
+    /**
+     * @since 8.3
+     */
+    public int getJobHandlersCount() {
+        return jobHandlers.size();
+    }
+
+    /**
+     * Starts the consumer pool: <code>receivers</code> threads receive the
+     * messages and put them in a bounded handoff queue, <code>handlers</code>
+     * threads take them from the queue, call the handlers and delete them.
+     * <p>
+     * When the handlers can't keep up, the receivers stop receiving once the
+     * handoff queue is full (the messages stay in SQS), and the visibility
+     * timeout of the messages waiting in the handoff queue is extended, so
+     * they are not received again by another consumer meanwhile.
+     *
+     * @param threadNamePrefix
+     * @since 8.3
+     */
+    public synchronized void start(String threadNamePrefix) {
+
+        handoff = new ArrayBlockingQueue<ReceivedMessage>(handoffCapacity);
+        handoffPermits = new Semaphore(handoffCapacity);
+
+        receiverPool = Executors.newFixedThreadPool(receivers,
+                newThreadFactory(threadNamePrefix + "-receiver-%d"));
+        for (int i = 0; i < receivers; i++) {
+            receiverPool.execute(this::receiveLoop);
+        }
+
+        handlerPool = Executors.newFixedThreadPool(handlerThreads,
+                newThreadFactory(threadNamePrefix + "-handler-%d"));
+        for (int i = 0; i < handlerThreads; i++) {
+            handlerPool.execute(this::handleLoop);
         }
+
+        long period = getVisibilityCheckPeriodMs();
+        visibilityExtender = Executors.newSingleThreadScheduledExecutor(newThreadFactory(threadNamePrefix
+                + "-visibility-%d"));
+        visibilityExtender.scheduleWithFixedDelay(this::extendVisibility,
+                period, period, TimeUnit.MILLISECONDS);
     }
 
+    /**
+     * Receives and handles the messages in the calling thread, one batch at a
+     * time. {@link #start(String)} is preferred.
+     */
     @Override
     public void run() {
-        ReceiveMessageRequest receiveMessageRequest = new ReceiveMessageRequest().withQueueUrl(
-                queueUrl).withMaxNumberOfMessages(MAX_NUMBER_OF_MESSAGES).withVisibilityTimeout(
-                VISIBILITY_TIMEOUT).withWaitTimeSeconds(WAIT_TIME_SECONDS);
+        while (!shutdown) {
+            List<Message> messages = receive(batchSize);
+            if (!messages.isEmpty()) {
+                process(messages);
+            }
+        }
+    }
+
+    protected void receiveLoop() {
 
         while (!shutdown) {
-            // Long pole the SQS queue. This will return as soon as a message
-            // is received, or when WAIT_TIME_SECONDS has elapsed.
-            List<Message> messages = amazonSqs.receiveMessage(
-                    receiveMessageRequest).getMessages();
-            if (messages == null) {
-                // If there were no messages during this poll period, SQS
-                // will return this list as null. Continue polling.
-                continue;
+            // Wait for room in the handoff queue, and don't receive more than
+            // it can take
+            int permits;
+            try {
+                handoffPermits.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            permits = 1;
+            while (permits < batchSize && handoffPermits.tryAcquire()) {
+                permits++;
+            }
+
+            List<Message> messages = receive(permits);
+            handoffPermits.release(permits - messages.size());
+
+            long visibleAt = System.currentTimeMillis() + visibilityTimeout
+                    * 1000L;
+            for (Message message : messages) {
+                // Can't fail, we have a permit for each message
+                handoff.add(new ReceivedMessage(message, visibleAt));
+            }
+        }
+    }
+
+    protected void handleLoop() {
+
+        List<ReceivedMessage> batch = new ArrayList<ReceivedMessage>(batchSize);
+        while (!shutdown) {
+            try {
+                ReceivedMessage first = handoff.poll(1, TimeUnit.SECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                handoff.drainTo(batch, batchSize - 1);
+
+                List<Message> messages = new ArrayList<Message>(batch.size());
+                for (ReceivedMessage received : batch) {
+                    messages.add(received.message);
+                }
+                process(messages);
+
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (RuntimeException e) {
+                log.error("Error while handling notifications from "
+                        + queueUrl, e);
+            } finally {
+                handoffPermits.release(batch.size());
+                batch.clear();
+            }
+        }
+    }
+
+    /*
+     * Long polls the SQS queue. Returns as soon as a message is received, or
+     * when waitTimeSeconds has elapsed. Never null.
+     */
+    protected List<Message> receive(int maxNumberOfMessages) {
+
+        ReceiveMessageRequest receiveMessageRequest = new ReceiveMessageRequest().withQueueUrl(
+                queueUrl).withMaxNumberOfMessages(maxNumberOfMessages).withVisibilityTimeout(
+                visibilityTimeout).withWaitTimeSeconds(waitTimeSeconds).withAttributeNames(
+                SENT_TIMESTAMP, FIRST_RECEIVE_TIMESTAMP, RECEIVE_COUNT);
+        List<Message> messages = null;
+        try {
+            messages = amazonSqs.receiveMessage(receiveMessageRequest).getMessages();
+        } catch (AmazonClientException e) {
+            // The worker is long-lived: never let a network error stop it
+            log.error("Error while polling the queue " + queueUrl, e);
+            pauseAfterError();
+        }
+        // If there were no messages during this poll period, SQS may return
+        // null
+        return messages == null ? new ArrayList<Message>() : messages;
+    }
+
+    /*
+     * Parses and dispatches the messages, then deletes the ones which were
+     * handled
+     */
+    protected void process(List<Message> messages) {
+
+        List<Message> toDelete = new ArrayList<Message>(messages.size());
+        for (Message message : messages) {
+            boolean canDelete = true;
+            try {
+                // Parse notification and call handlers.
+                JobStatusNotification notification = parseNotification(message);
+                canDelete = dispatch(notification)
+                        || isAbandoned(message, notification);
+            } catch (IOException e) {
+                log.error("Failed to convert notification: " + e.getMessage());
+            } catch (RuntimeException e) {
+                // Keep it: It will be received again
+                log.error("Error in a notification handler", e);
+                canDelete = false;
+            }
+
+            if (canDelete) {
+                toDelete.add(message);
+            }
+        }
+
+        // Delete the messages from the queue, once all the handlers were
+        // called
+        deleteMessages(toDelete);
+    }
+
+    /*
+     * Extends the visibility timeout of the messages waiting in the handoff
+     * queue which would become visible before the next check
+     */
+    protected void extendVisibility() {
+
+        try {
+            long now = System.currentTimeMillis();
+            long limit = now + 2 * getVisibilityCheckPeriodMs();
+            List<ReceivedMessage> toExtend = new ArrayList<ReceivedMessage>();
+            for (ReceivedMessage received : handoff) {
+                if (received.visibleAt < limit) {
+                    toExtend.add(received);
+                }
+            }
+
+            for (int start = 0; start < toExtend.size(); start += MAX_BATCH_SIZE) {
+                int end = Math.min(start + MAX_BATCH_SIZE, toExtend.size());
+                List<ChangeMessageVisibilityBatchRequestEntry> entries = new ArrayList<ChangeMessageVisibilityBatchRequestEntry>();
+                for (int i = start; i < end; i++) {
+                    entries.add(new ChangeMessageVisibilityBatchRequestEntry(
+                            String.valueOf(i),
+                            toExtend.get(i).message.getReceiptHandle()).withVisibilityTimeout(visibilityTimeout));
+                }
+                ChangeMessageVisibilityBatchResult result = amazonSqs.changeMessageVisibilityBatch(new ChangeMessageVisibilityBatchRequest(
+                        queueUrl, entries));
+                long visibleAt = now + visibilityTimeout * 1000L;
+                for (ChangeMessageVisibilityBatchResultEntry entry : result.getSuccessful()) {
+                    toExtend.get(Integer.parseInt(entry.getId())).visibleAt = visibleAt;
+                }
+                if (!result.getFailed().isEmpty()) {
+                    log.warn("Could not extend the visibility timeout of "
+                            + result.getFailed().size() + " message(s) from "
+                            + queueUrl);
+                }
+            }
+            if (!toExtend.isEmpty() && log.isDebugEnabled()) {
+                log.debug("Handlers are late on " + queueUrl
+                        + ", visibility timeout extended for "
+                        + toExtend.size() + " message(s)");
+            }
+        } catch (RuntimeException e) {
+            // Including AmazonClientException. Keep the task scheduled.
+            log.error("Error while extending the visibility of messages from "
+                    + queueUrl, e);
+        }
+    }
+
+    private long getVisibilityCheckPeriodMs() {
+        return Math.max(1000, visibilityTimeout * 1000L / 3);
+    }
+
+    private static ThreadFactory newThreadFactory(String nameFormat) {
+        return new ThreadFactoryBuilder().setNameFormat(nameFormat).setDaemon(
+                true).build();
+    }
+
+    /**
+     * Deletes the messages with <code>DeleteMessageBatch</code> calls (up to
+     * 10 messages per call). Entries failing on the AWS side are retried once,
+     * the others are logged: They will be received again after the visibility
+     * timeout.
+     *
+     * @since 8.3
+     */
+    protected void deleteMessages(List<Message> messages) {
+
+        for (int start = 0; start < messages.size(); start += MAX_BATCH_SIZE) {
+            List<DeleteMessageBatchRequestEntry> entries = new ArrayList<DeleteMessageBatchRequestEntry>();
+            int end = Math.min(start + MAX_BATCH_SIZE, messages.size());
+            for (int i = start; i < end; i++) {
+                // The id only needs to be unique in the batch
+                entries.add(new DeleteMessageBatchRequestEntry(
+                        String.valueOf(i), messages.get(i).getReceiptHandle()));
             }
 
-            synchronized (handlers) {
-                for (Message message : messages) {
-                    try {
-                        // Parse notification and call handlers.
-                        JobStatusNotification notification = parseNotification(message);
-                        for (JobStatusNotificationHandler handler : handlers) {
-                            handler.handle(notification);
-                        }
-                    } catch (IOException e) {
-                        System.out.println("Failed to convert notification: "
-                                + e.getMessage());
-                    }
-
-                    // Delete the message from the queue.
-                    amazonSqs.deleteMessage(new DeleteMessageRequest().withQueueUrl(
-                            queueUrl).withReceiptHandle(
-                            message.getReceiptHandle()));
+            List<DeleteMessageBatchRequestEntry> failed = deleteMessageBatch(entries);
+            if (!failed.isEmpty()) {
+                failed = deleteMessageBatch(failed);
+                if (!failed.isEmpty()) {
+                    log.warn(failed.size() + " message(s) could not be deleted from "
+                            + queueUrl + ", they will be received again");
                 }
             }
         }
     }
 
-    private JobStatusNotification parseNotification(Message message)
+    /*
+     * Returns the entries to retry: Failed on the AWS side, or all of them if
+     * the call itself failed
+     */
+    private List<DeleteMessageBatchRequestEntry> deleteMessageBatch(
+            List<DeleteMessageBatchRequestEntry> entries) {
+
+        List<DeleteMessageBatchRequestEntry> toRetry = new ArrayList<DeleteMessageBatchRequestEntry>();
+        DeleteMessageBatchResult result;
+        try {
+            result = amazonSqs.deleteMessageBatch(new DeleteMessageBatchRequest(
+                    queueUrl, entries));
+        } catch (AmazonClientException e) {
+            log.error("Error while deleting messages from " + queueUrl, e);
+            toRetry.addAll(entries);
+            return toRetry;
+        }
+
+        for (BatchResultErrorEntry error : result.getFailed()) {
+            if (error.isSenderFault()) {
+                // Invalid receipt handle, most likely the visibility timeout
+                // expired: Retrying will not help
+                log.warn("Could not delete a message from " + queueUrl + ": "
+                        + error.getCode() + " " + error.getMessage());
+                continue;
+            }
+            for (DeleteMessageBatchRequestEntry entry : entries) {
+                if (entry.getId().equals(error.getId())) {
+                    toRetry.add(entry);
+                    break;
+                }
+            }
+        }
+        return toRetry;
+    }
+
+    /*
+     * Returns true if the message can be deleted from the queue: It was
+     * handled here, or it is not a terminal notification (nobody is waiting
+     * for a PROGRESSING one)
+     */
+    protected boolean dispatch(JobStatusNotification notification) {
+
+        boolean handled = false;
+        String jobId = notification.getJobId();
+        if (jobId != null) {
+            JobStatusNotificationHandler handler = jobHandlers.get(jobId);
+            if (handler != null) {
+                handler.handle(notification);
+                handled = true;
+            }
+        }
+
+        // Monitoring only: A listener does not make the message deletable,
+        // another node may be waiting for the job
+        for (JobStatusNotificationHandler listener : listeners) {
+            listener.handle(notification);
+        }
+
+        return handled || notification.getState() == null
+                || !notification.getState().isTerminalState();
+    }
+
+    /*
+     * Returns true if the terminal notification was received too many times
+     * without being handled: No node waits for it
+     */
+    protected boolean isAbandoned(Message message,
+            JobStatusNotification notification) {
+
+        Map<String, String> attributes = message.getAttributes();
+        long count = attributes == null ? 0 : getTimestamp(attributes,
+                RECEIVE_COUNT);
+        if (count < maxUnhandledReceives) {
+            return false;
+        }
+        if (log.isDebugEnabled()) {
+            log.debug("Deleting the notification of job "
+                    + notification.getJobId() + " from " + queueUrl
+                    + ": received " + count + " times, nobody waits for it");
+        }
+        return true;
+    }
+
+    protected void pauseAfterError() {
+        try {
+            Thread.sleep(PAUSE_AFTER_ERROR_MS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            shutdown = true;
+        }
+    }
+
+    protected JobStatusNotification parseNotification(Message message)
             throws IOException {
-        SNSNotification<JobStatusNotification> notification = mapper.readValue(
-                message.getBody(),
-                new TypeReference<SNSNotification<JobStatusNotification>>() {
-                });
-        return notification.getMessage();
+
+        JobStatusNotification notification = decoder.get().decode(
+                message.getBody());
+        Map<String, String> attributes = message.getAttributes();
+        if (attributes != null) {
+            notification.setSentTimestamp(getTimestamp(attributes,
+                    SENT_TIMESTAMP));
+            notification.setReceivedTimestamp(getTimestamp(attributes,
+                    FIRST_RECEIVE_TIMESTAMP));
+        }
+        return notification;
     }
 
-    public void shutdown() {
+    // Also used for the receive count
+    protected static long getTimestamp(Map<String, String> attributes,
+            String name) {
+
+        String value = attributes.get(name);
+        if (value != null) {
+            try {
+                return Long.parseLong(value);
+            } catch (NumberFormatException e) {
+                // Not known
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * @return the number of messages received and waiting for a handler thread
+     * @since 8.3
+     */
+    public int getHandoffSize() {
+        return handoff == null ? 0 : handoff.size();
+    }
+
+    /**
+     * Reads the approximate number of messages in the queue, not received yet
+     * (a call to SQS: not to be called for every message)
+     *
+     * @return the number of messages, -1 if it cannot be read
+     * @since 8.3
+     */
+    public long getBacklog() {
+
+        String attribute = QueueAttributeName.ApproximateNumberOfMessages.toString();
+        try {
+            String value = amazonSqs.getQueueAttributes(
+                    new GetQueueAttributesRequest(queueUrl).withAttributeNames(attribute)).getAttributes().get(
+                    attribute);
+            return value == null ? -1 : Long.parseLong(value);
+        } catch (AmazonClientException | NumberFormatException e) {
+            log.debug("Cannot read the backlog of " + queueUrl, e);
+            return -1;
+        }
+    }
+
+    public void setReceivers(int receivers) {
+        this.receivers = Math.max(1, receivers);
+    }
+
+    public void setBatchSize(int batchSize) {
+        this.batchSize = Math.max(1, Math.min(batchSize,
+                AWSElasticTranscoderConstants.MAX_SQS_BATCH_SIZE));
+    }
+
+    public void setVisibilityTimeout(int visibilityTimeout) {
+        this.visibilityTimeout = Math.max(1, visibilityTimeout);
+    }
+
+    public void setWaitTimeSeconds(int waitTimeSeconds) {
+        this.waitTimeSeconds = Math.max(0, Math.min(waitTimeSeconds,
+                AWSElasticTranscoderConstants.MAX_SQS_WAIT_TIME));
+    }
+
+    public void setHandlerThreads(int handlerThreads) {
+        this.handlerThreads = Math.max(1, handlerThreads);
+    }
+
+    public void setHandoffCapacity(int handoffCapacity) {
+        this.handoffCapacity = Math.max(1, handoffCapacity);
+    }
+
+    /**
+     * @since 8.3
+     */
+    public void setMaxUnhandledReceives(int maxUnhandledReceives) {
+        this.maxUnhandledReceives = Math.max(1, maxUnhandledReceives);
+    }
+
+    public synchronized void shutdown() {
         shutdown = true;
+        for (ExecutorService pool : new ExecutorService[] { receiverPool,
+                handlerPool, visibilityExtender }) {
+            if (pool != null) {
+                pool.shutdownNow();
+            }
+        }
     }
 }
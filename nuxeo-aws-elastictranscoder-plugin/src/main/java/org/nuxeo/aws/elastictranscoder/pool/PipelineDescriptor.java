@@ -0,0 +1,86 @@
+/*
+ * (C) Copyright 2016 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.aws.elastictranscoder.pool;
+
+import org.apache.commons.lang.StringUtils;
+import org.nuxeo.aws.elastictranscoder.AWSElasticTranscoderConstants;
+import org.nuxeo.common.xmap.annotation.XNode;
+import org.nuxeo.common.xmap.annotation.XObject;
+
+/**
+ * A pipeline of a {@link PipelinePoolDescriptor}, with its buckets and SQS
+ * queue. The buckets and queue not set are read from the configuration
+ * (nuxeo.conf), as for the converters.
+ *
+ * @since 8.3
+ */
+@XObject("pipeline")
+public class PipelineDescriptor {
+
+    @XNode("@id")
+    protected String id;
+
+    // Share of the jobs in weighted round-robin, capacity relative to the
+    // other pipelines for the least outstanding jobs routing
+    @XNode("@weight")
+    protected int weight = 1;
+
+    @XNode("inputBucket")
+    protected String inputBucket;
+
+    @XNode("outputBucket")
+    protected String outputBucket;
+
+    @XNode("sqsQueueUrl")
+    protected String sqsQueueUrl;
+
+    public PipelineDescriptor() {
+    }
+
+    public PipelineDescriptor(String inId, int inWeight, String inInputBucket,
+            String inOutputBucket, String inSqsQueueUrl) {
+        id = inId;
+        weight = inWeight;
+        inputBucket = inInputBucket;
+        outputBucket = inOutputBucket;
+        sqsQueueUrl = inSqsQueueUrl;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public int getWeight() {
+        return Math.max(1, weight);
+    }
+
+    public String getInputBucket() {
+        return StringUtils.defaultIfBlank(inputBucket,
+                AWSElasticTranscoderConstants.getDefaultBucketInput());
+    }
+
+    public String getOutputBucket() {
+        return StringUtils.defaultIfBlank(outputBucket,
+                AWSElasticTranscoderConstants.getDefaultBucketOutput());
+    }
+
+    public String getSqsQueueUrl() {
+        return StringUtils.defaultIfBlank(sqsQueueUrl,
+                AWSElasticTranscoderConstants.getDefaultSqsQueueUrl());
+    }
+
+}
@@ -0,0 +1,246 @@
+/*
+ * (C) Copyright 2016 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.aws.elastictranscoder.pool;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.nuxeo.ecm.core.api.NuxeoException;
+
+/**
+ * Routes the jobs of the converters referencing the pool to its pipelines, so
+ * a bulk import is spread on several pipelines instead of queuing behind one.
+ * <p>
+ * Two routings are available:
+ * <ul>
+ * <li><code>leastOutstanding</code> (default): the pipeline with the least
+ * jobs in progress on this node, relative to its weight</li>
+ * <li><code>weightedRoundRobin</code>: each pipeline gets a share of the jobs
+ * proportional to its weight, interleaved</li>
+ * </ul>
+ * A pipeline failing <code>maxFailures</code> jobs in a row (AWS errors, or
+ * job errors not caused by the input), or whose calls are throttled, is
+ * drained: It gets no new job for a while, then gets jobs again. A pipeline
+ * failing again right after its drain is drained again. If all the pipelines
+ * are drained, the one drained first is used anyway: a job is never refused.
+ *
+ * @since 8.3
+ */
+public class PipelinePool {
+
+    private static final Log log = LogFactory.getLog(PipelinePool.class);
+
+    public static final String ROUTING_LEAST_OUTSTANDING = "leastOutstanding";
+
+    public static final String ROUTING_WEIGHTED_ROUND_ROBIN = "weightedRoundRobin";
+
+    protected final String name;
+
+    protected final boolean weightedRoundRobin;
+
+    protected final int maxFailures;
+
+    protected final long drainMs;
+
+    protected final long throttledDrainMs;
+
+    protected final List<PooledPipeline> pipelines;
+
+    // Rotates the first pipeline checked, so equally loaded pipelines get
+    // the jobs in turn
+    protected int next;
+
+    /**
+     * @throws NuxeoException if the pool has no pipeline, or an unknown
+     *             routing
+     */
+    public PipelinePool(PipelinePoolDescriptor inDescriptor)
+            throws NuxeoException {
+
+        name = inDescriptor.getName();
+        String routing = StringUtils.defaultIfBlank(
+                inDescriptor.getRouting(), ROUTING_LEAST_OUTSTANDING).trim();
+        if (ROUTING_WEIGHTED_ROUND_ROBIN.equals(routing)) {
+            weightedRoundRobin = true;
+        } else if (ROUTING_LEAST_OUTSTANDING.equals(routing)) {
+            weightedRoundRobin = false;
+        } else {
+            throw new NuxeoException("Unknown routing " + routing
+                    + " for the pipeline pool " + name);
+        }
+        maxFailures = Math.max(1, inDescriptor.getMaxFailures());
+        drainMs = TimeUnit.SECONDS.toMillis(Math.max(0,
+                inDescriptor.getDrainSeconds()));
+        throttledDrainMs = TimeUnit.SECONDS.toMillis(Math.max(0,
+                inDescriptor.getThrottledDrainSeconds()));
+
+        List<PooledPipeline> list = new ArrayList<PooledPipeline>();
+        for (PipelineDescriptor pipeline : inDescriptor.getPipelines()) {
+            if (StringUtils.isBlank(pipeline.getId())) {
+                throw new NuxeoException("A pipeline of the pool " + name
+                        + " has no id");
+            }
+            list.add(new PooledPipeline(pipeline));
+        }
+        if (list.isEmpty()) {
+            throw new NuxeoException("The pipeline pool " + name
+                    + " has no pipeline");
+        }
+        pipelines = Collections.unmodifiableList(list);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return the pipelines, in the order they were contributed
+     */
+    public List<PooledPipeline> getPipelines() {
+        return pipelines;
+    }
+
+    /**
+     * Chooses the pipeline of a new job. Every call must be followed by a
+     * call to {@link #release(PooledPipeline)} when the job ends.
+     *
+     * @return the pipeline, never null
+     */
+    public synchronized PooledPipeline acquire() {
+
+        long now = System.currentTimeMillis();
+        List<PooledPipeline> candidates = new ArrayList<PooledPipeline>(
+                pipelines.size());
+        PooledPipeline firstAvailable = null;
+        for (PooledPipeline pipeline : pipelines) {
+            if (pipeline.drainedUntil <= now) {
+                candidates.add(pipeline);
+            } else if (firstAvailable == null
+                    || pipeline.drainedUntil < firstAvailable.drainedUntil) {
+                firstAvailable = pipeline;
+            }
+        }
+        if (candidates.isEmpty()) {
+            candidates.add(firstAvailable);
+        }
+
+        PooledPipeline chosen = weightedRoundRobin ? selectWeightedRoundRobin(candidates)
+                : selectLeastOutstanding(candidates);
+        chosen.outstanding.incrementAndGet();
+        chosen.jobsCount.incrementAndGet();
+        return chosen;
+    }
+
+    /**
+     * The job routed to the pipeline ended
+     */
+    public void release(PooledPipeline inPipeline) {
+        inPipeline.outstanding.decrementAndGet();
+    }
+
+    /*
+     * Lowest outstanding / weight, compared without division
+     */
+    protected PooledPipeline selectLeastOutstanding(
+            List<PooledPipeline> inCandidates) {
+
+        int size = inCandidates.size();
+        int start = next++ % size;
+        if (next < 0) {
+            next = 0;
+        }
+        PooledPipeline best = null;
+        for (int i = 0; i < size; i++) {
+            PooledPipeline pipeline = inCandidates.get((start + i) % size);
+            if (best == null
+                    || (long) pipeline.getOutstandingJobs() * best.getWeight() < (long) best.getOutstandingJobs()
+                            * pipeline.getWeight()) {
+                best = pipeline;
+            }
+        }
+        return best;
+    }
+
+    /*
+     * Smooth weighted round-robin: with weights 2 and 1, the jobs go to A, B,
+     * A, A, B, A... instead of A, A, B, A, A, B
+     */
+    protected PooledPipeline selectWeightedRoundRobin(
+            List<PooledPipeline> inCandidates) {
+
+        int total = 0;
+        PooledPipeline best = null;
+        for (PooledPipeline pipeline : inCandidates) {
+            pipeline.currentWeight += pipeline.getWeight();
+            total += pipeline.getWeight();
+            if (best == null || pipeline.currentWeight > best.currentWeight) {
+                best = pipeline;
+            }
+        }
+        best.currentWeight -= total;
+        return best;
+    }
+
+    /**
+     * A job of the pipeline succeeded
+     */
+    public synchronized void recordSuccess(PooledPipeline inPipeline) {
+        inPipeline.consecutiveFailures = 0;
+    }
+
+    /**
+     * A job of the pipeline failed because of the pipeline or AWS (not
+     * because of its input)
+     */
+    public synchronized void recordFailure(PooledPipeline inPipeline) {
+
+        inPipeline.failuresCount.incrementAndGet();
+        inPipeline.consecutiveFailures++;
+        if (inPipeline.consecutiveFailures >= maxFailures) {
+            drain(inPipeline, drainMs, inPipeline.consecutiveFailures
+                    + " failures in a row");
+            // Drained again at the next failure
+            inPipeline.consecutiveFailures = maxFailures - 1;
+        }
+    }
+
+    /**
+     * A call for the pipeline was throttled by AWS
+     */
+    public synchronized void recordThrottled(PooledPipeline inPipeline) {
+
+        inPipeline.throttledCount.incrementAndGet();
+        drain(inPipeline, throttledDrainMs, "throttled");
+    }
+
+    protected void drain(PooledPipeline inPipeline, long inDelayMs,
+            String inReason) {
+
+        long until = System.currentTimeMillis() + inDelayMs;
+        if (until > inPipeline.drainedUntil) {
+            inPipeline.drainedUntil = until;
+            log.warn("Pipeline " + inPipeline.getId() + " of the pool " + name
+                    + " drained for " + inDelayMs + "ms (" + inReason + ")");
+        }
+    }
+
+}
@@ -0,0 +1,81 @@
+/*
+ * (C) Copyright 2016 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.aws.elastictranscoder.pool;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.nuxeo.runtime.model.ComponentInstance;
+import org.nuxeo.runtime.model.DefaultComponent;
+
+/**
+ * Default implementation of the {@link PipelinePoolService}. A pool is built
+ * when it is contributed: Contributing it again resets the load and the
+ * health of its pipelines.
+ *
+ * @since 8.3
+ */
+public class PipelinePoolComponent extends DefaultComponent implements
+        PipelinePoolService {
+
+    private static final Log log = LogFactory.getLog(PipelinePoolComponent.class);
+
+    public static final String XP_PIPELINE_POOLS = "pipelinePools";
+
+    protected final ConcurrentMap<String, PipelinePool> pools = new ConcurrentHashMap<String, PipelinePool>();
+
+    @Override
+    public void registerContribution(Object contribution,
+            String extensionPoint, ComponentInstance contributor) {
+
+        if (XP_PIPELINE_POOLS.equals(extensionPoint)) {
+            PipelinePoolDescriptor descriptor = (PipelinePoolDescriptor) contribution;
+            if (descriptor.isEnabled()) {
+                pools.put(descriptor.getName(), new PipelinePool(descriptor));
+                log.debug("Pipeline pool registered: " + descriptor.getName());
+            } else {
+                pools.remove(descriptor.getName());
+            }
+        } else {
+            log.error("Unknown extension point " + extensionPoint);
+        }
+    }
+
+    @Override
+    public void unregisterContribution(Object contribution,
+            String extensionPoint, ComponentInstance contributor) {
+
+        if (XP_PIPELINE_POOLS.equals(extensionPoint)) {
+            pools.remove(((PipelinePoolDescriptor) contribution).getName());
+        }
+    }
+
+    @Override
+    public PipelinePool getPool(String inName) {
+        return inName == null ? null : pools.get(inName);
+    }
+
+    @Override
+    public List<PipelinePool> getPools() {
+        return new ArrayList<PipelinePool>(pools.values());
+    }
+
+}
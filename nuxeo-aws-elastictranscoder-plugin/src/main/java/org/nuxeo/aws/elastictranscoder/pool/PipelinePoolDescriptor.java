@@ -0,0 +1,130 @@
+/*
+ * (C) Copyright 2016 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.aws.elastictranscoder.pool;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.nuxeo.common.xmap.annotation.XNode;
+import org.nuxeo.common.xmap.annotation.XNodeList;
+import org.nuxeo.common.xmap.annotation.XObject;
+
+/**
+ * A group of Elastic Transcoder pipelines sharing the jobs of the converters
+ * referencing it (<code>pipelinePool</code> converter parameter), contributed
+ * to the <code>pipelinePools</code> extension point of
+ * {@link PipelinePoolService}:
+ *
+ * <pre>
+ * &lt;pipelinePool name="bulk"&gt;
+ *   &lt;routing&gt;leastOutstanding&lt;/routing&gt;
+ *   &lt;pipeline id="1450000000000-aaaaaa" weight="2"&gt;
+ *     &lt;inputBucket&gt;transcoding-input-a&lt;/inputBucket&gt;
+ *     &lt;outputBucket&gt;transcoding-output-a&lt;/outputBucket&gt;
+ *     &lt;sqsQueueUrl&gt;https://sqs...&lt;/sqsQueueUrl&gt;
+ *   &lt;/pipeline&gt;
+ *   &lt;pipeline id="1450000000000-bbbbbb" /&gt;
+ * &lt;/pipelinePool&gt;
+ * </pre>
+ *
+ * A contribution replaces the pool of the same name, or removes it if it is
+ * not <code>enabled</code>.
+ *
+ * @since 8.3
+ */
+@XObject("pipelinePool")
+public class PipelinePoolDescriptor {
+
+    @XNode("@name")
+    protected String name;
+
+    @XNode("@enabled")
+    protected boolean enabled = true;
+
+    // PipelinePool.ROUTING_LEAST_OUTSTANDING or
+    // PipelinePool.ROUTING_WEIGHTED_ROUND_ROBIN
+    @XNode("routing")
+    protected String routing = PipelinePool.ROUTING_LEAST_OUTSTANDING;
+
+    // A pipeline failing this many jobs in a row is drained: It gets no new
+    // job during drainSeconds
+    @XNode("maxFailures")
+    protected int maxFailures = 3;
+
+    @XNode("drainSeconds")
+    protected int drainSeconds = 60;
+
+    // A pipeline whose jobs are throttled is drained during this delay
+    @XNode("throttledDrainSeconds")
+    protected int throttledDrainSeconds = 10;
+
+    @XNodeList(value = "pipeline", type = ArrayList.class, componentType = PipelineDescriptor.class)
+    protected List<PipelineDescriptor> pipelines = new ArrayList<PipelineDescriptor>();
+
+    public String getName() {
+        return name;
+    }
+
+    public void setName(String inName) {
+        name = inName;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public String getRouting() {
+        return routing;
+    }
+
+    public void setRouting(String inRouting) {
+        routing = inRouting;
+    }
+
+    public int getMaxFailures() {
+        return maxFailures;
+    }
+
+    public void setMaxFailures(int inValue) {
+        maxFailures = inValue;
+    }
+
+    public int getDrainSeconds() {
+        return drainSeconds;
+    }
+
+    public void setDrainSeconds(int inValue) {
+        drainSeconds = inValue;
+    }
+
+    public int getThrottledDrainSeconds() {
+        return throttledDrainSeconds;
+    }
+
+    public void setThrottledDrainSeconds(int inValue) {
+        throttledDrainSeconds = inValue;
+    }
+
+    public List<PipelineDescriptor> getPipelines() {
+        return pipelines;
+    }
+
+    public void setPipelines(List<PipelineDescriptor> inPipelines) {
+        pipelines = inPipelines;
+    }
+
+}
@@ -0,0 +1,38 @@
+/*
+ * (C) Copyright 2016 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.aws.elastictranscoder.pool;
+
+import java.util.List;
+
+/**
+ * Service holding the {@link PipelinePool} contributed to its
+ * <code>pipelinePools</code> extension point (see
+ * {@link PipelinePoolDescriptor}). A converter uses a pool with its
+ * <code>pipelinePool</code> parameter.
+ *
+ * @since 8.3
+ */
+public interface PipelinePoolService {
+
+    /**
+     * @return the pool, null if there is no pool with this name
+     */
+    public PipelinePool getPool(String inName);
+
+    public List<PipelinePool> getPools();
+
+}
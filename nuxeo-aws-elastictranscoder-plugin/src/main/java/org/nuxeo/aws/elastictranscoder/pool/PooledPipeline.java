@@ -0,0 +1,111 @@
+/*
+ * (C) Copyright 2016 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.aws.elastictranscoder.pool;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A pipeline of a {@link PipelinePool}, with its load (jobs started on this
+ * node and not ended yet) and its health. The state is updated by the pool.
+ *
+ * @since 8.3
+ */
+public class PooledPipeline {
+
+    protected final PipelineDescriptor descriptor;
+
+    protected final AtomicInteger outstanding = new AtomicInteger();
+
+    protected final AtomicLong jobsCount = new AtomicLong();
+
+    protected final AtomicLong failuresCount = new AtomicLong();
+
+    protected final AtomicLong throttledCount = new AtomicLong();
+
+    // Guarded by the pool
+    protected int consecutiveFailures;
+
+    // Smooth weighted round-robin, guarded by the pool
+    protected int currentWeight;
+
+    // No new job before this time (epoch ms)
+    protected volatile long drainedUntil;
+
+    public PooledPipeline(PipelineDescriptor inDescriptor) {
+        descriptor = inDescriptor;
+    }
+
+    public String getId() {
+        return descriptor.getId();
+    }
+
+    public int getWeight() {
+        return descriptor.getWeight();
+    }
+
+    public String getInputBucket() {
+        return descriptor.getInputBucket();
+    }
+
+    public String getOutputBucket() {
+        return descriptor.getOutputBucket();
+    }
+
+    public String getSqsQueueUrl() {
+        return descriptor.getSqsQueueUrl();
+    }
+
+    /**
+     * @return the number of jobs routed to this pipeline and not ended yet
+     */
+    public int getOutstandingJobs() {
+        return outstanding.get();
+    }
+
+    public long getJobsCount() {
+        return jobsCount.get();
+    }
+
+    public long getFailuresCount() {
+        return failuresCount.get();
+    }
+
+    public long getThrottledCount() {
+        return throttledCount.get();
+    }
+
+    /**
+     * @return false while the pipeline is drained, after failures or
+     *         throttling
+     */
+    public boolean isHealthy() {
+        return drainedUntil <= System.currentTimeMillis();
+    }
+
+    public long getDrainedUntil() {
+        return drainedUntil;
+    }
+
+    @Override
+    public String toString() {
+        return "PooledPipeline [id=" + getId() + ", weight=" + getWeight()
+                + ", outstanding=" + outstanding + ", healthy=" + isHealthy()
+                + "]";
+    }
+
+}
@@ -0,0 +1,78 @@
+/*
+ * (C) Copyright 2016 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.aws.elastictranscoder.tracing;
+
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Default {@link TraceExporter}: logs each trace on one line, at INFO level,
+ * with the offset of each step from the start of the transcoding, its
+ * duration and its tags:
+ *
+ * <pre>
+ * trace=2f0c... transcoding 0+84211ms {pipelineId=..., jobId=...} | upload 0+812ms {bytes=...} | createjob 813+95ms {...} | ...
+ * </pre>
+ *
+ * Set the level of this category to WARN to disable it.
+ *
+ * @since 8.3
+ */
+public class LogTraceExporter implements TraceExporter {
+
+    private static final Log log = LogFactory.getLog(LogTraceExporter.class);
+
+    @Override
+    public void export(TranscodingTrace inTrace) {
+
+        if (log.isInfoEnabled()) {
+            log.info(format(inTrace));
+        }
+    }
+
+    public static String format(TranscodingTrace inTrace) {
+
+        TranscodingSpan root = inTrace.getRoot();
+        StringBuilder sb = new StringBuilder("trace=").append(
+                inTrace.getTraceId()).append(' ');
+        append(sb, root, root.getStartTime());
+        for (TranscodingSpan span : inTrace.getSpans()) {
+            sb.append(" | ");
+            append(sb, span, root.getStartTime());
+        }
+        return sb.toString();
+    }
+
+    protected static void append(StringBuilder inSb, TranscodingSpan inSpan,
+            long inTraceStart) {
+
+        inSb.append(inSpan.getName()).append(' ').append(
+                inSpan.getStartTime() - inTraceStart).append('+');
+        if (inSpan.isEnded()) {
+            inSb.append(inSpan.getDurationMs()).append("ms");
+        } else {
+            inSb.append('?');
+        }
+        Map<String, Object> tags = inSpan.getTags();
+        if (!tags.isEmpty()) {
+            inSb.append(' ').append(tags);
+        }
+    }
+
+}
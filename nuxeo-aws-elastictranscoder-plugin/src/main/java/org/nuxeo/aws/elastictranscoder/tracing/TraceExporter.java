@@ -0,0 +1,33 @@
+/*
+ * (C) Copyright 2016 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.aws.elastictranscoder.tracing;
+
+/**
+ * Exports the traces of the transcodings (to the log, to a tracing
+ * system...). Set the class with <code>aws.transcoder.tracing.exporter</code>
+ * in nuxeo.conf; it must have a public constructor without parameter.
+ * <p>
+ * Called once per trace, by the thread ending the transcoding: It must not
+ * block, and must be thread safe.
+ *
+ * @since 8.3
+ */
+public interface TraceExporter {
+
+    public void export(TranscodingTrace inTrace);
+
+}
@@ -0,0 +1,178 @@
+/*
+ * (C) Copyright 2016 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.aws.elastictranscoder.tracing;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.nuxeo.aws.elastictranscoder.TranscodingMetrics;
+
+/**
+ * A step of a {@link TranscodingTrace}: its name, when it started, how long it
+ * lasted, and its tags (job id, sizes...).
+ * <p>
+ * A span is started by a thread and may be tagged and ended by another one
+ * (the thread receiving the notification of the job, for example).
+ *
+ * @since 8.3
+ */
+public class TranscodingSpan {
+
+    protected final String name;
+
+    protected final String spanId;
+
+    protected final String parentSpanId;
+
+    // Epoch ms, for the export, and System.nanoTime() for the duration
+    protected final long startTime;
+
+    protected final long startNanos;
+
+    protected volatile long durationNanos = -1;
+
+    protected final Map<String, Object> tags = Collections.synchronizedMap(new LinkedHashMap<String, Object>());
+
+    /**
+     * @param inName
+     * @param inSpanId
+     * @param inParentSpanId null for the root span
+     * @param inStartTime epoch ms. Can be in the past, for a step which did
+     *            not start on this server (the delivery of a notification,
+     *            for example)
+     */
+    public TranscodingSpan(String inName, String inSpanId,
+            String inParentSpanId, long inStartTime) {
+
+        name = inName;
+        spanId = inSpanId;
+        parentSpanId = inParentSpanId;
+        long now = System.currentTimeMillis();
+        startTime = inStartTime;
+        startNanos = System.nanoTime()
+                - TimeUnit.MILLISECONDS.toNanos(now - inStartTime);
+    }
+
+    /**
+     * Adds a tag. A null value is ignored.
+     *
+     * @return this span
+     */
+    public TranscodingSpan tag(String inKey, Object inValue) {
+
+        if (inValue != null) {
+            tags.put(inKey, inValue);
+        }
+        return this;
+    }
+
+    /**
+     * Ends the span. Does nothing if it is already ended.
+     */
+    public void end() {
+
+        if (durationNanos < 0) {
+            durationNanos = Math.max(0, System.nanoTime() - startNanos);
+        }
+    }
+
+    /**
+     * Ends the span at <code>inEndTime</code> (epoch ms), for a step which
+     * did not end on this server (a job, ended when Elastic Transcoder sent
+     * its notification, for example). Does nothing if it is already ended.
+     */
+    public void endAt(long inEndTime) {
+
+        if (durationNanos < 0) {
+            durationNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0,
+                    inEndTime - startTime));
+        }
+    }
+
+    /**
+     * Ends the span, tagged with the error code (see
+     * {@link TranscodingMetrics#getErrorCode(Throwable)}) if
+     * <code>inError</code> is not null
+     */
+    public void end(Throwable inError) {
+
+        if (inError != null && durationNanos < 0) {
+            tag("error", TranscodingMetrics.getErrorCode(inError));
+        }
+        end();
+    }
+
+    public boolean isEnded() {
+        return durationNanos >= 0;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getSpanId() {
+        return spanId;
+    }
+
+    public String getParentSpanId() {
+        return parentSpanId;
+    }
+
+    public long getStartTime() {
+        return startTime;
+    }
+
+    /**
+     * @return the duration in ns, -1 if the span is not ended
+     */
+    public long getDurationNanos() {
+        return durationNanos;
+    }
+
+    /**
+     * @return the duration in ms, -1 if the span is not ended
+     */
+    public long getDurationMs() {
+        return durationNanos < 0 ? -1
+                : TimeUnit.NANOSECONDS.toMillis(durationNanos);
+    }
+
+    /**
+     * @return a copy of the tags, in the order they were added
+     */
+    public Map<String, Object> getTags() {
+
+        synchronized (tags) {
+            return new LinkedHashMap<String, Object>(tags);
+        }
+    }
+
+    public Object getTag(String inKey) {
+        return tags.get(inKey);
+    }
+
+    @Override
+    public String toString() {
+        return "TranscodingSpan [name=" + name + ", spanId=" + spanId
+                + ", parentSpanId=" + parentSpanId + ", startTime="
+                + startTime + ", durationNanos=" + durationNanos + ", tags="
+                + getTags() + "]";
+    }
+
+}
@@ -0,0 +1,146 @@
+/*
+ * (C) Copyright 2016 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.aws.elastictranscoder.tracing;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * The trace of one transcoding: a root span, from the submission to the
+ * cleanup, and one child span per step (upload, job creation, job, delivery
+ * of the notification, download...). It is exported once, when it ends.
+ *
+ * @since 8.3
+ */
+public class TranscodingTrace {
+
+    private static final Log log = LogFactory.getLog(TranscodingTrace.class);
+
+    protected final String traceId;
+
+    protected final TranscodingSpan root;
+
+    protected final List<TranscodingSpan> spans = new CopyOnWriteArrayList<TranscodingSpan>();
+
+    protected final AtomicInteger spanCount = new AtomicInteger();
+
+    protected final AtomicBoolean ended = new AtomicBoolean();
+
+    protected final TraceExporter exporter;
+
+    /**
+     * @param inName name of the root span
+     * @param inExporter null: the trace is not exported
+     */
+    public TranscodingTrace(String inName, TraceExporter inExporter) {
+
+        traceId = UUID.randomUUID().toString().replace("-", "");
+        exporter = inExporter;
+        root = new TranscodingSpan(inName, nextSpanId(), null,
+                System.currentTimeMillis());
+    }
+
+    protected String nextSpanId() {
+        return Integer.toString(spanCount.incrementAndGet());
+    }
+
+    /**
+     * Starts a child span of the root span, now
+     */
+    public TranscodingSpan startSpan(String inName) {
+
+        return startSpan(inName, System.currentTimeMillis());
+    }
+
+    /**
+     * Starts a child span of the root span, at <code>inStartTime</code>
+     * (epoch ms)
+     */
+    public TranscodingSpan startSpan(String inName, long inStartTime) {
+
+        TranscodingSpan span = new TranscodingSpan(inName, nextSpanId(),
+                root.getSpanId(), inStartTime);
+        spans.add(span);
+        return span;
+    }
+
+    /**
+     * Ends the root span, and exports the trace. Does nothing if the trace is
+     * already ended. The child spans which were not ended are ended now,
+     * tagged with the error: They are the steps which failed.
+     *
+     * @param inError the error which failed the transcoding, if any
+     */
+    public void end(Throwable inError) {
+
+        if (!ended.compareAndSet(false, true)) {
+            return;
+        }
+        for (TranscodingSpan span : spans) {
+            span.end(inError);
+        }
+        root.end(inError);
+        if (exporter != null) {
+            try {
+                exporter.export(this);
+            } catch (RuntimeException e) {
+                // Never fail a transcoding because of its trace
+                log.error("Cannot export the trace " + traceId, e);
+            }
+        }
+    }
+
+    public boolean isEnded() {
+        return ended.get();
+    }
+
+    public String getTraceId() {
+        return traceId;
+    }
+
+    public TranscodingSpan getRoot() {
+        return root;
+    }
+
+    /**
+     * @return the child spans, in the order they were started
+     */
+    public List<TranscodingSpan> getSpans() {
+        return new ArrayList<TranscodingSpan>(spans);
+    }
+
+    /**
+     * @return the first child span with this name, null if there is none
+     */
+    public TranscodingSpan getSpan(String inName) {
+
+        for (TranscodingSpan span : spans) {
+            if (span.getName().equals(inName)) {
+                return span;
+            }
+        }
+        return null;
+    }
+
+}
@@ -0,0 +1,91 @@
+/*
+ * (C) Copyright 2016 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.aws.elastictranscoder.tracing;
+
+import org.apache.commons.lang.StringUtils;
+import org.nuxeo.aws.elastictranscoder.AWSElasticTranscoderConstants;
+import org.nuxeo.ecm.core.api.NuxeoException;
+
+/**
+ * Creates the traces of the transcodings, exported with the
+ * {@link TraceExporter} set in nuxeo.conf
+ * (<code>aws.transcoder.tracing.exporter</code>: <code>log</code>, the
+ * default, <code>none</code>, or the class name of an exporter)
+ *
+ * @since 8.3
+ */
+public class TranscodingTracing {
+
+    private static volatile TranscodingTracing instance;
+
+    protected final TraceExporter exporter;
+
+    /**
+     * @param inExporter null: the traces are not exported
+     */
+    public TranscodingTracing(TraceExporter inExporter) {
+        exporter = inExporter;
+    }
+
+    /**
+     * @return the instance configured in nuxeo.conf
+     * @throws NuxeoException if the exporter class is invalid
+     */
+    public static TranscodingTracing get() throws NuxeoException {
+
+        if (instance == null) {
+            synchronized (TranscodingTracing.class) {
+                if (instance == null) {
+                    instance = new TranscodingTracing(
+                            newExporter(AWSElasticTranscoderConstants.getTracingExporter()));
+                }
+            }
+        }
+        return instance;
+    }
+
+    protected static TraceExporter newExporter(String inName)
+            throws NuxeoException {
+
+        if (StringUtils.isBlank(inName)
+                || AWSElasticTranscoderConstants.TRACING_EXPORTER_LOG.equals(inName)) {
+            return new LogTraceExporter();
+        }
+        if (AWSElasticTranscoderConstants.TRACING_EXPORTER_NONE.equals(inName)) {
+            return null;
+        }
+        try {
+            return (TraceExporter) Class.forName(inName.trim()).newInstance();
+        } catch (ReflectiveOperationException | ClassCastException e) {
+            throw new NuxeoException("Invalid trace exporter: " + inName, e);
+        }
+    }
+
+    /**
+     * Starts a new trace (its root span starts now)
+     *
+     * @param inName name of the root span
+     */
+    public TranscodingTrace newTrace(String inName) {
+        return new TranscodingTrace(inName, exporter);
+    }
+
+    public TraceExporter getExporter() {
+        return exporter;
+    }
+
+}
@@ -0,0 +1,783 @@
+/*
+ * (C) Copyright 2016 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.aws.elastictranscoder.test;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.nuxeo.aws.elastictranscoder.AWSClientRegistry;
+import org.nuxeo.aws.elastictranscoder.AWSElasticTranscoder;
+import org.nuxeo.aws.elastictranscoder.TranscodingMetrics;
+import org.nuxeo.aws.elastictranscoder.TranscodingPriority;
+import org.nuxeo.aws.elastictranscoder.cache.InFlightTranscodings;
+import org.nuxeo.aws.elastictranscoder.jobs.TranscodingJob;
+import org.nuxeo.aws.elastictranscoder.jobs.TranscodingJobRegistry;
+import org.nuxeo.aws.elastictranscoder.jobs.TranscodingJobRegistryComponent;
+import org.nuxeo.aws.elastictranscoder.jobs.TranscodingWork;
+import org.nuxeo.aws.elastictranscoder.local.LocalAWSClientBackend;
+import org.nuxeo.aws.elastictranscoder.local.LocalElasticTranscoder;
+import org.nuxeo.aws.elastictranscoder.local.LocalS3;
+import org.nuxeo.aws.elastictranscoder.notification.JobStatusNotification.JobState;
+import org.nuxeo.aws.elastictranscoder.notification.NotificationDispatcher;
+import org.nuxeo.aws.elastictranscoder.pool.PipelineDescriptor;
+import org.nuxeo.aws.elastictranscoder.pool.PipelinePool;
+import org.nuxeo.aws.elastictranscoder.pool.PipelinePoolDescriptor;
+import org.nuxeo.aws.elastictranscoder.pool.PipelinePoolService;
+import org.nuxeo.aws.elastictranscoder.pool.PooledPipeline;
+import org.nuxeo.aws.elastictranscoder.tracing.TranscodingSpan;
+import org.nuxeo.aws.elastictranscoder.tracing.TranscodingTrace;
+import org.nuxeo.common.utils.FileUtils;
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.Blobs;
+import org.nuxeo.ecm.core.api.CoreSession;
+import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.ecm.core.api.DocumentRef;
+import org.nuxeo.ecm.core.api.blobholder.BlobHolder;
+import org.nuxeo.ecm.core.api.blobholder.SimpleBlobHolder;
+import org.nuxeo.ecm.core.api.impl.blob.FileBlob;
+import org.nuxeo.ecm.core.blob.ManagedBlob;
+import org.nuxeo.ecm.core.convert.extension.Converter;
+import org.nuxeo.ecm.core.convert.service.ConversionServiceImpl;
+import org.nuxeo.ecm.core.work.api.WorkManager;
+import org.nuxeo.ecm.platform.test.PlatformFeature;
+import org.nuxeo.runtime.test.runner.Deploy;
+import org.nuxeo.runtime.test.runner.Features;
+import org.nuxeo.runtime.test.runner.FeaturesRunner;
+import org.nuxeo.runtime.test.runner.LocalDeploy;
+import org.nuxeo.runtime.transaction.TransactionHelper;
+
+import com.amazonaws.services.elastictranscoder.model.CreateJobOutput;
+import com.amazonaws.services.elastictranscoder.model.CreateJobRequest;
+import com.amazonaws.services.elastictranscoder.model.JobInput;
+import com.amazonaws.services.elastictranscoder.model.ListJobsByStatusRequest;
+import com.amazonaws.services.elastictranscoder.model.ListJobsByStatusResult;
+import com.amazonaws.services.elastictranscoder.model.ReadJobRequest;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.codahale.metrics.MetricRegistry;
+import com.google.inject.Inject;
+
+/*
+ * Same flow as AWSElasticTranscoderTest, but with the in-memory backend: No
+ * AWS account needed, the outputs are copies of the input.
+ */
+@RunWith(FeaturesRunner.class)
+@Features({ PlatformFeature.class, LocalBackendFeature.class })
+@Deploy({ "nuxeo-aws-elastictranscoder", "org.nuxeo.ecm.platform.video.core",
+        "org.nuxeo.ecm.platform.video.convert",
+        "org.nuxeo.ecm.platform.picture.core",
+        "org.nuxeo.ecm.platform.picture.convert",
+        "org.nuxeo.ecm.platform.picture.api",
+        "org.nuxeo.ecm.platform.commandline.executor" })
+@LocalDeploy({
+        "nuxeo-aws-elastictranscoder-test:video-and-converter-test-contrib.xml",
+        "nuxeo-aws-elastictranscoder-test:disabled-listeners-contrib.xml",
+        "nuxeo-aws-elastictranscoder-test:pipeline-pool-test-contrib.xml" })
+public class AWSElasticTranscoderLocalTest {
+
+    protected static final String VIDEO_MP4 = "files/a.mp4";
+
+    // Converter of video-and-converter-test-contrib.xml (its buckets,
+    // pipeline and queue are the ones of LocalBackendFeature)
+    protected static final String CONVERTER_ET_WEB = "awsET_presetWeb";
+
+    protected static final String VIDEO_CONVERT_WEB = "Elastic Transcoder: Web";
+
+    @Inject
+    CoreSession coreSession;
+
+    @Inject
+    WorkManager workManager;
+
+    @Inject
+    AWSClientRegistry clientRegistry;
+
+    @Inject
+    NotificationDispatcher notificationDispatcher;
+
+    @Inject
+    PipelinePoolService pipelinePoolService;
+
+    @Inject
+    TranscodingJobRegistry jobRegistry;
+
+    /*
+     * A blob stored by a binary manager
+     */
+    protected static class StoredBlob extends FileBlob implements ManagedBlob {
+
+        private static final long serialVersionUID = 1L;
+
+        protected final String providerId;
+
+        protected final String key;
+
+        protected StoredBlob(File inFile, String inProviderId, String inKey) {
+            super(inFile);
+            providerId = inProviderId;
+            key = inKey;
+        }
+
+        @Override
+        public String getProviderId() {
+            return providerId;
+        }
+
+        @Override
+        public String getKey() {
+            return key;
+        }
+    }
+
+    protected LocalS3 s3;
+
+    protected File videoFile;
+
+    @Before
+    public void setup() {
+
+        assertTrue(clientRegistry.getBackend() instanceof LocalAWSClientBackend);
+        s3 = ((LocalAWSClientBackend) clientRegistry.getBackend()).getS3();
+        videoFile = FileUtils.getResourceFileFromContext(VIDEO_MP4);
+    }
+
+    @Test
+    public void testTranscode() throws Exception {
+
+        MetricRegistry metrics = TranscodingMetrics.get().getRegistry();
+        long succeededBefore = metrics.counter(
+                TranscodingMetrics.name("succeeded")).getCount();
+        long downloadsBefore = metrics.timer(
+                TranscodingMetrics.name("download")).getCount();
+
+        AWSElasticTranscoder transcoder = new AWSElasticTranscoder(
+                new FileBlob(videoFile), "local-preset",
+                LocalBackendFeature.INPUT_BUCKET,
+                LocalBackendFeature.OUTPUT_BUCKET,
+                LocalBackendFeature.PIPELINE_ID,
+                LocalBackendFeature.SQS_QUEUE_URL, "-local.mp4");
+        transcoder.transcode();
+
+        Blob result = transcoder.getTranscodedBlob();
+        assertNotNull(result);
+        assertTrue(result.getFilename().endsWith("-local.mp4"));
+        assertArrayEquals(Files.readAllBytes(videoFile.toPath()),
+                result.getByteArray());
+
+        // Cleanup done, nobody waiting anymore
+        assertEquals(0, s3.getObjectsCount(LocalBackendFeature.INPUT_BUCKET));
+        assertEquals(0, s3.getObjectsCount(LocalBackendFeature.OUTPUT_BUCKET));
+        assertEquals(0, notificationDispatcher.getPendingJobsCount());
+
+        // Other tests may still run conversions in the background
+        assertTrue(metrics.counter(TranscodingMetrics.name("succeeded")).getCount() > succeededBefore);
+        assertTrue(metrics.timer(TranscodingMetrics.name("download")).getCount() > downloadsBefore);
+        assertTrue(metrics.getGauges().containsKey(
+                TranscodingMetrics.name("jobs.pending")));
+
+        // One span per step, the job ending when its notification was sent
+        TranscodingTrace trace = transcoder.getTrace();
+        assertTrue(trace.isEnded());
+        assertNull(trace.getRoot().getTag("error"));
+        for (String name : new String[] { "admission", "upload", "createjob",
+                "job", "notification", "download", "cleanup" }) {
+            assertNotNull(name, trace.getSpan(name));
+            assertTrue(name, trace.getSpan(name).isEnded());
+        }
+        TranscodingSpan job = trace.getSpan("job");
+        assertEquals(LocalBackendFeature.PIPELINE_ID, job.getTag("pipelineId"));
+        assertEquals("notification", job.getTag("detectedBy"));
+        assertEquals(videoFile.length(),
+                trace.getSpan("download").getTag("bytes"));
+        assertEquals("local-preset",
+                trace.getSpan("download").getTag("presetId"));
+    }
+
+    @Test
+    public void testTranscodeFromBinaryStore() throws Exception {
+
+        String bucket = "local-binary-store";
+        s3.putObject(new PutObjectRequest(bucket, "store/the-digest",
+                videoFile));
+        try {
+            // Stored by the provider using the bucket: copied on S3 side
+            AWSElasticTranscoder transcoder = new AWSElasticTranscoder(
+                    new StoredBlob(videoFile, "default", "the-digest"),
+                    "local-preset", LocalBackendFeature.INPUT_BUCKET,
+                    LocalBackendFeature.OUTPUT_BUCKET,
+                    LocalBackendFeature.PIPELINE_ID,
+                    LocalBackendFeature.SQS_QUEUE_URL, "-stored.mp4");
+            transcoder.setBinaryStore(bucket, "store/", "default");
+            transcoder.transcode();
+            assertEquals(Boolean.TRUE, transcoder.getTrace().getSpan(
+                    "upload").getTag("copiedOnS3"));
+
+            // Same digest, but stored by another provider (maybe in another
+            // bucket): sent from the server
+            transcoder = new AWSElasticTranscoder(new StoredBlob(videoFile,
+                    "other", "other:the-digest"), "local-preset",
+                    LocalBackendFeature.INPUT_BUCKET,
+                    LocalBackendFeature.OUTPUT_BUCKET,
+                    LocalBackendFeature.PIPELINE_ID,
+                    LocalBackendFeature.SQS_QUEUE_URL, "-stored.mp4");
+            transcoder.setBinaryStore(bucket, "store/", "default");
+            transcoder.transcode();
+            assertEquals(Boolean.FALSE, transcoder.getTrace().getSpan(
+                    "upload").getTag("copiedOnS3"));
+            assertArrayEquals(Files.readAllBytes(videoFile.toPath()),
+                    transcoder.getTranscodedBlob().getByteArray());
+        } finally {
+            s3.deleteObject(bucket, "store/the-digest");
+        }
+    }
+
+    @Test
+    public void testTranscodeWithPipelinePool() throws Exception {
+
+        PipelinePool pool = pipelinePoolService.getPool("local-pool");
+        assertNotNull(pool);
+        assertEquals(2, pool.getPipelines().size());
+
+        // Started at the same time: one job on each pipeline
+        AWSElasticTranscoder[] transcoders = new AWSElasticTranscoder[2];
+        CompletableFuture<?>[] futures = new CompletableFuture<?>[2];
+        for (int i = 0; i < 2; i++) {
+            transcoders[i] = new AWSElasticTranscoder(new FileBlob(videoFile),
+                    "local-preset", LocalBackendFeature.INPUT_BUCKET,
+                    LocalBackendFeature.OUTPUT_BUCKET,
+                    LocalBackendFeature.PIPELINE_ID,
+                    LocalBackendFeature.SQS_QUEUE_URL, "-pool" + i + ".mp4");
+            transcoders[i].setPipelinePool(pool);
+            futures[i] = transcoders[i].transcodeAsync();
+        }
+        CompletableFuture.allOf(futures).get(30, TimeUnit.SECONDS);
+
+        Object first = transcoders[0].getTrace().getRoot().getTag(
+                "pipelineId");
+        Object second = transcoders[1].getTrace().getRoot().getTag(
+                "pipelineId");
+        assertNotEquals(first, second);
+        for (PooledPipeline pipeline : pool.getPipelines()) {
+            assertEquals(0, pipeline.getOutstandingJobs());
+            assertTrue(pipeline.isHealthy());
+        }
+        assertEquals(videoFile.length(),
+                transcoders[1].getTranscodedBlob().getLength());
+    }
+
+    @Test
+    public void testRejectedStartRecordsNoOutcome() throws Exception {
+
+        PipelinePoolDescriptor descriptor = new PipelinePoolDescriptor();
+        descriptor.setName("rejected-pool");
+        descriptor.setMaxFailures(2);
+        descriptor.setDrainSeconds(60);
+        descriptor.setPipelines(new ArrayList<PipelineDescriptor>(
+                Arrays.asList(new PipelineDescriptor(
+                        LocalBackendFeature.PIPELINE_ID, 1,
+                        LocalBackendFeature.INPUT_BUCKET,
+                        LocalBackendFeature.OUTPUT_BUCKET,
+                        LocalBackendFeature.SQS_QUEUE_URL))));
+        PipelinePool pool = new PipelinePool(descriptor);
+        PooledPipeline pipeline = pool.getPipelines().get(0);
+        pool.recordFailure(pipeline);
+
+        AWSElasticTranscoder transcoder = new AWSElasticTranscoder(
+                new FileBlob(videoFile), "local-preset",
+                LocalBackendFeature.INPUT_BUCKET,
+                LocalBackendFeature.OUTPUT_BUCKET,
+                LocalBackendFeature.PIPELINE_ID,
+                LocalBackendFeature.SQS_QUEUE_URL, "-rejected.mp4");
+        transcoder.setPipelinePool(pool);
+        CompletableFuture<Blob> future = transcoder.transcodeAsync(r -> {
+            throw new RejectedExecutionException("Test executor is full");
+        });
+        try {
+            future.get(5, TimeUnit.SECONDS);
+            fail("The executor rejected the transcoding");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof RejectedExecutionException);
+        }
+        assertEquals(0, pipeline.getOutstandingJobs());
+
+        // Not recorded as a success: the next failure is the second in a row
+        assertTrue(pipeline.isHealthy());
+        pool.recordFailure(pipeline);
+        assertFalse(pipeline.isHealthy());
+    }
+
+    @Test
+    public void testTranscodeWithoutSqs() throws Exception {
+
+        long polledBefore = notificationDispatcher.getPolledJobsCount();
+
+        // No queue: the end of the job is detected by polling
+        AWSElasticTranscoder transcoder = new AWSElasticTranscoder(
+                new FileBlob(videoFile), "local-preset",
+                LocalBackendFeature.INPUT_BUCKET,
+                LocalBackendFeature.OUTPUT_BUCKET,
+                LocalBackendFeature.PIPELINE_ID, null, "-polled.mp4");
+        transcoder.transcode();
+
+        Blob result = transcoder.getTranscodedBlob();
+        assertNotNull(result);
+        assertEquals(videoFile.length(), result.getLength());
+        assertEquals(polledBefore + 1,
+                notificationDispatcher.getPolledJobsCount());
+        assertEquals(0, notificationDispatcher.getPendingJobsCount());
+        assertEquals("polling",
+                transcoder.getTrace().getSpan("job").getTag("detectedBy"));
+        assertNull(transcoder.getTrace().getSpan("notification"));
+    }
+
+    @Test
+    public void testReconcileMissedNotification() throws Exception {
+
+        // A pipeline sending no notification: Jobs waiting for SQS never end,
+        // unless they are reconciled
+        LocalElasticTranscoder elasticTranscoder = ((LocalAWSClientBackend) clientRegistry.getBackend()).getElasticTranscoder();
+        elasticTranscoder.addPipeline("silent-pipeline",
+                LocalBackendFeature.INPUT_BUCKET,
+                LocalBackendFeature.OUTPUT_BUCKET, null);
+        s3.putObject(new PutObjectRequest(LocalBackendFeature.INPUT_BUCKET,
+                "silent-input", videoFile));
+        String jobId = elasticTranscoder.createJob(
+                new CreateJobRequest().withPipelineId("silent-pipeline").withInput(
+                        new JobInput().withKey("silent-input")).withOutputs(
+                        new CreateJobOutput().withKey("silent-output").withPresetId(
+                                "local-preset"))).getJob().getId();
+
+        CompletableFuture<JobState> end = new CompletableFuture<JobState>();
+        notificationDispatcher.register(LocalBackendFeature.SQS_QUEUE_URL,
+                "silent-pipeline", jobId, notification -> {
+                    if (notification.getState().isTerminalState()) {
+                        end.complete(notification.getState());
+                    }
+                });
+        try {
+            // Wait for the job to be over on the "AWS" side
+            long timeout = System.currentTimeMillis() + 10000;
+            while (!"Complete".equals(elasticTranscoder.readJob(
+                    new ReadJobRequest().withId(jobId)).getJob().getStatus())) {
+                assertTrue(System.currentTimeMillis() < timeout);
+                Thread.sleep(50);
+            }
+            assertFalse(end.isDone());
+
+            long reconciledBefore = notificationDispatcher.getReconciledJobsCount();
+            assertEquals(1, notificationDispatcher.reconcile());
+            assertEquals(JobState.COMPLETED, end.get(1, TimeUnit.SECONDS));
+            assertEquals(reconciledBefore + 1,
+                    notificationDispatcher.getReconciledJobsCount());
+        } finally {
+            notificationDispatcher.unregister(
+                    LocalBackendFeature.SQS_QUEUE_URL, jobId);
+            s3.deleteObject(LocalBackendFeature.OUTPUT_BUCKET, "silent-output");
+        }
+
+        // A job resumed after a restart, submitted (and over) long before it
+        // is registered again. A more recent job of the account, older than
+        // the registration, must not stop the listing before reaching it
+        String resumedJobId = createSilentJob(elasticTranscoder,
+                "resumed-output");
+        String otherJobId = createSilentJob(elasticTranscoder, "other-output");
+        long now = System.currentTimeMillis();
+        long submitted = now - TimeUnit.HOURS.toMillis(1);
+        elasticTranscoder.setSubmitTime(resumedJobId, submitted);
+        elasticTranscoder.setSubmitTime(otherJobId,
+                now - TimeUnit.MINUTES.toMillis(30));
+        // One page for all the jobs but the resumed one, the oldest
+        int completed = 0;
+        String pageToken = null;
+        do {
+            ListJobsByStatusResult result = elasticTranscoder.listJobsByStatus(new ListJobsByStatusRequest().withStatus(
+                    "Complete").withPageToken(pageToken));
+            completed += result.getJobs().size();
+            pageToken = result.getNextPageToken();
+        } while (pageToken != null);
+        elasticTranscoder.setPageSize(completed - 1);
+
+        TranscodingJob job = new TranscodingJob();
+        job.setAwsJobId(resumedJobId);
+        job.setPipelineId("silent-pipeline");
+        job.setSqsQueueUrl(LocalBackendFeature.SQS_QUEUE_URL);
+        job.setInputBucket(LocalBackendFeature.INPUT_BUCKET);
+        job.setInputKey("silent-input");
+        job.setOutputBucket(LocalBackendFeature.OUTPUT_BUCKET);
+        job.setOutputKeys(Arrays.asList("resumed-output"));
+        job.setOutputFileSuffixes(Arrays.asList(".mp4"));
+        job.setDeleteOutput(true);
+        job.setSubmitted(submitted);
+        try {
+            CompletableFuture<Blob> resumed = AWSElasticTranscoder.resume(job);
+            assertFalse(resumed.isDone());
+
+            assertEquals(1, notificationDispatcher.reconcile());
+            resumed.get(5, TimeUnit.SECONDS);
+        } finally {
+            elasticTranscoder.setPageSize(0);
+            notificationDispatcher.unregister(
+                    LocalBackendFeature.SQS_QUEUE_URL, resumedJobId);
+            s3.deleteObject(LocalBackendFeature.INPUT_BUCKET, "silent-input");
+            s3.deleteObject(LocalBackendFeature.OUTPUT_BUCKET, "resumed-output");
+            s3.deleteObject(LocalBackendFeature.OUTPUT_BUCKET, "other-output");
+        }
+    }
+
+    protected String createSilentJob(LocalElasticTranscoder inElasticTranscoder,
+            String inOutputKey) throws InterruptedException {
+
+        String jobId = inElasticTranscoder.createJob(
+                new CreateJobRequest().withPipelineId("silent-pipeline").withInput(
+                        new JobInput().withKey("silent-input")).withOutputs(
+                        new CreateJobOutput().withKey(inOutputKey).withPresetId(
+                                "local-preset"))).getJob().getId();
+        long timeout = System.currentTimeMillis() + 10000;
+        while (!"Complete".equals(inElasticTranscoder.readJob(
+                new ReadJobRequest().withId(jobId)).getJob().getStatus())) {
+            assertTrue(System.currentTimeMillis() < timeout);
+            Thread.sleep(50);
+        }
+        return jobId;
+    }
+
+    @Test
+    public void testTranscodeSeveralPresetsInParallel() throws Exception {
+
+        List<String> presets = Arrays.asList("local-preset-1", "local-preset-2");
+        List<String> suffixes = Arrays.asList("-1.mp4", "-2.mp4");
+
+        AWSElasticTranscoder first = new AWSElasticTranscoder(new FileBlob(
+                videoFile), presets, LocalBackendFeature.INPUT_BUCKET,
+                LocalBackendFeature.OUTPUT_BUCKET,
+                LocalBackendFeature.PIPELINE_ID,
+                LocalBackendFeature.SQS_QUEUE_URL, suffixes);
+        AWSElasticTranscoder second = new AWSElasticTranscoder(new FileBlob(
+                videoFile), presets, LocalBackendFeature.INPUT_BUCKET,
+                LocalBackendFeature.OUTPUT_BUCKET,
+                LocalBackendFeature.PIPELINE_ID,
+                LocalBackendFeature.SQS_QUEUE_URL, suffixes);
+
+        first.transcodeAsync().thenCombine(second.transcodeAsync(),
+                (a, b) -> null).join();
+
+        for (AWSElasticTranscoder transcoder : Arrays.asList(first, second)) {
+            List<Blob> results = transcoder.getTranscodedBlobs();
+            assertEquals(2, results.size());
+            assertTrue(results.get(0).getFilename().endsWith("-1.mp4"));
+            assertTrue(results.get(1).getFilename().endsWith("-2.mp4"));
+            assertEquals(videoFile.length(), results.get(1).getLength());
+        }
+    }
+
+    @Test
+    public void testCoalesceIdenticalTranscodings() throws Exception {
+
+        InFlightTranscodings inFlight = new InFlightTranscodings();
+        AtomicInteger started = new AtomicInteger();
+        Supplier<CompletableFuture<List<Blob>>> start = () -> {
+            started.incrementAndGet();
+            try {
+                AWSElasticTranscoder transcoder = new AWSElasticTranscoder(
+                        new FileBlob(videoFile), "local-preset",
+                        LocalBackendFeature.INPUT_BUCKET,
+                        LocalBackendFeature.OUTPUT_BUCKET,
+                        LocalBackendFeature.PIPELINE_ID,
+                        LocalBackendFeature.SQS_QUEUE_URL, "-same.mp4");
+                return transcoder.transcodeAsync().thenApply(
+                        blob -> transcoder.getTranscodedBlobs());
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        };
+
+        String key = InFlightTranscodings.getKey("the-digest",
+                Arrays.asList("local-preset"), Arrays.asList("-same.mp4"));
+        CompletableFuture<List<Blob>> first = inFlight.transcode(key, start);
+        CompletableFuture<List<Blob>> second = inFlight.transcode(key, start);
+
+        assertEquals(1, inFlight.getRunningCount());
+        List<Blob> firstResults = first.get(10, TimeUnit.SECONDS);
+        List<Blob> secondResults = second.get(10, TimeUnit.SECONDS);
+
+        // Only one job, the second caller gets a copy of the result
+        assertEquals(1, started.get());
+        assertEquals(1, inFlight.getCoalescedCount());
+        assertEquals(0, inFlight.getRunningCount());
+        assertNotSame(firstResults.get(0), secondResults.get(0));
+        assertNotEquals(firstResults.get(0).getFile(),
+                secondResults.get(0).getFile());
+        assertArrayEquals(firstResults.get(0).getByteArray(),
+                secondResults.get(0).getByteArray());
+
+        // Done: a new call starts a new transcoding
+        inFlight.transcode(key, start).get(10, TimeUnit.SECONDS);
+        assertEquals(2, started.get());
+    }
+
+    @Test
+    public void testConverterCoalescesInTheSameLane() throws Exception {
+
+        // A video of its own, so nothing is cached for it
+        File video = File.createTempFile("NxAWSET-coalesced-", ".mp4");
+        video.deleteOnExit();
+        Files.write(video.toPath(),
+                ("video " + System.nanoTime()).getBytes("UTF-8"));
+        Blob blob = new FileBlob(video);
+        blob.setMimeType("video/mp4");
+        Converter converter = ConversionServiceImpl.getConverter(CONVERTER_ET_WEB);
+        String key = InFlightTranscodings.getKey(
+                InFlightTranscodings.getDigest(blob),
+                Arrays.asList("1351620000001-100070"),
+                Arrays.asList("-web.mp4"), TranscodingPriority.AUTOMATIC);
+        InFlightTranscodings inFlight = InFlightTranscodings.get();
+
+        // The same conversion is running in the lane of the converter: The
+        // converter waits for it and gets a copy of its result
+        CompletableFuture<List<Blob>> running = new CompletableFuture<List<Blob>>();
+        inFlight.transcode(key, () -> running);
+        long coalesced = inFlight.getCoalescedCount();
+        CompletableFuture<BlobHolder> sameLane = CompletableFuture.supplyAsync(() -> converter.convert(
+                new SimpleBlobHolder(blob), null));
+        long timeout = System.currentTimeMillis() + 10000;
+        while (inFlight.getCoalescedCount() == coalesced) {
+            assertTrue(System.currentTimeMillis() < timeout);
+            Thread.sleep(10);
+        }
+        running.complete(Arrays.asList(Blobs.createBlob("running result")));
+        Blob result = sameLane.get(10, TimeUnit.SECONDS).getBlob();
+        assertEquals("running result", result.getString());
+        assertTrue(result.getFilename().endsWith("-web.mp4"));
+
+        // Running again, but the conversion is in another lane: Transcoded
+        // on its own
+        CompletableFuture<List<Blob>> runningAgain = new CompletableFuture<List<Blob>>();
+        inFlight.transcode(key, () -> runningAgain);
+        coalesced = inFlight.getCoalescedCount();
+        try {
+            Map<String, Serializable> parameters = new HashMap<String, Serializable>();
+            parameters.put("priority", "interactive");
+            result = CompletableFuture.supplyAsync(
+                    () -> converter.convert(new SimpleBlobHolder(blob),
+                            parameters)).get(10, TimeUnit.SECONDS).getBlob();
+            assertEquals(coalesced, inFlight.getCoalescedCount());
+            assertArrayEquals(Files.readAllBytes(video.toPath()),
+                    result.getByteArray());
+        } finally {
+            runningAgain.complete(Collections.<Blob> emptyList());
+        }
+    }
+
+    @Test
+    public void testTranscodingWork() throws Exception {
+
+        Blob video = new FileBlob(videoFile);
+        video.setMimeType("video/mp4");
+        DocumentModel doc = coreSession.createDocumentModel("/", "video-work",
+                "Video");
+        doc.setPropertyValue("file:content", (Serializable) video);
+        doc = coreSession.createDocument(doc);
+        coreSession.save();
+        TransactionHelper.commitOrRollbackTransaction();
+        TransactionHelper.startTransaction();
+
+        workManager.schedule(new TranscodingWork(
+                coreSession.getRepositoryName(), doc.getId(), "file:content",
+                CONVERTER_ET_WEB, VIDEO_CONVERT_WEB), false);
+
+        // The work only submits the job
+        assertTrue(workManager.awaitCompletion(10, TimeUnit.SECONDS));
+
+        // The transcoded video is saved when the job is done
+        long timeout = System.currentTimeMillis() + 10000;
+        while (!hasTranscodedVideo(doc.getRef(), VIDEO_CONVERT_WEB)) {
+            assertTrue(System.currentTimeMillis() < timeout);
+            Thread.sleep(100);
+        }
+    }
+
+    @Test
+    public void testTranscodingWorkCoalesces() throws Exception {
+
+        // A video of its own, so nothing is cached for it
+        File video = File.createTempFile("NxAWSET-work-coalesced-", ".mp4");
+        video.deleteOnExit();
+        Files.write(video.toPath(),
+                ("video " + System.nanoTime()).getBytes("UTF-8"));
+        Blob blob = new FileBlob(video);
+        blob.setMimeType("video/mp4");
+        DocumentModel doc = coreSession.createDocumentModel("/",
+                "video-work-coalesced", "Video");
+        doc.setPropertyValue("file:content", (Serializable) blob);
+        doc = coreSession.createDocument(doc);
+        coreSession.save();
+        TransactionHelper.commitOrRollbackTransaction();
+        TransactionHelper.startTransaction();
+
+        String key = InFlightTranscodings.getKey(
+                InFlightTranscodings.getDigest((Blob) doc.getPropertyValue("file:content")),
+                Arrays.asList("1351620000001-100070"),
+                Arrays.asList("-web.mp4"), TranscodingPriority.AUTOMATIC);
+        InFlightTranscodings inFlight = InFlightTranscodings.get();
+
+        // The same transcoding is running: The work does not create another
+        // job, it waits for this one
+        CompletableFuture<List<Blob>> running = new CompletableFuture<List<Blob>>();
+        inFlight.transcode(key, () -> running);
+        long coalesced = inFlight.getCoalescedCount();
+        workManager.schedule(new TranscodingWork(
+                coreSession.getRepositoryName(), doc.getId(), "file:content",
+                CONVERTER_ET_WEB, VIDEO_CONVERT_WEB), false);
+        assertTrue(workManager.awaitCompletion(10, TimeUnit.SECONDS));
+        assertEquals(coalesced + 1, inFlight.getCoalescedCount());
+        assertFalse(hasTranscodedVideo(doc.getRef(), VIDEO_CONVERT_WEB));
+
+        // Its document gets a copy of the result
+        running.complete(Arrays.asList((Blob) new FileBlob(videoFile)));
+        long timeout = System.currentTimeMillis() + 10000;
+        while (!hasTranscodedVideo(doc.getRef(), VIDEO_CONVERT_WEB)) {
+            assertTrue(System.currentTimeMillis() < timeout);
+            Thread.sleep(100);
+        }
+    }
+
+    @Test
+    public void testResumeSavedJob() throws Exception {
+
+        Blob video = new FileBlob(videoFile);
+        video.setMimeType("video/mp4");
+        DocumentModel doc = coreSession.createDocumentModel("/",
+                "video-resumed", "Video");
+        doc.setPropertyValue("file:content", (Serializable) video);
+        doc = coreSession.createDocument(doc);
+        coreSession.save();
+        TransactionHelper.commitOrRollbackTransaction();
+        TransactionHelper.startTransaction();
+
+        // A job submitted before a restart, over by now
+        LocalElasticTranscoder elasticTranscoder = ((LocalAWSClientBackend) clientRegistry.getBackend()).getElasticTranscoder();
+        s3.putObject(new PutObjectRequest(LocalBackendFeature.INPUT_BUCKET,
+                "resumed-input", videoFile));
+        String jobId = elasticTranscoder.createJob(
+                new CreateJobRequest().withPipelineId(
+                        LocalBackendFeature.PIPELINE_ID).withInput(
+                        new JobInput().withKey("resumed-input")).withOutputs(
+                        new CreateJobOutput().withKey("resumed-web.mp4").withPresetId(
+                                "local-preset"))).getJob().getId();
+        TranscodingJob job = new TranscodingJob();
+        job.setAwsJobId(jobId);
+        job.setPipelineId(LocalBackendFeature.PIPELINE_ID);
+        job.setSqsQueueUrl(LocalBackendFeature.SQS_QUEUE_URL);
+        job.setInputBucket(LocalBackendFeature.INPUT_BUCKET);
+        job.setInputKey("resumed-input");
+        job.setDeleteInput(true);
+        job.setOutputBucket(LocalBackendFeature.OUTPUT_BUCKET);
+        job.setOutputKeys(Arrays.asList("resumed-web.mp4"));
+        job.setOutputFileSuffixes(Arrays.asList("-web.mp4"));
+        job.setDeleteOutput(true);
+        job.setRepositoryName(coreSession.getRepositoryName());
+        job.setDocumentId(doc.getId());
+        job.setConversionName(VIDEO_CONVERT_WEB);
+        job.setSubmitted(System.currentTimeMillis());
+        jobRegistry.save(job);
+        assertTrue(isRegistered(jobId));
+        long timeout = System.currentTimeMillis() + 10000;
+        while (!"Complete".equals(elasticTranscoder.readJob(
+                new ReadJobRequest().withId(jobId)).getJob().getStatus())) {
+            assertTrue(System.currentTimeMillis() < timeout);
+            Thread.sleep(50);
+        }
+
+        // Restart: a new instance of the registry reads the saved jobs
+        MetricRegistry metrics = TranscodingMetrics.get().getRegistry();
+        long downloadsBefore = metrics.timer(
+                TranscodingMetrics.name("download")).getCount();
+        TranscodingJobRegistryComponent restarted = new TranscodingJobRegistryComponent();
+        restarted.activate(null);
+        restarted.applicationStarted(null);
+        assertEquals(1, restarted.getRecoveredJobsCount());
+
+        // The SQS notification and the reconciliation both report the end
+        // of the job
+        notificationDispatcher.reconcile();
+        timeout = System.currentTimeMillis() + 10000;
+        while (!hasTranscodedVideo(doc.getRef(), VIDEO_CONVERT_WEB)
+                || isRegistered(jobId)) {
+            assertTrue(System.currentTimeMillis() < timeout);
+            Thread.sleep(100);
+        }
+        notificationDispatcher.reconcile();
+        Thread.sleep(1000);
+
+        // Completed once: one download, and the S3 files are cleaned up
+        assertEquals(downloadsBefore + 1,
+                metrics.timer(TranscodingMetrics.name("download")).getCount());
+        assertNull(s3.getContent(LocalBackendFeature.INPUT_BUCKET,
+                "resumed-input"));
+        assertNull(s3.getContent(LocalBackendFeature.OUTPUT_BUCKET,
+                "resumed-web.mp4"));
+    }
+
+    protected boolean isRegistered(String inJobId) {
+
+        for (TranscodingJob job : jobRegistry.getJobs()) {
+            if (inJobId.equals(job.getAwsJobId())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @SuppressWarnings("unchecked")
+    protected boolean hasTranscodedVideo(DocumentRef inRef, String inName) {
+
+        // See the changes committed by other transactions
+        TransactionHelper.commitOrRollbackTransaction();
+        TransactionHelper.startTransaction();
+
+        List<Map<String, Serializable>> videos = (List<Map<String, Serializable>>) coreSession.getDocument(
+                inRef).getPropertyValue("vid:transcodedVideos");
+        if (videos != null) {
+            for (Map<String, Serializable> video : videos) {
+                if (inName.equals(video.get("name"))) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+}
@@ -0,0 +1,211 @@
+/*
+ * (C) Copyright 2016 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.aws.elastictranscoder.test;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.nuxeo.aws.elastictranscoder.AWSS3Handler;
+import org.nuxeo.aws.elastictranscoder.local.LocalClientProxy;
+import org.nuxeo.aws.elastictranscoder.local.LocalS3;
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.runtime.test.runner.Features;
+import org.nuxeo.runtime.test.runner.FeaturesRunner;
+import org.nuxeo.runtime.test.runner.RuntimeFeature;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+import com.amazonaws.services.s3.model.UploadPartResult;
+
+/*
+ * The multipart transfers, on the in-memory S3, with thresholds low enough to
+ * use them with small files
+ */
+@RunWith(FeaturesRunner.class)
+@Features(RuntimeFeature.class)
+public class AWSS3HandlerLocalTest {
+
+    protected static final String BUCKET = "s3-handler-test";
+
+    protected static final long MB = 1024L * 1024L;
+
+    /*
+     * Counts the uploaded parts and the ranges downloaded
+     */
+    public static class CountingS3 extends LocalS3 {
+
+        protected final AtomicInteger uploadedParts = new AtomicInteger();
+
+        protected final AtomicLong uploadedBytes = new AtomicLong();
+
+        protected volatile long uploadPartDelayMs = 0;
+
+        protected final AtomicInteger downloadedRanges = new AtomicInteger();
+
+        @Override
+        public S3Object getObject(GetObjectRequest inRequest) {
+
+            if (inRequest.getRange() != null) {
+                downloadedRanges.incrementAndGet();
+            }
+            return super.getObject(inRequest);
+        }
+
+        @Override
+        public UploadPartResult uploadPart(UploadPartRequest inRequest) {
+
+            uploadedParts.incrementAndGet();
+            if (uploadPartDelayMs > 0) {
+                try {
+                    Thread.sleep(uploadPartDelayMs);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            UploadPartResult result = super.uploadPart(inRequest);
+            uploadedBytes.addAndGet(inRequest.getPartSize());
+            return result;
+        }
+    }
+
+    protected CountingS3 s3;
+
+    protected AWSS3Handler handler;
+
+    protected byte[] content;
+
+    protected File file;
+
+    @Before
+    public void setup() throws Exception {
+
+        s3 = new CountingS3();
+        handler = new AWSS3Handler(LocalClientProxy.create(AmazonS3.class, s3),
+                BUCKET);
+        // 5MB is the minimum part size: 3 parts
+        handler.setMultipartPartSize(5 * MB);
+        handler.setMultipartParallelism(2);
+
+        content = new byte[(int) (12 * MB)];
+        new Random(42).nextBytes(content);
+        file = File.createTempFile("s3-handler-test-", ".bin");
+        Files.write(file.toPath(), content);
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    @Test
+    public void testSendFileMultipart() throws Exception {
+
+        handler.setMultipartThreshold(MB);
+        handler.sendFile("multipart.bin", file);
+
+        assertEquals(3, s3.uploadedParts.get());
+        assertArrayEquals(content, s3.getContent(BUCKET, "multipart.bin"));
+    }
+
+    @Test
+    public void testSendFileBelowThreshold() throws Exception {
+
+        handler.setMultipartThreshold(100 * MB);
+        handler.sendFile("single.bin", file);
+
+        assertEquals(0, s3.uploadedParts.get());
+        assertArrayEquals(content, s3.getContent(BUCKET, "single.bin"));
+    }
+
+    @Test
+    public void testSendStreamMultipart() throws Exception {
+
+        // Slow parts: reading the stream waits for the buffers
+        s3.uploadPartDelayMs = 300;
+        AtomicLong read = new AtomicLong();
+        AtomicLong maxAhead = new AtomicLong();
+        FilterInputStream stream = new FilterInputStream(
+                new ByteArrayInputStream(content)) {
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                int n = super.read(b, off, len);
+                if (n > 0) {
+                    long ahead = read.addAndGet(n) - s3.uploadedBytes.get();
+                    maxAhead.accumulateAndGet(ahead, Math::max);
+                }
+                return n;
+            }
+        };
+
+        handler.sendStream("stream.bin", stream, "application/octet-stream");
+
+        assertEquals(3, s3.uploadedParts.get());
+        assertArrayEquals(content, s3.getContent(BUCKET, "stream.bin"));
+        // Never more than multipartParallelism parts in memory, the one
+        // being read included
+        assertTrue(maxAhead.get() <= 2 * 5 * MB);
+    }
+
+    @Test
+    public void testSendSmallStream() throws Exception {
+
+        byte[] small = new byte[1000];
+        handler.sendStream("small.bin", new ByteArrayInputStream(small), null);
+
+        assertEquals(0, s3.uploadedParts.get());
+        assertArrayEquals(small, s3.getContent(BUCKET, "small.bin"));
+    }
+
+    @Test
+    public void testDownloadByRanges() throws Exception {
+
+        s3.putObject(new PutObjectRequest(BUCKET, "ranges.bin", file));
+        handler.setRangedDownloadThreshold(MB);
+
+        Blob blob = handler.downloadFile("ranges.bin", "ranges.bin");
+        assertEquals(3, s3.downloadedRanges.get());
+        assertArrayEquals(content, blob.getByteArray());
+    }
+
+    @Test
+    public void testPartSizeKeepsPartCountUnderLimit() {
+
+        assertEquals(16 * MB, AWSS3Handler.getPartSize(1024 * MB, 16 * MB));
+
+        // 200GB with 16MB parts would need 12,800 parts
+        long length = 200L * 1024L * MB;
+        long partSize = AWSS3Handler.getPartSize(length, 16 * MB);
+        assertTrue(partSize > 16 * MB);
+        assertTrue((length + partSize - 1) / partSize <= 10000);
+    }
+
+}
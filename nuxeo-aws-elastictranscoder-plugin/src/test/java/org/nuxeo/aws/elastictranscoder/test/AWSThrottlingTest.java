@@ -0,0 +1,112 @@
+/*
+ * (C) Copyright 2016 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.aws.elastictranscoder.test;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+import org.nuxeo.aws.elastictranscoder.AWSThrottling;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+
+public class AWSThrottlingTest {
+
+    protected static AmazonServiceException serviceException(String inCode,
+            int inStatus) {
+
+        AmazonServiceException e = new AmazonServiceException(inCode);
+        e.setErrorCode(inCode);
+        e.setStatusCode(inStatus);
+        return e;
+    }
+
+    @Test
+    public void testIsThrottling() {
+
+        assertTrue(AWSThrottling.isThrottling(serviceException(
+                "ThrottlingException", 400)));
+        assertTrue(AWSThrottling.isThrottling(serviceException("SlowDown", 503)));
+        assertTrue(AWSThrottling.isThrottling(serviceException("Whatever", 429)));
+
+        assertFalse(AWSThrottling.isThrottling(serviceException(
+                "ValidationException", 400)));
+        assertFalse(AWSThrottling.isThrottling(new AmazonClientException(
+                "Connection reset")));
+    }
+
+    @Test
+    public void testRetriesWhileThrottled() {
+
+        AtomicInteger calls = new AtomicInteger();
+        String result = AWSThrottling.callWithBackoff("Test", () -> {
+            if (calls.incrementAndGet() < 3) {
+                throw serviceException("Throttling", 400);
+            }
+            return "done";
+        }, 5, 1);
+
+        assertEquals("done", result);
+        assertEquals(3, calls.get());
+    }
+
+    @Test
+    public void testGivesUpAfterMaxRetries() {
+
+        AtomicInteger calls = new AtomicInteger();
+        try {
+            AWSThrottling.callWithBackoff("Test", () -> {
+                calls.incrementAndGet();
+                throw serviceException("Throttling", 400);
+            }, 2, 1);
+            fail("The throttling error should be thrown after the retries");
+        } catch (AmazonServiceException e) {
+            assertEquals("Throttling", e.getErrorCode());
+        }
+        assertEquals(3, calls.get());
+    }
+
+    @Test
+    public void testOtherErrorsAreNotRetried() {
+
+        AtomicInteger calls = new AtomicInteger();
+        try {
+            AWSThrottling.callWithBackoff("Test", () -> {
+                calls.incrementAndGet();
+                throw serviceException("ValidationException", 400);
+            }, 5, 1);
+            fail("The error should be thrown");
+        } catch (AmazonServiceException e) {
+            assertEquals("ValidationException", e.getErrorCode());
+        }
+        assertEquals(1, calls.get());
+    }
+
+    @Test
+    public void testBackoffDelay() {
+
+        for (int attempt = 0; attempt < 30; attempt++) {
+            long max = Math.min(100L << Math.min(attempt, 20), 30000);
+            long delay = AWSThrottling.getBackoffDelayMs(attempt, 100);
+            assertTrue(delay >= max / 2);
+            assertTrue(delay <= max);
+        }
+    }
+
+}
@@ -0,0 +1,99 @@
+/*
+ * (C) Copyright 2016 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.aws.elastictranscoder.test;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+import org.nuxeo.aws.elastictranscoder.notification.JobStatusNotification;
+import org.nuxeo.aws.elastictranscoder.notification.JobStatusNotification.JobState;
+import org.nuxeo.aws.elastictranscoder.notification.JobStatusNotificationDecoder;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/*
+ * The streaming decoder must return the same values as the full conversion
+ * (JobStatusNotification.valueOf()) for the fields used by the dispatch.
+ */
+public class JobStatusNotificationDecoderTest {
+
+    protected static final String NOTIFICATION = "{\"state\":\"COMPLETED\",\"version\":\"2012-09-25\","
+            + "\"jobId\":\"1469000000000-abcdef\",\"pipelineId\":\"1469000000000-pipeln\","
+            + "\"input\":{\"key\":\"the-input\",\"frameRate\":\"auto\"},"
+            + "\"outputs\":[{\"id\":\"1\",\"presetId\":\"1351620000001-100020\",\"key\":\"out-1.mp4\",\"status\":\"Complete\",\"duration\":27},"
+            + "{\"id\":\"2\",\"presetId\":\"1351620000001-100070\",\"key\":\"out-2.mp4\",\"status\":\"Complete\"}]}";
+
+    protected JobStatusNotificationDecoder decoder = new JobStatusNotificationDecoder();
+
+    protected String snsEnvelope(String inMessage) throws IOException {
+
+        Map<String, String> envelope = new HashMap<String, String>();
+        envelope.put("Type", "Notification");
+        envelope.put("MessageId", "0c6a8f0e");
+        envelope.put("Message", inMessage);
+        envelope.put("Signature", "AbCdEfGh==");
+        envelope.put("UnsubscribeURL", "https://sns.us-east-1.amazonaws.com/?Action=Unsubscribe");
+        return new ObjectMapper().writeValueAsString(envelope);
+    }
+
+    @Test
+    public void testDecodeEnvelope() throws Exception {
+
+        JobStatusNotification expected = JobStatusNotification.valueOf(NOTIFICATION);
+        JobStatusNotification notification = decoder.decode(snsEnvelope(NOTIFICATION));
+
+        assertEquals(expected.getJobId(), notification.getJobId());
+        assertEquals(JobState.COMPLETED, notification.getState());
+        assertEquals(expected.getErrorCode(), notification.getErrorCode());
+        assertEquals(2, notification.getOutputs().size());
+        assertEquals("out-1.mp4", notification.getOutputs().get(0).getKey());
+        assertEquals("out-2.mp4", notification.getOutputs().get(1).getKey());
+        // Not read
+        assertNull(notification.getPipelineId());
+        assertNull(notification.getInput());
+    }
+
+    @Test
+    public void testDecodeError() throws Exception {
+
+        String message = "{\"state\":\"ERROR\",\"errorCode\":3002,\"jobId\":\"1469000000000-abcdef\",\"outputs\":[]}";
+        JobStatusNotification notification = decoder.decodeMessage(message);
+
+        assertEquals(JobState.ERROR, notification.getState());
+        assertEquals(3002, notification.getErrorCode());
+        assertTrue(notification.getOutputs().isEmpty());
+    }
+
+    @Test
+    public void testInvalidMessages() throws Exception {
+
+        for (String body : new String[] { "[]", "{\"Type\":\"Notification\"}",
+                snsEnvelope("{\"state\":\"UNKNOWN\"}") }) {
+            try {
+                decoder.decode(body);
+                fail("Should not decode " + body);
+            } catch (IOException e) {
+                // Expected
+            }
+        }
+    }
+
+}
@@ -0,0 +1,80 @@
+/*
+ * (C) Copyright 2016 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.aws.elastictranscoder.test;
+
+import java.util.Properties;
+
+import org.nuxeo.aws.elastictranscoder.AWSElasticTranscoderConstants;
+import org.nuxeo.runtime.test.runner.FeaturesRunner;
+import org.nuxeo.runtime.test.runner.SimpleFeature;
+
+/**
+ * Uses the in-memory AWS backend, so the tests run without an AWS account (see
+ * {@link org.nuxeo.aws.elastictranscoder.local.LocalAWSClientBackend})
+ *
+ * @since 8.3
+ */
+public class LocalBackendFeature extends SimpleFeature {
+
+    public static final String INPUT_BUCKET = "local-input";
+
+    public static final String OUTPUT_BUCKET = "local-output";
+
+    public static final String PIPELINE_ID = "local-pipeline";
+
+    public static final String SQS_QUEUE_URL = "local://queue/transcoder-notifications";
+
+    public static final String JOB_DURATION_MS = "200";
+
+    public static final String POLLING_INITIAL_DELAY_MS = "200";
+
+    @Override
+    public void initialize(FeaturesRunner runner) throws Exception {
+
+        Properties p = System.getProperties();
+        p.setProperty(AWSElasticTranscoderConstants.CONF_KEY_BACKEND,
+                AWSElasticTranscoderConstants.BACKEND_LOCAL);
+        p.setProperty(
+                AWSElasticTranscoderConstants.CONF_KEY_LOCAL_JOB_DURATION_MS,
+                JOB_DURATION_MS);
+        p.setProperty(
+                AWSElasticTranscoderConstants.CONF_KEY_POLLING_INITIAL_DELAY_MS,
+                POLLING_INITIAL_DELAY_MS);
+        p.setProperty(AWSElasticTranscoderConstants.CONF_KEY_INPUT_BUCKET,
+                INPUT_BUCKET);
+        p.setProperty(AWSElasticTranscoderConstants.CONF_KEY_OUTPUT_BUCKET,
+                OUTPUT_BUCKET);
+        p.setProperty(AWSElasticTranscoderConstants.CONF_KEY_PIPELINE_ID,
+                PIPELINE_ID);
+        p.setProperty(AWSElasticTranscoderConstants.CONF_KEY_SQS_URL,
+                SQS_QUEUE_URL);
+    }
+
+    @Override
+    public void stop(FeaturesRunner runner) throws Exception {
+
+        Properties p = System.getProperties();
+        p.remove(AWSElasticTranscoderConstants.CONF_KEY_BACKEND);
+        p.remove(AWSElasticTranscoderConstants.CONF_KEY_LOCAL_JOB_DURATION_MS);
+        p.remove(AWSElasticTranscoderConstants.CONF_KEY_POLLING_INITIAL_DELAY_MS);
+        p.remove(AWSElasticTranscoderConstants.CONF_KEY_INPUT_BUCKET);
+        p.remove(AWSElasticTranscoderConstants.CONF_KEY_OUTPUT_BUCKET);
+        p.remove(AWSElasticTranscoderConstants.CONF_KEY_PIPELINE_ID);
+        p.remove(AWSElasticTranscoderConstants.CONF_KEY_SQS_URL);
+    }
+
+}
@@ -0,0 +1,162 @@
+/*
+ * (C) Copyright 2016 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.aws.elastictranscoder.test;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+import org.nuxeo.aws.elastictranscoder.pool.PipelineDescriptor;
+import org.nuxeo.aws.elastictranscoder.pool.PipelinePool;
+import org.nuxeo.aws.elastictranscoder.pool.PipelinePoolDescriptor;
+import org.nuxeo.aws.elastictranscoder.pool.PooledPipeline;
+import org.nuxeo.ecm.core.api.NuxeoException;
+
+public class PipelinePoolTest {
+
+    protected static PipelinePool newPool(String inRouting,
+            PipelineDescriptor... inPipelines) {
+
+        PipelinePoolDescriptor descriptor = new PipelinePoolDescriptor();
+        descriptor.setName("test");
+        descriptor.setRouting(inRouting);
+        descriptor.setMaxFailures(2);
+        descriptor.setDrainSeconds(60);
+        descriptor.setThrottledDrainSeconds(60);
+        descriptor.setPipelines(new ArrayList<PipelineDescriptor>(
+                Arrays.asList(inPipelines)));
+        return new PipelinePool(descriptor);
+    }
+
+    protected static PipelineDescriptor pipeline(String inId, int inWeight) {
+        return new PipelineDescriptor(inId, inWeight, "in", "out", null);
+    }
+
+    @Test
+    public void testLeastOutstanding() {
+
+        PipelinePool pool = newPool(PipelinePool.ROUTING_LEAST_OUTSTANDING,
+                pipeline("a", 1), pipeline("b", 1));
+
+        PooledPipeline first = pool.acquire();
+        PooledPipeline second = pool.acquire();
+        assertNotSame(first, second);
+
+        // The first one is idle again: it gets the next job
+        pool.release(first);
+        assertSame(first, pool.acquire());
+        assertEquals(1, first.getOutstandingJobs());
+        assertEquals(1, second.getOutstandingJobs());
+    }
+
+    @Test
+    public void testLeastOutstandingUsesWeights() {
+
+        PipelinePool pool = newPool(PipelinePool.ROUTING_LEAST_OUTSTANDING,
+                pipeline("a", 3), pipeline("b", 1));
+
+        for (int i = 0; i < 8; i++) {
+            pool.acquire();
+        }
+        assertEquals(6, pool.getPipelines().get(0).getOutstandingJobs());
+        assertEquals(2, pool.getPipelines().get(1).getOutstandingJobs());
+    }
+
+    @Test
+    public void testWeightedRoundRobin() {
+
+        PipelinePool pool = newPool(PipelinePool.ROUTING_WEIGHTED_ROUND_ROBIN,
+                pipeline("a", 2), pipeline("b", 1));
+
+        List<String> ids = new ArrayList<String>();
+        for (int i = 0; i < 6; i++) {
+            PooledPipeline pipeline = pool.acquire();
+            ids.add(pipeline.getId());
+            pool.release(pipeline);
+        }
+        // Interleaved, 2/3 of the jobs for "a"
+        assertEquals(Arrays.asList("a", "b", "a", "a", "b", "a"), ids);
+    }
+
+    @Test
+    public void testFailingPipelineIsDrained() {
+
+        PipelinePool pool = newPool(PipelinePool.ROUTING_WEIGHTED_ROUND_ROBIN,
+                pipeline("a", 1), pipeline("b", 1));
+        PooledPipeline a = pool.getPipelines().get(0);
+
+        pool.recordFailure(a);
+        assertTrue(a.isHealthy());
+        pool.recordFailure(a);
+        assertFalse(a.isHealthy());
+
+        Map<String, Integer> counts = new HashMap<String, Integer>();
+        for (int i = 0; i < 4; i++) {
+            PooledPipeline pipeline = pool.acquire();
+            counts.merge(pipeline.getId(), 1, Integer::sum);
+            pool.release(pipeline);
+        }
+        assertEquals(Integer.valueOf(4), counts.get("b"));
+        assertEquals(2, a.getFailuresCount());
+    }
+
+    @Test
+    public void testAllDrainedStillRoutes() {
+
+        PipelinePool pool = newPool(PipelinePool.ROUTING_LEAST_OUTSTANDING,
+                pipeline("a", 1), pipeline("b", 1));
+        PooledPipeline a = pool.getPipelines().get(0);
+        PooledPipeline b = pool.getPipelines().get(1);
+
+        pool.recordThrottled(a);
+        pool.recordThrottled(b);
+        assertFalse(a.isHealthy());
+        assertFalse(b.isHealthy());
+
+        // The one drained first
+        assertSame(a, pool.acquire());
+    }
+
+    @Test
+    public void testSuccessResetsFailures() {
+
+        PipelinePool pool = newPool(PipelinePool.ROUTING_LEAST_OUTSTANDING,
+                pipeline("a", 1));
+        PooledPipeline a = pool.getPipelines().get(0);
+
+        pool.recordFailure(a);
+        pool.recordSuccess(a);
+        pool.recordFailure(a);
+        assertTrue(a.isHealthy());
+    }
+
+    @Test(expected = NuxeoException.class)
+    public void testEmptyPool() {
+        newPool(PipelinePool.ROUTING_LEAST_OUTSTANDING);
+    }
+
+    @Test(expected = NuxeoException.class)
+    public void testUnknownRouting() {
+        newPool("random", pipeline("a", 1));
+    }
+
+}
@@ -0,0 +1,238 @@
+/*
+ * (C) Copyright 2016 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.aws.elastictranscoder.test;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.nuxeo.aws.elastictranscoder.local.LocalClientProxy;
+import org.nuxeo.aws.elastictranscoder.local.LocalSQS;
+import org.nuxeo.aws.elastictranscoder.notification.SqsQueueNotificationWorker;
+import org.nuxeo.runtime.test.runner.Features;
+import org.nuxeo.runtime.test.runner.FeaturesRunner;
+import org.nuxeo.runtime.test.runner.RuntimeFeature;
+
+import com.amazonaws.services.sqs.AmazonSQS;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchRequest;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchResult;
+import com.amazonaws.services.sqs.model.Message;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/*
+ * The consumer of a queue, on the in-memory SQS
+ */
+@RunWith(FeaturesRunner.class)
+@Features(RuntimeFeature.class)
+public class SqsQueueNotificationWorkerTest {
+
+    protected static final String QUEUE_URL = "local://queue/worker-test";
+
+    /*
+     * Counts the DeleteMessageBatch calls
+     */
+    public static class CountingSQS extends LocalSQS {
+
+        protected final List<Integer> deleteBatchSizes = new ArrayList<Integer>();
+
+        @Override
+        public DeleteMessageBatchResult deleteMessageBatch(
+                DeleteMessageBatchRequest inRequest) {
+
+            synchronized (deleteBatchSizes) {
+                deleteBatchSizes.add(inRequest.getEntries().size());
+            }
+            return super.deleteMessageBatch(inRequest);
+        }
+    }
+
+    /*
+     * Gives access to the steps of the consumer
+     */
+    protected static class TestWorker extends SqsQueueNotificationWorker {
+
+        protected TestWorker(AmazonSQS inSqs) {
+            super(inSqs, QUEUE_URL);
+        }
+
+        protected List<Message> receiveMessages(int inMax) {
+            return receive(inMax);
+        }
+
+        protected void receiveAndProcess() {
+            process(receive(10));
+        }
+
+        protected void delete(List<Message> inMessages) {
+            deleteMessages(inMessages);
+        }
+    }
+
+    protected CountingSQS sqs;
+
+    protected TestWorker worker;
+
+    @Before
+    public void setup() {
+
+        sqs = new CountingSQS();
+        worker = new TestWorker(LocalClientProxy.create(AmazonSQS.class, sqs));
+        worker.setWaitTimeSeconds(1);
+    }
+
+    @After
+    public void tearDown() {
+
+        worker.shutdown();
+        sqs.shutdown();
+    }
+
+    protected static String notification(String inJobId, String inState)
+            throws IOException {
+
+        ObjectMapper mapper = new ObjectMapper();
+        Map<String, Object> message = new HashMap<String, Object>();
+        message.put("state", inState);
+        message.put("jobId", inJobId);
+        message.put("outputs", new ArrayList<Object>());
+        Map<String, String> envelope = new HashMap<String, String>();
+        envelope.put("Type", "Notification");
+        envelope.put("Message", mapper.writeValueAsString(message));
+        return mapper.writeValueAsString(envelope);
+    }
+
+    @Test
+    public void testUnhandledTerminalNotificationIsDeleted() throws Exception {
+
+        worker.setVisibilityTimeout(1);
+        worker.setMaxUnhandledReceives(2);
+        sqs.sendMessage(QUEUE_URL, notification("other-node-job", "COMPLETED"));
+        // Nobody waits for the progress of a job: deleted right away
+        sqs.sendMessage(QUEUE_URL, notification("other-node-job", "PROGRESSING"));
+
+        // Maybe for another node
+        worker.receiveAndProcess();
+        assertEquals(1, sqs.getMessagesCount(QUEUE_URL));
+
+        // Received again after the visibility timeout: no node waits for it
+        Thread.sleep(1200);
+        worker.receiveAndProcess();
+        assertEquals(0, sqs.getMessagesCount(QUEUE_URL));
+    }
+
+    @Test
+    public void testHandledNotificationIsDeleted() throws Exception {
+
+        AtomicInteger handled = new AtomicInteger();
+        worker.addJobHandler("the-job", notification -> handled.incrementAndGet());
+        sqs.sendMessage(QUEUE_URL, notification("the-job", "COMPLETED"));
+
+        worker.receiveAndProcess();
+        assertEquals(1, handled.get());
+        assertEquals(0, sqs.getMessagesCount(QUEUE_URL));
+    }
+
+    @Test
+    public void testListenerDoesNotDeleteTerminalNotification()
+            throws Exception {
+
+        AtomicInteger listened = new AtomicInteger();
+        worker.addHandler(notification -> listened.incrementAndGet());
+        sqs.sendMessage(QUEUE_URL, notification("other-node-job", "COMPLETED"));
+
+        // Seen by the listener, but kept for the node waiting for the job
+        worker.receiveAndProcess();
+        assertEquals(1, listened.get());
+        assertEquals(1, sqs.getMessagesCount(QUEUE_URL));
+    }
+
+    @Test
+    public void testDeleteInBatches() throws Exception {
+
+        for (int i = 0; i < 25; i++) {
+            sqs.sendMessage(QUEUE_URL, notification("job-" + i, "PROGRESSING"));
+        }
+        List<Message> messages = new ArrayList<Message>();
+        while (messages.size() < 25) {
+            List<Message> received = worker.receiveMessages(10);
+            assertFalse(received.isEmpty());
+            messages.addAll(received);
+        }
+
+        worker.delete(messages);
+        assertEquals(0, sqs.getMessagesCount(QUEUE_URL));
+        assertEquals(3, sqs.deleteBatchSizes.size());
+        for (int size : sqs.deleteBatchSizes) {
+            assertTrue(size <= 10);
+        }
+    }
+
+    @Test
+    public void testVisibilityExtendedWhileWaitingForHandler()
+            throws Exception {
+
+        worker.setReceivers(1);
+        worker.setHandlerThreads(1);
+        worker.setBatchSize(1);
+        worker.setVisibilityTimeout(3);
+
+        // The only handler thread is stuck on the first job
+        CountDownLatch entered = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        worker.addJobHandler("slow-job", notification -> {
+            entered.countDown();
+            try {
+                release.await(30, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        AtomicInteger handled = new AtomicInteger();
+        worker.addJobHandler("waiting-job",
+                notification -> handled.incrementAndGet());
+
+        worker.start("worker-test");
+        sqs.sendMessage(QUEUE_URL, notification("slow-job", "PROGRESSING"));
+        assertTrue(entered.await(10, TimeUnit.SECONDS));
+        sqs.sendMessage(QUEUE_URL, notification("waiting-job", "COMPLETED"));
+
+        // Longer than the visibility timeout: without the extension, the
+        // waiting message would be received (and handled) twice
+        Thread.sleep(4500);
+        assertEquals(0, handled.get());
+        release.countDown();
+
+        long timeout = System.currentTimeMillis() + 10000;
+        while (sqs.getMessagesCount(QUEUE_URL) > 0) {
+            assertTrue(System.currentTimeMillis() < timeout);
+            Thread.sleep(100);
+        }
+        assertEquals(1, handled.get());
+    }
+
+}
@@ -0,0 +1,103 @@
+/*
+ * (C) Copyright 2016 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.aws.elastictranscoder.test;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.nio.file.Files;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.nuxeo.aws.elastictranscoder.cache.TranscodedResultCache;
+import org.nuxeo.common.utils.FileUtils;
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.impl.blob.FileBlob;
+import org.nuxeo.ecm.platform.test.PlatformFeature;
+import org.nuxeo.runtime.test.runner.Deploy;
+import org.nuxeo.runtime.test.runner.Features;
+import org.nuxeo.runtime.test.runner.FeaturesRunner;
+
+import com.google.inject.Inject;
+
+@RunWith(FeaturesRunner.class)
+@Features({ PlatformFeature.class, LocalBackendFeature.class })
+@Deploy({ "nuxeo-aws-elastictranscoder" })
+public class TranscodedResultCacheTest {
+
+    protected static final String VIDEO_MP4 = "files/a.mp4";
+
+    @Inject
+    TranscodedResultCache cache;
+
+    protected File videoFile;
+
+    @Before
+    public void setup() {
+
+        videoFile = FileUtils.getResourceFileFromContext(VIDEO_MP4);
+        cache.clear();
+    }
+
+    @After
+    public void cleanup() {
+        cache.clear();
+    }
+
+    @Test
+    public void testPutAndGet() throws Exception {
+
+        assertTrue(cache.isEnabled());
+
+        Blob video = new FileBlob(videoFile);
+        String digest = cache.getDigest(video);
+        assertNotNull(digest);
+
+        long missesBefore = cache.getMissesCount();
+        assertNull(cache.get(digest, "preset-1", "-1.mp4"));
+        assertEquals(missesBefore + 1, cache.getMissesCount());
+
+        Blob transcoded = new FileBlob(videoFile);
+        transcoded.setMimeType("video/mp4");
+        cache.put(digest, "preset-1", "-1.mp4", transcoded);
+        assertEquals(videoFile.length(), cache.getSize());
+
+        long hitsBefore = cache.getHitsCount();
+        Blob cached = cache.get(digest, "preset-1", "-1.mp4");
+        assertNotNull(cached);
+        assertEquals(hitsBefore + 1, cache.getHitsCount());
+        assertEquals("video/mp4", cached.getMimeType());
+        assertArrayEquals(Files.readAllBytes(videoFile.toPath()),
+                cached.getByteArray());
+
+        // The key is the digest, the preset and the suffix
+        assertNull(cache.get(digest, "preset-2", "-1.mp4"));
+        assertNull(cache.get(digest, "preset-1", "-2.mp4"));
+        assertNull(cache.get("another-digest", "preset-1", "-1.mp4"));
+
+        // Nothing expired, cache not full
+        assertEquals(0, cache.evict());
+        assertNotNull(cache.get(digest, "preset-1", "-1.mp4"));
+
+        cache.clear();
+        assertEquals(0, cache.getSize());
+        assertNull(cache.get(digest, "preset-1", "-1.mp4"));
+    }
+
+}
@@ -0,0 +1,173 @@
+/*
+ * (C) Copyright 2016 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.aws.elastictranscoder.test;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.junit.Test;
+import org.nuxeo.aws.elastictranscoder.TranscodingAdmission;
+import org.nuxeo.aws.elastictranscoder.TranscodingPriority;
+
+public class TranscodingAdmissionTest {
+
+    protected final List<String> started = new ArrayList<String>();
+
+    protected static TranscodingAdmission newAdmission(int inMax,
+            int inInteractive, int inBackfill, int inMaxPending) {
+
+        Map<TranscodingPriority, Integer> quotas = new EnumMap<TranscodingPriority, Integer>(
+                TranscodingPriority.class);
+        quotas.put(TranscodingPriority.INTERACTIVE, inInteractive);
+        quotas.put(TranscodingPriority.BACKFILL, inBackfill);
+        return new TranscodingAdmission(inMax, 0, inMaxPending, quotas);
+    }
+
+    protected void submit(TranscodingAdmission inAdmission,
+            TranscodingPriority inPriority, String inName) {
+
+        inAdmission.submit(inPriority, () -> started.add(inName));
+    }
+
+    @Test
+    public void testFullBackfillLaneDoesNotBlockInteractive() {
+
+        TranscodingAdmission admission = newAdmission(3, 1, 2, 10);
+
+        submit(admission, TranscodingPriority.BACKFILL, "backfill1");
+        submit(admission, TranscodingPriority.BACKFILL, "backfill2");
+
+        // The backfill lane is full: the next one waits for its quota,
+        // without blocking the caller...
+        submit(admission, TranscodingPriority.BACKFILL, "backfill3");
+        assertEquals(Arrays.asList("backfill1", "backfill2"), started);
+        assertEquals(1,
+                admission.getWaitingSubmissionsCount(TranscodingPriority.BACKFILL));
+        assertEquals(1, admission.getWaitingSubmissionsCount());
+
+        // ...and without taking the place left for the interactive lane
+        submit(admission, TranscodingPriority.INTERACTIVE, "interactive");
+        assertEquals(
+                Arrays.asList("backfill1", "backfill2", "interactive"),
+                started);
+        assertEquals(3, admission.getSubmissionsCount());
+        assertEquals(2,
+                admission.getSubmissionsCount(TranscodingPriority.BACKFILL));
+        assertEquals(1,
+                admission.getSubmissionsCount(TranscodingPriority.INTERACTIVE));
+        assertEquals(0,
+                admission.getSubmissionsCount(TranscodingPriority.AUTOMATIC));
+
+        // The end of an interactive one does not free the backfill quota
+        admission.releaseSubmission(TranscodingPriority.INTERACTIVE);
+        assertEquals(3, started.size());
+
+        admission.releaseSubmission(TranscodingPriority.BACKFILL);
+        assertEquals("backfill3", started.get(3));
+        assertEquals(0, admission.getWaitingSubmissionsCount());
+        assertEquals(2,
+                admission.getSubmissionsCount(TranscodingPriority.BACKFILL));
+        assertEquals(0,
+                admission.getSubmissionsCount(TranscodingPriority.INTERACTIVE));
+    }
+
+    @Test
+    public void testWithoutQuotas() {
+
+        TranscodingAdmission admission = new TranscodingAdmission(2, 0, 10);
+
+        submit(admission, TranscodingPriority.AUTOMATIC, "automatic");
+        submit(admission, TranscodingPriority.BACKFILL, "backfill");
+        assertEquals(2, started.size());
+        assertEquals(2, admission.getSubmissionsCount());
+        assertEquals(1,
+                admission.getSubmissionsCount(TranscodingPriority.BACKFILL));
+
+        admission.releaseSubmission(TranscodingPriority.BACKFILL);
+        admission.releaseSubmission(TranscodingPriority.AUTOMATIC);
+        assertEquals(0, admission.getSubmissionsCount());
+    }
+
+    @Test
+    public void testRejectedWhenQueueIsFull() {
+
+        TranscodingAdmission admission = new TranscodingAdmission(1, 0, 2);
+
+        submit(admission, TranscodingPriority.AUTOMATIC, "running");
+        submit(admission, TranscodingPriority.AUTOMATIC, "waiting1");
+        submit(admission, TranscodingPriority.BACKFILL, "waiting2");
+        assertEquals(2, admission.getWaitingSubmissionsCount());
+
+        try {
+            submit(admission, TranscodingPriority.INTERACTIVE, "rejected");
+            fail("The queue is full");
+        } catch (RejectedExecutionException e) {
+            // Expected
+        }
+        assertEquals(Arrays.asList("running"), started);
+        assertEquals(2, admission.getWaitingSubmissionsCount());
+
+        // Room again once a waiting one started
+        admission.releaseSubmission(TranscodingPriority.AUTOMATIC);
+        assertEquals(Arrays.asList("running", "waiting1"), started);
+        assertEquals(1, admission.getWaitingSubmissionsCount());
+        submit(admission, TranscodingPriority.AUTOMATIC, "waiting3");
+        assertEquals(2, admission.getWaitingSubmissionsCount());
+    }
+
+    @Test
+    public void testWaitingStartInLaneOrder() {
+
+        TranscodingAdmission admission = new TranscodingAdmission(1, 0, 10);
+
+        submit(admission, TranscodingPriority.AUTOMATIC, "running");
+        submit(admission, TranscodingPriority.BACKFILL, "backfill");
+        submit(admission, TranscodingPriority.AUTOMATIC, "automatic");
+        submit(admission, TranscodingPriority.INTERACTIVE, "interactive");
+
+        admission.releaseSubmission(TranscodingPriority.AUTOMATIC);
+        admission.releaseSubmission(TranscodingPriority.INTERACTIVE);
+        admission.releaseSubmission(TranscodingPriority.AUTOMATIC);
+        assertEquals(Arrays.asList("running", "interactive", "automatic",
+                "backfill"), started);
+        assertEquals(1, admission.getSubmissionsCount());
+        assertEquals(0, admission.getWaitingSubmissionsCount());
+    }
+
+    @Test
+    public void testPriorityFromString() {
+
+        assertEquals(TranscodingPriority.INTERACTIVE,
+                TranscodingPriority.fromString(" Interactive ",
+                        TranscodingPriority.AUTOMATIC));
+        assertEquals(TranscodingPriority.BACKFILL,
+                TranscodingPriority.fromString("backfill", null));
+        assertEquals(TranscodingPriority.AUTOMATIC,
+                TranscodingPriority.fromString("urgent",
+                        TranscodingPriority.AUTOMATIC));
+        assertEquals(TranscodingPriority.AUTOMATIC,
+                TranscodingPriority.fromString(null,
+                        TranscodingPriority.AUTOMATIC));
+    }
+
+}
@@ -0,0 +1,100 @@
+/*
+ * (C) Copyright 2016 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.aws.elastictranscoder.test;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+import org.nuxeo.aws.elastictranscoder.tracing.LogTraceExporter;
+import org.nuxeo.aws.elastictranscoder.tracing.TranscodingSpan;
+import org.nuxeo.aws.elastictranscoder.tracing.TranscodingTrace;
+
+public class TranscodingTraceTest {
+
+    @Test
+    public void testExportedOnceWhenEnded() {
+
+        List<TranscodingTrace> exported = new ArrayList<TranscodingTrace>();
+        TranscodingTrace trace = new TranscodingTrace("transcoding",
+                exported::add);
+        trace.getRoot().tag("pipelineId", "p1").tag("ignored", null);
+
+        TranscodingSpan upload = trace.startSpan("upload").tag("bytes", 1024L);
+        upload.end();
+        long duration = upload.getDurationNanos();
+        upload.end();
+        assertEquals(duration, upload.getDurationNanos());
+
+        assertTrue(exported.isEmpty());
+        trace.end(null);
+        trace.end(null);
+        assertEquals(1, exported.size());
+
+        assertEquals(1, trace.getSpans().size());
+        assertEquals(trace.getRoot().getSpanId(), upload.getParentSpanId());
+        assertEquals(1024L, upload.getTag("bytes"));
+        assertFalse(trace.getRoot().getTags().containsKey("ignored"));
+        assertNull(trace.getRoot().getTag("error"));
+    }
+
+    @Test
+    public void testFailedStepIsTagged() {
+
+        TranscodingTrace trace = new TranscodingTrace("transcoding", null);
+        trace.startSpan("upload").end();
+        TranscodingSpan job = trace.startSpan("job");
+
+        trace.end(new RuntimeException("Failed"));
+        assertTrue(job.isEnded());
+        assertEquals("RuntimeException", job.getTag("error"));
+        assertEquals("RuntimeException", trace.getRoot().getTag("error"));
+        assertNull(trace.getSpan("upload").getTag("error"));
+    }
+
+    @Test
+    public void testSpanInThePast() {
+
+        TranscodingTrace trace = new TranscodingTrace("transcoding", null);
+        long sent = System.currentTimeMillis() - 5000;
+        TranscodingSpan notification = trace.startSpan("notification", sent);
+        notification.end();
+        assertTrue(notification.getDurationMs() >= 5000);
+
+        TranscodingSpan job = trace.startSpan("job", sent - 1000);
+        job.endAt(sent);
+        assertEquals(1000, job.getDurationMs());
+    }
+
+    @Test
+    public void testLogFormat() {
+
+        TranscodingTrace trace = new TranscodingTrace("transcoding", null);
+        trace.startSpan("upload").tag("bytes", 12).end();
+        trace.startSpan("job");
+        String line = LogTraceExporter.format(trace);
+
+        assertTrue(line.startsWith("trace=" + trace.getTraceId()
+                + " transcoding 0+?"));
+        assertTrue(line.contains(" | upload "));
+        assertTrue(line.contains("{bytes=12}"));
+        assertTrue(line.endsWith("+?"));
+    }
+
+}